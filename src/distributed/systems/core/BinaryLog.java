@@ -0,0 +1,238 @@
+package distributed.systems.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes log entries as fixed-width binary records, to be read back with
+ * a {@link MappedLogReader}. Entries are neither serialized nor formatted
+ * as text, and every record can be found from its index alone.
+ *
+ * The file starts with a header of {@link #HEADER_SIZE} bytes: magic,
+ * version, clock width, record size and the number of complete records,
+ * which is updated after every batch. Records after that number were cut
+ * short by a crash and are overwritten. A record holds the event, the
+ * origin id, the from and to positions (-1 when absent), the value, the
+ * unit of a spawn (type, hit points, attack points and battlefield) and up
+ * to {@link #CLOCK_WIDTH} id/counter pairs of the clock. Origins, which
+ * battlefields are numbered with as well, go in the order they first show
+ * up; a record that defines one, with its host name and port, comes
+ * before the first entry that uses it.
+ */
+public class BinaryLog implements LogAppender.Format {
+
+	/* Clock entries per record, for logs created from now on; the Lamport counter takes one */
+	public static final int CLOCK_WIDTH = Integer.getInteger("das.log.clockWidth", 16);
+
+	static final int MAGIC = 0x4441534c;
+	static final short VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	/* Header fields */
+	static final int H_VERSION = 4, H_CLOCK_WIDTH = 6, H_RECORD_SIZE = 8, H_COUNT = 16;
+	/* Record fields */
+	static final int EVENT = 0, PAIRS = 1, ORIGIN = 2, FROM_X = 4, FROM_Y = 6, TO_X = 8, TO_Y = 10, VALUE = 12,
+			UNIT_TYPE = 16, ATTACK_POINTS = 18, MAX_HIT_POINTS = 20, HIT_POINTS = 22, BATTLEFIELD = 24, CLOCK = 28;
+	/* Event of a record that defines an origin, with the host name where the clock goes */
+	static final byte ORIGIN_RECORD = -1;
+	static final int NO_ORIGIN = 0xffff;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private int clockWidth = CLOCK_WIDTH;
+	private int recordSize;
+	private long count;
+	private ByteBuffer record;
+	private final ByteBuffer countField = ByteBuffer.allocate(8);
+	private final HashMap<InetSocketAddress, Integer> origins = new HashMap<InetSocketAddress, Integer>();
+	private final File file;
+
+	public BinaryLog(File file) {
+		this.file = file;
+	}
+
+	public static int recordSize(int clockWidth) {
+		return CLOCK + 8 * clockWidth;
+	}
+
+	public long open(FileChannel channel) throws IOException {
+		if (channel.size() < HEADER_SIZE) {
+			recordSize = recordSize(clockWidth);
+			writeHeader(channel);
+			count = 0;
+		} else {
+			// Carry on after the complete records of the existing log
+			MappedLogReader reader = new MappedLogReader(file);
+			try {
+				clockWidth = reader.clockWidth();
+				recordSize = reader.recordSize();
+				count = reader.size();
+				for (int id = 0; id < reader.origins(); id++)
+					origins.put(reader.origin(id), id);
+			} finally {
+				reader.close();
+			}
+		}
+		// An entry and the definitions of its origin and battlefield
+		record = ByteBuffer.allocate(3 * recordSize);
+		return HEADER_SIZE + count * recordSize;
+	}
+
+	public ByteBuffer encode(Object entry) {
+		LogEntry e = (LogEntry)entry;
+		int[] clock = e.getClock() == null ? new int[0] : e.getClock();
+		if (clock.length / 2 > clockWidth)
+			throw new IllegalArgumentException("A clock of " + clock.length / 2 + " entries does not fit a log record of " + clockWidth + ", see das.log.clockWidth");
+		// Both are checked first, so an entry that can not be logged defines no origin
+		int added = checkOrigin(e.getOrigin(), 0);
+		checkOrigin(e.getBattlefield(), added);
+		record.clear();
+		int origin = originId(e.getOrigin());
+		int battlefield = originId(e.getBattlefield());
+
+		int start = record.position();
+		record.put((byte)e.getEvent().ordinal());
+		record.put((byte)(clock.length / 2));
+		record.putShort((short)origin);
+		putPosition(e.getFrom());
+		putPosition(e.getTo());
+		record.putInt(e.getValue());
+		record.put((byte)(e.getUnitType() == null ? -1 : e.getUnitType().ordinal())).put((byte)0);
+		record.putShort((short)e.getAttackPoints());
+		record.putShort((short)e.getMaxHitPoints());
+		record.putShort((short)e.getHitPoints());
+		record.putShort((short)battlefield).putShort((short)0);
+		record.asIntBuffer().put(clock);
+		record.position(start + recordSize);
+		count++;
+		record.flip();
+		return record;
+	}
+
+	/*
+	 * Throws if the address can not be defined after the given number of
+	 * new origins.
+	 * @return 1 if the address is a new origin, 0 otherwise
+	 */
+	private int checkOrigin(InetSocketAddress address, int added) {
+		if (address == null || origins.containsKey(address)) return 0;
+		if (origins.size() + added >= NO_ORIGIN) throw new IllegalStateException("Too many origins in " + file);
+		if (hostOf(address).length > Math.min(255, recordSize - CLOCK))
+			throw new IllegalArgumentException("Host name too long for the log: " + address.getHostName());
+		return 1;
+	}
+
+	private static byte[] hostOf(InetSocketAddress address) {
+		return address.getHostName().getBytes(UTF8);
+	}
+
+	/* Numbers the address, defining it first if it is new */
+	private int originId(InetSocketAddress address) {
+		if (address == null) return NO_ORIGIN;
+		Integer id = origins.get(address);
+		if (id == null) {
+			id = origins.size();
+			putOrigin(id, address);
+			origins.put(address, id);
+		}
+		return id;
+	}
+
+	private void putOrigin(int id, InetSocketAddress origin) {
+		byte[] host = hostOf(origin);
+		int start = record.position();
+		record.put(ORIGIN_RECORD);
+		record.put((byte)host.length);
+		record.putShort((short)id);
+		record.putShort((short)-1).putShort((short)-1).putShort((short)-1).putShort((short)-1);
+		record.putInt(origin.getPort());
+		record.position(start + CLOCK);
+		record.put(host);
+		record.position(start + recordSize);
+		count++;
+	}
+
+	private void putPosition(LogEntry.Position position) {
+		record.putShort((short)(position == null ? -1 : position.getX()));
+		record.putShort((short)(position == null ? -1 : position.getY()));
+	}
+
+	public void written(FileChannel channel) throws IOException {
+		countField.clear();
+		countField.putLong(count).flip();
+		channel.write(countField, H_COUNT);
+	}
+
+	/**
+	 * Copies the origin definitions and the entries from the given record
+	 * on into a new file, which then replaces the log. Origins keep their
+	 * numbers.
+	 */
+	public FileChannel truncate(FileChannel channel, long first) throws IOException {
+		long end = count;
+		File tmp = new File(file.getPath() + ".tmp");
+		FileChannel copy = new RandomAccessFile(tmp, "rw").getChannel();
+		try {
+			copy.truncate(0);
+			writeHeader(copy);
+			copy.position(HEADER_SIZE);
+			count = 0;
+
+			InetSocketAddress[] byId = new InetSocketAddress[origins.size()];
+			for (Map.Entry<InetSocketAddress, Integer> origin : origins.entrySet())
+				byId[origin.getValue()] = origin.getKey();
+			for (int id = 0; id < byId.length; id++) {
+				record.clear();
+				putOrigin(id, byId[id]);
+				record.flip();
+				while (record.hasRemaining())
+					copy.write(record);
+			}
+
+			ByteBuffer in = ByteBuffer.allocate(1024 * recordSize);
+			ByteBuffer out = ByteBuffer.allocate(1024 * recordSize);
+			for (long i = first; i < end; ) {
+				in.clear();
+				in.limit((int)Math.min(in.capacity(), (end - i) * recordSize));
+				long position = HEADER_SIZE + i * recordSize;
+				while (in.hasRemaining() && channel.read(in, position + in.position()) > 0);
+				int length = in.position();
+				out.clear();
+				for (int r = 0; r + recordSize <= length; r += recordSize, i++) {
+					if (in.get(r + EVENT) == ORIGIN_RECORD) continue;
+					out.put(in.array(), r, recordSize);
+					count++;
+				}
+				out.flip();
+				while (out.hasRemaining())
+					copy.write(out);
+			}
+			written(copy);
+			copy.force(false);
+		} catch (IOException e) {
+			copy.close();
+			count = end;
+			throw e;
+		}
+		copy.close();
+		channel.close();
+		if (!tmp.renameTo(file))
+			throw new IOException("Could not move " + tmp + " to " + file);
+		FileChannel truncated = new RandomAccessFile(file, "rw").getChannel();
+		truncated.position(HEADER_SIZE + count * recordSize);
+		return truncated;
+	}
+
+	private void writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putShort(VERSION).putShort((short)clockWidth).putInt(recordSize);
+		header.clear();
+		channel.write(header, 0);
+	}
+}
@@ -0,0 +1,228 @@
+package distributed.systems.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps one long-lived {@link FramedConnection} per remote address and
+ * sends messages over it asynchronously. A message is encoded in the
+ * calling thread and queued on the connection, so the caller never waits
+ * for a TCP handshake or a write.
+ *
+ * Sends that expect a response get a correlation id in the frame tag. The
+ * remote {@link SynchronizedSocket} echoes the tag on its reply, which is
+ * then passed to the handler of the original send, on a worker of the
+ * {@link EventLoopGroup} and in order per connection. Failed sends, closed
+ * connections and response timeouts are reported through
+ * {@link IMessageReceivedHandler#onExceptionThrown(Message, InetSocketAddress)},
+ * always from a pool thread.
+ */
+public class ConnectionPool implements IFrameHandler {
+
+	public static final long RESPONSE_TIMEOUT = 20000;
+
+	private static ConnectionPool defaultPool;
+
+	private final EventLoopGroup group;
+	private final ConcurrentHashMap<InetSocketAddress, FramedConnection> connections;
+	private final ConcurrentHashMap<FramedConnection, SerialExecutor> dispatchers;
+	private final Map<Integer, PendingSend> awaitingResponse;
+	private final AtomicInteger nextCorrelationId = new AtomicInteger();
+	private final ScheduledThreadPoolExecutor timeouts;
+
+	private class PendingSend {
+		final Message message;
+		final InetSocketAddress address;
+		final IMessageReceivedHandler handler;
+		final int correlationId;
+		final AtomicBoolean completed = new AtomicBoolean(false);
+		FramedConnection connection;
+		ScheduledFuture<?> timeout;
+
+		PendingSend(Message message, InetSocketAddress address, IMessageReceivedHandler handler, int correlationId) {
+			this.message = message;
+			this.address = address;
+			this.handler = handler;
+			this.correlationId = correlationId;
+		}
+
+		void fail() {
+			if (!completed.compareAndSet(false, true)) return;
+			if (correlationId != 0) awaitingResponse.remove(correlationId);
+			if (timeout != null) timeout.cancel(false);
+			if (handler == null) return;
+			// Never call back into the sender's thread, it may hold locks
+			timeouts.execute(new Runnable() {
+				public void run() {
+					handler.onExceptionThrown(message, address);
+				}
+			});
+		}
+
+		void complete(Message reply) {
+			if (!completed.compareAndSet(false, true)) return;
+			if (timeout != null) timeout.cancel(false);
+			if (handler != null) handler.onMessageReceived(reply);
+		}
+	}
+
+	public ConnectionPool(EventLoopGroup group) {
+		this.group = group;
+		this.connections = new ConcurrentHashMap<InetSocketAddress, FramedConnection>();
+		this.dispatchers = new ConcurrentHashMap<FramedConnection, SerialExecutor>();
+		this.awaitingResponse = new ConcurrentHashMap<Integer, PendingSend>();
+		this.timeouts = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ConnectionPool-timeouts");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.timeouts.setRemoveOnCancelPolicy(true);
+	}
+
+	public static synchronized ConnectionPool getDefault() {
+		if (defaultPool == null)
+			defaultPool = new ConnectionPool(EventLoopGroup.getDefault());
+		return defaultPool;
+	}
+
+	/**
+	 * Sends a message without waiting for it to be written.
+	 * @param address destination
+	 * @param message is encoded before this method returns, later changes are not sent
+	 * @param handler receives the reply, if requested, and any send failure
+	 * @param requiresResponse whether the remote reply should be delivered to the handler
+	 */
+	public void send(InetSocketAddress address, Message message, IMessageReceivedHandler handler, boolean requiresResponse) {
+		ByteBuffer payload;
+		try {
+			payload = Message.encode(message);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		send(address, payload, message, handler, requiresResponse);
+	}
+
+	/**
+	 * Sends the same message to several addresses, encoding it only once.
+	 */
+	public void multicast(Collection<InetSocketAddress> addresses, Message message, IMessageReceivedHandler handler) {
+		ByteBuffer payload;
+		try {
+			// Copied out of the encoder's buffer: a failing send may call
+			// back into a handler that encodes another message.
+			ByteBuffer encoded = Message.encode(message);
+			payload = ByteBuffer.allocate(encoded.remaining());
+			payload.put(encoded);
+			payload.flip();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		for (InetSocketAddress address : addresses)
+			send(address, payload.duplicate(), message, handler, false);
+	}
+
+	private void send(InetSocketAddress address, ByteBuffer payload, Message message, IMessageReceivedHandler handler, boolean requiresResponse) {
+		int correlationId = 0;
+		if (requiresResponse) {
+			do {
+				correlationId = nextCorrelationId.incrementAndGet() & Integer.MAX_VALUE;
+			} while (correlationId == 0);
+		}
+		final PendingSend pending = new PendingSend(message, address, handler, correlationId);
+		if (requiresResponse) {
+			awaitingResponse.put(correlationId, pending);
+			pending.timeout = timeouts.schedule(new Runnable() {
+				public void run() {
+					System.out.println("Timeout!!!!");
+					pending.fail();
+				}
+			}, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+
+		for (int attempt = 0; attempt < 2; attempt++) {
+			FramedConnection connection;
+			try {
+				connection = connectionFor(address);
+			} catch (IOException e) {
+				pending.fail();
+				return;
+			}
+			pending.connection = connection;
+			if (connection.send(correlationId, payload.duplicate(), pending))
+				return;
+			connections.remove(address, connection);
+		}
+		pending.fail();
+	}
+
+	private FramedConnection connectionFor(InetSocketAddress address) throws IOException {
+		FramedConnection connection = connections.get(address);
+		if (connection != null && !connection.isClosed())
+			return connection;
+		if (connection != null)
+			connections.remove(address, connection);
+
+		FramedConnection created = FramedConnection.connect(address, group.next(), this);
+		dispatchers.put(created, group.newSerialExecutor());
+		connection = connections.putIfAbsent(address, created);
+		if (connection == null)
+			return created;
+		dispatchers.remove(created);
+		created.close();
+		return connection;
+	}
+
+	@Override
+	public void onFrame(FramedConnection connection, int tag, final ByteBuffer payload) {
+		if (tag == 0) return;
+		final PendingSend pending = awaitingResponse.remove(tag);
+		if (pending == null) return;
+		SerialExecutor dispatcher = dispatchers.get(connection);
+		if (dispatcher == null) {
+			pending.fail();
+			return;
+		}
+		// Reply handlers take the locks of the battlefield, keep them off the loop
+		dispatcher.execute(new Runnable() {
+			public void run() {
+				try {
+					pending.complete(Message.decode(payload));
+				} catch (IOException e) {
+					e.printStackTrace();
+					pending.fail();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void onClosed(FramedConnection connection, IOException cause) {
+		dispatchers.remove(connection);
+		Iterator<Map.Entry<InetSocketAddress, FramedConnection>> it = connections.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue() == connection)
+				it.remove();
+		}
+		for (Object undelivered : connection.drainUndelivered())
+			((PendingSend)undelivered).fail();
+		for (PendingSend pending : awaitingResponse.values()) {
+			if (pending.connection == connection)
+				pending.fail();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package distributed.systems.core;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread. Channels are registered with an
+ * {@link ISelectionHandler} attached, which is called on this thread
+ * whenever the channel is ready. Work coming from other threads is
+ * handed over through {@link #execute(Runnable)}.
+ */
+public class EventLoop extends Thread {
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks;
+
+	public EventLoop(String name) throws IOException {
+		super(name);
+		setDaemon(true);
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+	}
+
+	/**
+	 * Runs the task on the loop thread. If called from the loop thread
+	 * itself the task runs immediately.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		if (inEventLoop()) {
+			task.run();
+			return;
+		}
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	public boolean inEventLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	/**
+	 * Registers the channel with this loop's selector. The handler is
+	 * notified through onClosed if the registration fails.
+	 */
+	public void register(final SelectableChannel channel, final int ops, final ISelectionHandler handler) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					channel.configureBlocking(false);
+					handler.onRegistered(channel.register(selector, ops, handler));
+				} catch (IOException e) {
+					handler.onClosed(e);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				ISelectionHandler handler = (ISelectionHandler)key.attachment();
+				try {
+					if (key.isValid())
+						handler.onSelected(key);
+				} catch (CancelledKeyException e) {
+					handler.onClosed(null);
+				} catch (IOException e) {
+					key.cancel();
+					handler.onClosed(e);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
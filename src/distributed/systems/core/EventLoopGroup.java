@@ -0,0 +1,66 @@
+package distributed.systems.core;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of event loops shared by every socket in the process.
+ * Channels are spread over the loops in round-robin order, so the
+ * number of transport threads does not depend on the number of
+ * connections or units.
+ *
+ * The loops only read and write. Handlers of incoming messages may block
+ * on the locks of the battlefield, so they run on a pool of workers, in
+ * order per connection, see {@link #newSerialExecutor()}.
+ */
+public class EventLoopGroup {
+
+	public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	private static EventLoopGroup defaultGroup;
+
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final AtomicInteger nextWorker = new AtomicInteger();
+	private final ExecutorService workers;
+
+	public EventLoopGroup(int nThreads) {
+		loops = new EventLoop[nThreads];
+		for (int i = 0; i < nThreads; i++) {
+			try {
+				loops[i] = new EventLoop("EventLoop-" + i);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not open selector", e);
+			}
+			loops[i].start();
+		}
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "EventLoopGroup-worker-" + nextWorker.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public static synchronized EventLoopGroup getDefault() {
+		if (defaultGroup == null)
+			defaultGroup = new EventLoopGroup(DEFAULT_THREADS);
+		return defaultGroup;
+	}
+
+	public EventLoop next() {
+		return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	/**
+	 * Returns an executor that runs its tasks one at a time, in order, on
+	 * the workers of this group. Use one per connection.
+	 */
+	public SerialExecutor newSerialExecutor() {
+		return new SerialExecutor(workers);
+	}
+}
@@ -0,0 +1,223 @@
+package distributed.systems.core;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells which members are alive from the heartbeats they send, with the
+ * phi accrual method: the detector keeps the last {@link #WINDOW}
+ * intervals between the heartbeats of every member and, from their mean
+ * and deviation, how unlikely the silence since the last one is. Phi is
+ * that unlikelihood as -log10 of the probability that a heartbeat still
+ * comes; a member whose phi passes {@link #THRESHOLD} is suspected, taken
+ * off and reported to the {@link Listener}.
+ *
+ * Up to {@link #ACCEPTABLE_PAUSE} ms of extra silence, a garbage
+ * collection or a busy peer, barely raises phi. A member is watched from
+ * its first heartbeat, which is assumed to come every
+ * {@link #HEARTBEAT_INTERVAL} ms until there are intervals to go by.
+ */
+public class FailureDetector {
+
+	/* Time between heartbeats, in ms */
+	public static final long HEARTBEAT_INTERVAL = Long.getLong("das.fd.interval", 500);
+	/* Phi from which a member is suspected; 8 is wrong about once in 10^8 */
+	public static final double THRESHOLD = Double.parseDouble(System.getProperty("das.fd.threshold", "8"));
+	/* Intervals kept per member */
+	public static final int WINDOW = Integer.getInteger("das.fd.window", 100);
+	/* Silence on top of the usual interval that is still expected, in ms */
+	public static final long ACCEPTABLE_PAUSE = Long.getLong("das.fd.acceptablePause", 3000);
+	/* Lower bound of the deviation, so regular heartbeats do not make phi jump, in ms */
+	public static final long MIN_STD_DEVIATION = Long.getLong("das.fd.minStdDeviation", 100);
+
+	/**
+	 * Told of the changes in membership, from the thread of the detector.
+	 */
+	public interface Listener {
+		/**
+		 * The member stopped sending heartbeats and is no longer watched.
+		 * @param phi its suspicion level when it was taken off
+		 */
+		void memberFailed(InetSocketAddress member, double phi);
+	}
+
+	/* The last intervals between the heartbeats of a member */
+	private static class ArrivalWindow {
+		private final long[] intervals = new long[WINDOW];
+		private int size = 0, next = 0;
+		private double sum = 0, squares = 0;
+		private long last;
+
+		ArrivalWindow(long now) {
+			last = now;
+			// A first estimate, the interval give or take a quarter
+			add(HEARTBEAT_INTERVAL - HEARTBEAT_INTERVAL / 4);
+			add(HEARTBEAT_INTERVAL + HEARTBEAT_INTERVAL / 4);
+		}
+
+		synchronized void arrived(long now) {
+			add(now - last);
+			last = now;
+		}
+
+		private void add(long interval) {
+			if (size == intervals.length) {
+				sum -= intervals[next];
+				squares -= (double)intervals[next] * intervals[next];
+			} else {
+				size++;
+			}
+			intervals[next] = interval;
+			sum += interval;
+			squares += (double)interval * interval;
+			next = (next + 1) % intervals.length;
+		}
+
+		synchronized double phi(long now) {
+			double mean = sum / size;
+			double deviation = Math.max(Math.sqrt(Math.max(0, squares / size - mean * mean)), MIN_STD_DEVIATION);
+			return FailureDetector.phi(now - last, mean + ACCEPTABLE_PAUSE, deviation);
+		}
+	}
+
+	private final Listener listener;
+	private final ConcurrentHashMap<InetSocketAddress, ArrivalWindow> members = new ConcurrentHashMap<InetSocketAddress, ArrivalWindow>();
+
+	public FailureDetector(String name, Listener listener) {
+		this.listener = listener;
+		Thread monitor = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(HEARTBEAT_INTERVAL / 2);
+					} catch (InterruptedException e) {
+						return;
+					}
+					check();
+				}
+			}
+		}, name);
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+	/**
+	 * Phi for a silence of the given length, with the normal distribution
+	 * approximated by a logistic function.
+	 */
+	static double phi(long silence, double mean, double deviation) {
+		double y = (silence - mean) / deviation;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (silence > mean)
+			return -Math.log10(e / (1.0 + e));
+		return -Math.log10(1.0 - 1.0 / (1.0 + e));
+	}
+
+	/**
+	 * Records a heartbeat of the member, watching it from now on if it is
+	 * new.
+	 */
+	public void heartbeat(InetSocketAddress member) {
+		long now = now();
+		ArrivalWindow window = members.get(member);
+		if (window == null) {
+			window = members.putIfAbsent(member, new ArrivalWindow(now));
+			if (window == null) return;
+		}
+		window.arrived(now);
+	}
+
+	/**
+	 * Stops watching a member that left.
+	 */
+	public void remove(InetSocketAddress member) {
+		members.remove(member);
+	}
+
+	/**
+	 * @return the suspicion level of the member, 0 if it is not watched
+	 */
+	public double phi(InetSocketAddress member) {
+		ArrivalWindow window = members.get(member);
+		return window == null ? 0 : window.phi(now());
+	}
+
+	/**
+	 * @return whether the member is watched and not suspected
+	 */
+	public boolean isAvailable(InetSocketAddress member) {
+		ArrivalWindow window = members.get(member);
+		return window != null && window.phi(now()) < THRESHOLD;
+	}
+
+	private void check() {
+		long now = now();
+		List<InetSocketAddress> failed = new ArrayList<InetSocketAddress>();
+		List<Double> levels = new ArrayList<Double>();
+		for (Map.Entry<InetSocketAddress, ArrivalWindow> member : members.entrySet()) {
+			double phi = member.getValue().phi(now);
+			if (phi >= THRESHOLD && members.remove(member.getKey(), member.getValue())) {
+				failed.add(member.getKey());
+				levels.add(phi);
+			}
+		}
+		for (int i = 0; i < failed.size(); i++) {
+			try {
+				listener.memberFailed(failed.get(i), levels.get(i));
+			} catch (RuntimeException e) {
+				e.printStackTrace(); // Keep the monitor running
+			}
+		}
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	/**
+	 * Sends a heartbeat every {@link #HEARTBEAT_INTERVAL} ms from the
+	 * default {@link HashedWheelTimer}, without waiting for an answer and
+	 * ignoring failed sends, until it is stopped.
+	 */
+	public static abstract class Heartbeat implements Runnable {
+		private volatile boolean stopped = false;
+
+		public void start() {
+			HashedWheelTimer.getDefault().schedule(this, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+
+		public void stop() {
+			stopped = true;
+		}
+
+		public void run() {
+			if (stopped || !beating()) return;
+			try {
+				Collection<InetSocketAddress> to = targets();
+				if (!to.isEmpty())
+					ConnectionPool.getDefault().multicast(to, message(), null);
+			} finally {
+				start(); // A heartbeat that stopped by accident would look like a failure
+			}
+		}
+
+		/**
+		 * @return whether to carry on; checked before every heartbeat
+		 */
+		protected boolean beating() {
+			return true;
+		}
+
+		/**
+		 * @return where this heartbeat goes
+		 */
+		protected abstract Collection<InetSocketAddress> targets();
+
+		protected abstract Message message();
+	}
+}
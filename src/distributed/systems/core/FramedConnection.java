@@ -0,0 +1,222 @@
+package distributed.systems.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking connection that exchanges frames of the form
+ * [int length][int tag][payload], where length covers the tag and the
+ * payload. The tag is free for the user of the connection (the
+ * {@link ConnectionPool} uses it to correlate requests and replies).
+ *
+ * All reads and writes happen on the owning {@link EventLoop};
+ * {@link #send(int, ByteBuffer, Object)} can be called from any thread.
+ */
+public class FramedConnection implements ISelectionHandler {
+
+	public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	private final SocketChannel channel;
+	private final EventLoop loop;
+	private final IFrameHandler handler;
+	private final Queue<OutboundFrame> outbound;
+
+	private SelectionKey key;
+	private ByteBuffer header;
+	private ByteBuffer body;
+	private volatile boolean closed = false;
+	private List<Object> undelivered;
+
+	private static class OutboundFrame {
+		final ByteBuffer buffer;
+		final Object attachment;
+		OutboundFrame(ByteBuffer buffer, Object attachment) {
+			this.buffer = buffer;
+			this.attachment = attachment;
+		}
+	}
+
+	public FramedConnection(SocketChannel channel, EventLoop loop, IFrameHandler handler) {
+		this.channel = channel;
+		this.loop = loop;
+		this.handler = handler;
+		this.outbound = new ConcurrentLinkedQueue<OutboundFrame>();
+		this.header = ByteBuffer.allocate(4);
+	}
+
+	/**
+	 * Opens a connection to a remote peer. Frames can be queued right away,
+	 * they are written once the connection is established.
+	 */
+	public static FramedConnection connect(InetSocketAddress address, EventLoop loop, IFrameHandler handler) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.socket().setKeepAlive(true);
+		FramedConnection connection = new FramedConnection(channel, loop, handler);
+		if (channel.connect(address))
+			loop.register(channel, SelectionKey.OP_READ, connection);
+		else
+			loop.register(channel, SelectionKey.OP_CONNECT, connection);
+		return connection;
+	}
+
+	/**
+	 * Registers an accepted connection with its loop and starts reading frames.
+	 */
+	public void start() {
+		loop.register(channel, SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Queues a frame for sending. The payload is copied behind the frame
+	 * header, so the caller may reuse the buffer once this returns.
+	 * @param tag
+	 * @param payload bytes between position and limit are sent
+	 * @param attachment handed back by {@link #drainUndelivered()} if the
+	 * connection closes before the frame was written
+	 * @return false if the connection was already closed and nothing was queued
+	 */
+	public boolean send(int tag, ByteBuffer payload, Object attachment) {
+		ByteBuffer buffer = ByteBuffer.allocate(8 + payload.remaining());
+		buffer.putInt(4 + payload.remaining());
+		buffer.putInt(tag);
+		buffer.put(payload);
+		buffer.flip();
+		OutboundFrame frame = new OutboundFrame(buffer, attachment);
+		outbound.add(frame);
+		if (closed && outbound.remove(frame))
+			return false;
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} catch (IOException e) {
+					close(e);
+				}
+			}
+		});
+		return true;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the attachments of the frames that were still queued when
+	 * the connection closed. Only meaningful after onClosed.
+	 */
+	public synchronized List<Object> drainUndelivered() {
+		List<Object> result = undelivered;
+		undelivered = null;
+		return result == null ? new ArrayList<Object>() : result;
+	}
+
+	@Override
+	public void onRegistered(SelectionKey key) throws IOException {
+		this.key = key;
+		flush();
+	}
+
+	@Override
+	public void onSelected(SelectionKey key) throws IOException {
+		if (key.isConnectable()) {
+			channel.finishConnect();
+			key.interestOps(SelectionKey.OP_READ);
+			flush();
+		}
+		if (key.isValid() && key.isReadable())
+			read();
+		if (key.isValid() && key.isWritable())
+			flush();
+	}
+
+	@Override
+	public void onClosed(IOException cause) {
+		close(cause);
+	}
+
+	public void close() {
+		loop.execute(new Runnable() {
+			public void run() {
+				close(null);
+			}
+		});
+	}
+
+	private void close(IOException cause) {
+		if (closed) return;
+		closed = true;
+		if (key != null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		synchronized (this) {
+			undelivered = new ArrayList<Object>();
+			OutboundFrame frame;
+			while ((frame = outbound.poll()) != null) {
+				if (frame.attachment != null)
+					undelivered.add(frame.attachment);
+			}
+		}
+		handler.onClosed(this, cause);
+	}
+
+	private void read() throws IOException {
+		while (true) {
+			if (body == null) {
+				if (channel.read(header) < 0) {
+					close(null);
+					return;
+				}
+				if (header.hasRemaining()) return;
+				header.flip();
+				int length = header.getInt();
+				header.clear();
+				if (length < 4 || length > MAX_FRAME_SIZE)
+					throw new IOException("Invalid frame length " + length);
+				body = ByteBuffer.allocate(length);
+			}
+			if (channel.read(body) < 0) {
+				close(null);
+				return;
+			}
+			if (body.hasRemaining()) return;
+			body.flip();
+			ByteBuffer frame = body;
+			body = null;
+			handler.onFrame(this, frame.getInt(), frame);
+			if (closed) return;
+		}
+	}
+
+	private void flush() throws IOException {
+		if (closed || key == null || !channel.isConnected()) return;
+		OutboundFrame frame;
+		while ((frame = outbound.peek()) != null) {
+			channel.write(frame.buffer);
+			if (frame.buffer.hasRemaining()) break;
+			outbound.poll();
+		}
+		if (key.isValid()) {
+			if (outbound.isEmpty())
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			else
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package distributed.systems.core;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs short tasks after a delay, all from one thread. Timeouts are
+ * hashed into a ring of buckets, one per tick; every tick the thread
+ * expires the bucket under the hand and moves on. Scheduling and
+ * cancelling are O(1) and cost no thread, which suits the many timeouts
+ * that are almost always cancelled before they fire.
+ *
+ * Deadlines are rounded up to whole ticks, so a task runs up to one tick
+ * late. Tasks must not block, they delay every other timeout.
+ */
+public class HashedWheelTimer {
+
+	public static final long DEFAULT_TICK_MILLIS = 10;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static HashedWheelTimer defaultTimer;
+
+	private static final int ST_INIT = 0;
+	private static final int ST_CANCELLED = 1;
+	private static final int ST_EXPIRED = 2;
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final long startTime;
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	private final AtomicLong scheduledCount = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+	private final AtomicLong cancelledCount = new AtomicLong();
+
+	/**
+	 * A scheduled task.
+	 */
+	public class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(ST_INIT);
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next, prev;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return false if the task already ran or was cancelled before
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(ST_INIT, ST_CANCELLED))
+				return false;
+			cancelledCount.incrementAndGet();
+			cancelled.add(this);
+			return true;
+		}
+
+		public boolean isExpired() {
+			return state.get() == ST_EXPIRED;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == ST_CANCELLED;
+		}
+	}
+
+	/* Doubly linked so a cancelled timeout is unlinked in O(1) */
+	private static class Bucket {
+		Timeout head, tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.prev = tail;
+			if (tail == null) head = timeout;
+			else tail.next = timeout;
+			tail = timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev == null) head = timeout.next;
+			else timeout.prev.next = timeout.next;
+			if (timeout.next == null) tail = timeout.prev;
+			else timeout.next.prev = timeout.prev;
+			timeout.next = timeout.prev = null;
+			timeout.bucket = null;
+		}
+	}
+
+	public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+		int size = 1;
+		while (size < wheelSize) size <<= 1;
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++)
+			wheel[i] = new Bucket();
+		this.mask = size - 1;
+		this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+		this.startTime = System.nanoTime();
+
+		Thread worker = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public static synchronized HashedWheelTimer getDefault() {
+		if (defaultTimer == null)
+			defaultTimer = new HashedWheelTimer("HashedWheelTimer", DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+		return defaultTimer;
+	}
+
+	/**
+	 * Runs the task on the timer thread once the delay has passed, unless
+	 * the returned timeout is cancelled first.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+		scheduledCount.incrementAndGet();
+		added.add(timeout);
+		return timeout;
+	}
+
+	public long getScheduledCount() {
+		return scheduledCount.get();
+	}
+
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	public long getCancelledCount() {
+		return cancelledCount.get();
+	}
+
+	/**
+	 * @return timeouts that have neither fired nor been cancelled
+	 */
+	public long getPendingCount() {
+		return scheduledCount.get() - expiredCount.get() - cancelledCount.get();
+	}
+
+	private void work() {
+		long tick = 0;
+		while (true) {
+			long sleepNanos = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+
+			Timeout timeout;
+			while ((timeout = cancelled.poll()) != null) {
+				if (timeout.bucket != null)
+					timeout.bucket.remove(timeout);
+			}
+			while ((timeout = added.poll()) != null) {
+				if (timeout.state.get() != ST_INIT) continue;
+				long ticks = timeout.deadline / tickNanos;
+				timeout.remainingRounds = (ticks - tick) / wheel.length;
+				wheel[(int)(Math.max(ticks, tick) & mask)].add(timeout);
+			}
+
+			Bucket bucket = wheel[(int)(tick & mask)];
+			timeout = bucket.head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0) {
+					bucket.remove(timeout);
+					if (timeout.state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+						expiredCount.incrementAndGet();
+						try {
+							timeout.task.run();
+						} catch (Throwable t) {
+							t.printStackTrace();
+						}
+					}
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+			tick++;
+		}
+	}
+}
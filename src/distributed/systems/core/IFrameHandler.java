@@ -0,0 +1,12 @@
+package distributed.systems.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the complete frames read by a {@link FramedConnection}.
+ */
+public interface IFrameHandler {
+	public void onFrame(FramedConnection connection, int tag, ByteBuffer payload);
+	public void onClosed(FramedConnection connection, IOException cause);
+}
@@ -0,0 +1,13 @@
+package distributed.systems.core;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Callback for channels registered on an {@link EventLoop}.
+ */
+public interface ISelectionHandler {
+	public void onRegistered(SelectionKey key) throws IOException;
+	public void onSelected(SelectionKey key) throws IOException;
+	public void onClosed(IOException cause);
+}
@@ -0,0 +1,270 @@
+package distributed.systems.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appends entries to a file from a writer thread of its own, so logging
+ * costs the caller no I/O, no formatting and no lock. Entries go into a
+ * ring buffer where every caller claims a slot with one atomic increment;
+ * the writer drains the buffer in batches, encodes them with the
+ * {@link Format} of the file and writes them to a file channel that stays
+ * open. Callers only wait when the ring is full.
+ *
+ * When the data is forced to disk is set with -Ddas.log.fsync: "none"
+ * leaves it to the operating system, "batch" forces after every batch
+ * written (group commit) and a number forces at most that often, in ms.
+ */
+public class LogAppender {
+
+	public static final int RING_SIZE = Integer.getInteger("das.log.ringSize", 8192);
+	public static final String FSYNC = System.getProperty("das.log.fsync", "none");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * How entries are laid out in the file. Only called from the writer
+	 * thread.
+	 */
+	public interface Format {
+		/**
+		 * Called once the file is open, before the first entry.
+		 * @return the position new entries are written at
+		 */
+		long open(FileChannel channel) throws IOException;
+
+		/**
+		 * @return the bytes of the entry, ready to read
+		 */
+		ByteBuffer encode(Object entry);
+
+		/**
+		 * Called after every batch is written to the channel.
+		 */
+		void written(FileChannel channel) throws IOException;
+
+		/**
+		 * Drops the entries before the given one from the file.
+		 * @return the channel to write to from now on
+		 */
+		FileChannel truncate(FileChannel channel, long first) throws IOException;
+	}
+
+	/* One line of text per entry */
+	public static final Format TEXT = new Format() {
+		public long open(FileChannel channel) throws IOException {
+			return channel.size();
+		}
+
+		public ByteBuffer encode(Object entry) {
+			return ByteBuffer.wrap((entry.toString() + "\n").getBytes(UTF8));
+		}
+
+		public void written(FileChannel channel) {
+		}
+
+		/*
+		 * Drops the first lines, moving the rest to the front of the file in
+		 * place. A crash meanwhile leaves some lines twice but loses none,
+		 * and LogMerger writes equal lines once.
+		 */
+		public FileChannel truncate(FileChannel channel, long first) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			long size = channel.size();
+			long start = 0, position = 0, lines = 0;
+			while (lines < first && position < size) {
+				buffer.clear();
+				int read = channel.read(buffer, position);
+				if (read <= 0) break;
+				for (int i = 0; i < read && lines < first; i++) {
+					if (buffer.get(i) == '\n') {
+						lines++;
+						start = position + i + 1;
+					}
+				}
+				position += read;
+			}
+			long from = start, to = 0;
+			while (from < size) {
+				buffer.clear();
+				int read = channel.read(buffer, from);
+				if (read <= 0) break;
+				buffer.flip();
+				while (buffer.hasRemaining())
+					to += channel.write(buffer, to);
+				from += read;
+			}
+			channel.truncate(to);
+			channel.position(to);
+			return channel;
+		}
+	};
+
+	private static final int BATCH = 1024;
+	private static final long IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+	private final File file;
+	private final Format format;
+	private final AtomicReferenceArray<Object> ring;
+	private final int mask;
+	/* Next slot to claim, next slot to drain, lines on disk or in the OS */
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	/* -1: never force, 0: every batch, otherwise the interval in ms */
+	private final long forceMillis;
+
+	private FileChannel channel;
+	/* Next slot the writer drains */
+	private long next = 0;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+	private long lastForce = System.currentTimeMillis();
+
+	public LogAppender(File file) {
+		this(file, TEXT);
+	}
+
+	public LogAppender(File file, Format format) {
+		this.file = file;
+		this.format = format;
+		int size = 1;
+		while (size < RING_SIZE) size <<= 1;
+		this.ring = new AtomicReferenceArray<Object>(size);
+		this.mask = size - 1;
+		if (FSYNC.equals("none")) forceMillis = -1;
+		else if (FSYNC.equals("batch")) forceMillis = 0;
+		else forceMillis = Long.parseLong(FSYNC);
+
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "LogAppender " + file.getName());
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				flush(1000);
+			}
+		}));
+	}
+
+	public void append(Object entry) {
+		long seq = tail.getAndIncrement();
+		while (seq - head.get() >= ring.length())
+			LockSupport.parkNanos(IDLE_NANOS); // Ring full, wait for the writer
+		ring.set((int)(seq & mask), entry);
+	}
+
+	/**
+	 * Waits until every entry appended so far has been written.
+	 */
+	public void flush() {
+		flush(Long.MAX_VALUE);
+	}
+
+	private void flush(long timeoutMillis) {
+		long target = tail.get();
+		long start = System.currentTimeMillis();
+		while (written.get() < target && System.currentTimeMillis() - start < timeoutMillis)
+			LockSupport.parkNanos(IDLE_NANOS);
+	}
+
+	/**
+	 * Drops the entries before the given one from the file, see
+	 * {@link Format#truncate(FileChannel, long)}. The writer waits
+	 * meanwhile; callers of {@link #append(Object)} only once the ring is
+	 * full.
+	 */
+	public synchronized void truncate(long first) throws IOException {
+		channel = format.truncate(channel(), first);
+	}
+
+	private void drain() {
+		while (true) {
+			int drained;
+			synchronized (this) {
+				drained = drainBatch();
+			}
+			if (drained == 0)
+				LockSupport.parkNanos(IDLE_NANOS);
+		}
+	}
+
+	/**
+	 * Writes the entries waiting in the ring, up to a batch.
+	 * @return the number of entries written
+	 */
+	private int drainBatch() {
+		int drained = 0;
+		Object entry;
+		while (drained < BATCH && (entry = ring.get((int)(next & mask))) != null) {
+			ring.set((int)(next & mask), null);
+			head.lazySet(++next);
+			try {
+				channel(); // The format is opened before the first entry
+				put(format.encode(entry));
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (RuntimeException e) {
+				e.printStackTrace(); // Drop the entry, keep the writer
+			}
+			drained++;
+		}
+		if (drained == 0) return 0;
+		try {
+			write();
+			format.written(channel());
+			long now = System.currentTimeMillis();
+			if (forceMillis == 0 || (forceMillis > 0 && now - lastForce >= forceMillis)) {
+				channel().force(false);
+				lastForce = now;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			buffer.clear();
+		}
+		written.set(next);
+		return drained;
+	}
+
+	private void put(ByteBuffer bytes) {
+		try {
+			if (bytes.remaining() > buffer.remaining()) write();
+			if (bytes.remaining() > buffer.capacity()) {
+				while (bytes.hasRemaining())
+					channel().write(bytes);
+			} else {
+				buffer.put(bytes);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			buffer.clear();
+		}
+	}
+
+	private void write() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel().write(buffer);
+		buffer.clear();
+	}
+
+	private FileChannel channel() throws IOException {
+		if (channel == null) {
+			FileChannel opened = new RandomAccessFile(file, "rw").getChannel();
+			opened.position(format.open(opened));
+			channel = opened;
+		}
+		return channel;
+	}
+}
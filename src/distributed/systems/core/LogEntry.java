@@ -3,6 +3,8 @@ package distributed.systems.core;
 import java.io.Serializable;
 import java.net.InetSocketAddress;
 
+import distributed.systems.das.units.Unit.UnitType;
+
 
 public class LogEntry implements Serializable {
 
@@ -12,7 +14,11 @@ public class LogEntry implements Serializable {
 	private LogEntryType event;
 	private Position from, to;
 	private int value = -1;	
-	private Integer[] clock;
+	private int[] clock;
+	/* The unit spawned, so that replaying the log can spawn it again */
+	private UnitType unitType;
+	private int maxHitPoints, hitPoints, attackPoints;
+	private InetSocketAddress battlefield;
 		
 	public static class Position {
 		int x, y;
@@ -27,7 +33,7 @@ public class LogEntry implements Serializable {
 	 * @param origin
 	 * @param clock
 	 */
-	public LogEntry(Integer[] clock, LogEntryType event, InetSocketAddress origin){
+	public LogEntry(int[] clock, LogEntryType event, InetSocketAddress origin){
 		this.setOrigin(origin);
 		this.setEvent(event);
 		this.setClock(clock);
@@ -40,7 +46,7 @@ public class LogEntry implements Serializable {
 	 * @param to
 	 * @param clock
 	 */
-	public LogEntry(Integer[] clock, LogEntryType event, InetSocketAddress origin, Position to){
+	public LogEntry(int[] clock, LogEntryType event, InetSocketAddress origin, Position to){
 		this.setOrigin(origin);
 		this.setEvent(event);
 		this.setClock(clock);
@@ -55,7 +61,7 @@ public class LogEntry implements Serializable {
 	 * @param to
 	 * @param clock
 	 */
-	public LogEntry(Integer[] clock, LogEntryType event, InetSocketAddress origin, Position from, Position to){
+	public LogEntry(int[] clock, LogEntryType event, InetSocketAddress origin, Position from, Position to){
 		this.setOrigin(origin);
 		this.setEvent(event);
 		this.setClock(clock);
@@ -72,7 +78,7 @@ public class LogEntry implements Serializable {
 	 * @param amount
 	 * @param clock
 	 */
-	public LogEntry(Integer[] clock, LogEntryType event, InetSocketAddress origin, Position from, Position to, int amount){
+	public LogEntry(int[] clock, LogEntryType event, InetSocketAddress origin, Position from, Position to, int amount){
 		this.setOrigin(origin);
 		this.setEvent(event);
 		this.setClock(clock);
@@ -113,14 +119,49 @@ public class LogEntry implements Serializable {
 		this.event = event;
 	}
 
-	public Integer[] getClock() {
+	public int[] getClock() {
 		return clock;
 	}
 
-	public void setClock(Integer[] clock) {
+	public void setClock(int[] clock) {
 		this.clock = clock;
 	}
 
+	/**
+	 * Records the unit of a spawn.
+	 * @param battlefield the battlefield that serves the unit
+	 */
+	public void setUnit(UnitType type, int maxHitPoints, int hitPoints, int attackPoints, InetSocketAddress battlefield) {
+		this.unitType = type;
+		this.maxHitPoints = maxHitPoints;
+		this.hitPoints = hitPoints;
+		this.attackPoints = attackPoints;
+		this.battlefield = battlefield;
+	}
+
+	/**
+	 * @return the type of the unit spawned, or null if the entry has no unit
+	 */
+	public UnitType getUnitType() {
+		return unitType;
+	}
+
+	public int getMaxHitPoints() {
+		return maxHitPoints;
+	}
+
+	public int getHitPoints() {
+		return hitPoints;
+	}
+
+	public int getAttackPoints() {
+		return attackPoints;
+	}
+
+	public InetSocketAddress getBattlefield() {
+		return battlefield;
+	}
+
 	public InetSocketAddress getOrigin() {
 		return origin;
 	}
@@ -136,13 +177,11 @@ public class LogEntry implements Serializable {
 		if(clock != null){
 			
 			// Clock
+			// Clock, as id:counter pairs
 			s += "[";
-			for(int i = 0; i< clock.length; i++) {
-				if(i==clock.length-1) {
-					s+= String.format("%4d",clock[i]);
-				} else {
-					s+= String.format("%4d,",clock[i]);
-				}
+			for(int i = 0; i< clock.length; i += 2) {
+				if(i > 0) s += ", ";
+				s+= String.format("%d:%4d",clock[i],clock[i + 1]);
 			}
 			s+= "]";
 			
@@ -21,6 +21,9 @@ public enum LogEntryType implements Serializable {
 	DISCONNECTED_BF,
 	
 	// unknown log
-	UNKNOWN, DISCONNECTED_UNIT
+	UNKNOWN, DISCONNECTED_UNIT,
+
+	// the point of the log a snapshot was taken at, numbered by the value
+	SNAPSHOT
 
 }
@@ -2,26 +2,24 @@ package distributed.systems.core;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Collections;
 
 public class LogManager {
 
+	/* Whether entries are also logged as text as they happen */
+	public static final boolean TEXT_LOG = Boolean.getBoolean("das.log.text");
+
 	private String filename;
 	private int[][] orderedClocks;
 	private String[] orderedLogs;
+	private LogAppender binary;
+	private LogAppender text;
 
 	public int[][] getOrderedClocks() { return orderedClocks; }
 	public String[] getOrderedLogs() { return orderedLogs; }
@@ -33,155 +31,148 @@ public class LogManager {
 		orderedLogs = null;
 	}
 
-	public synchronized void writeToBinary (Object obj, boolean append){
-		File file = new File (filename);
-		ObjectOutputStream out = null;
-
-		try{
-			if (!file.exists () || !append) 
-				out = new ObjectOutputStream (new FileOutputStream (filename));
-			else out = new AppendableObjectOutputStream (new FileOutputStream (filename, append));
-			out.writeObject(obj);
-			out.flush ();
-		}catch (Exception e){
-			e.printStackTrace ();
-		}finally{
-			try{
-				if (out != null) out.close ();
-			}catch (Exception e){
-				e.printStackTrace ();
+	/**
+	 * Queues an entry for the binary log, see {@link BinaryLog}. The entry
+	 * is always appended.
+	 */
+	public void writeToBinary (Object obj, boolean append){
+		binary().append(obj);
+	}
+
+	/**
+	 * Logs an entry in the binary log, and in the text log as well with
+	 * -Ddas.log.text=true.
+	 */
+	public void write(LogEntry entry) {
+		binary().append(entry);
+		if (TEXT_LOG) text().append(entry);
+	}
+
+	/**
+	 * Drops the records before the given one from the binary log, see
+	 * {@link BinaryLog#truncate(java.nio.channels.FileChannel, long)}, and
+	 * the lines of the same entries from the text log when there is one.
+	 */
+	public void truncateBinaryLog(long first) throws IOException {
+		long lines = 0;
+		if (TEXT_LOG) {
+			// Every entry is a record and a line; origin records have no line
+			MappedLogReader reader = openBinaryLog();
+			try {
+				MappedLogReader.Record record = reader.view();
+				for (long i = 0; i < Math.min(first, reader.size()); i++) {
+					if (!record.moveTo(i).isOrigin()) lines++;
+				}
+			} finally {
+				reader.close();
 			}
 		}
+		binary().truncate(first);
+		if (TEXT_LOG) text().truncate(lines);
 	}
 
 	public ArrayList<LogEntry> readFromBinaryFile (){
-		File file = new File (filename);
 		ArrayList<LogEntry> recoveredLog = new ArrayList<LogEntry>();
-		if (file.exists ()){
-			ObjectInputStream ois = null;
-			try{
-				ois = new ObjectInputStream (new FileInputStream (filename));
-				while (true){
-
-					LogEntry j = (LogEntry)ois.readObject ();
-					recoveredLog.add(j);
-				}
-			}catch (EOFException e){
-
-			}catch (Exception e){
-				e.printStackTrace ();
-			}finally{
-				try{
-					if (ois != null) ois.close();
-				}catch (IOException e){
-					e.printStackTrace ();
-				}
+		if (!new File(filename).exists()) return recoveredLog;
+		try {
+			MappedLogReader reader = openBinaryLog();
+			try {
+				recoveredLog = reader.entries();
+			} finally {
+				reader.close();
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 		return recoveredLog;
 	}
 
-	//Gets the Log ordered by clocks
+	/**
+	 * @return a reader on everything logged so far, to be closed by the
+	 * caller
+	 */
+	public MappedLogReader openBinaryLog() throws IOException {
+		flush();
+		return new MappedLogReader(new File(filename));
+	}
+
+	/**
+	 * Orders the text log causally, see {@link CausalOrder}. Lines with
+	 * the same clock keep their text order, so every run gives the same
+	 * result.
+	 */
 	public void readOrderedLog (){
 
 		cleanupStructures();
-		HashMap<int[], String> unorderedLogMap= readLogFromTextfile();
-
-		Set<int[]> clock = unorderedLogMap.keySet();
-
-		int clocks[][] = new int[clock.size()][clock.iterator().next().length];
-		int index = 0;
-		for(int[] c : clock) {
-			clocks[index] = c;
-			index++;
+		ArrayList<String> lines = readLogFromTextfile();
+
+		OrderedLine[] entries = new OrderedLine[lines.size()];
+		for (int i = 0; i < entries.length; i++)
+			entries[i] = new OrderedLine(lines.get(i));
+		lines = null;
+		Arrays.sort(entries);
+
+		int[][] clocks = new int[entries.length][];
+		String[] strings = new String[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			clocks[i] = entries[i].clock;
+			strings[i] = entries[i].text;
 		}
-
-		String[] strings = Arrays.asList(unorderedLogMap.values().toArray()).toArray(new String[unorderedLogMap.values().toArray().length]);
-
-		boolean tradeMade, atLeastOne;
-		if(clocks.length == 0)
-			return;
-		int clockLenght = clocks[0].length;
-
-		//VectorialClock tmpClock = null;
-		int[] tmpClock = null;
-		String aux = null;
-
-		do {
-			tradeMade = false;
-			for (int i = 0; i < clocks.length - 1; i++) {
-				atLeastOne = false;
-				for (int j = 0; j < clockLenght; j++) {
-					if (clocks[i][j] >= clocks[i + 1][j]) {
-						if(clocks[i][j] > clocks[i + 1][j])
-							atLeastOne = true;
-						if (j == clockLenght-1 && atLeastOne) {
-							tmpClock = clocks[i];
-							aux = strings[i];
-							clocks[i] = clocks[i + 1];
-							strings[i]= strings[i+1];
-							clocks[i + 1] = tmpClock;
-							strings[i+1] = aux;
-							tradeMade = true;
-						}
-					} else {
-						j=clockLenght;
-					}
-				}
-			}
-		} while (tradeMade);
-
 		orderedClocks = clocks;
 		orderedLogs = strings;
 
 	}
 
-	private static class AppendableObjectOutputStream extends ObjectOutputStream {
-		public AppendableObjectOutputStream(OutputStream out) throws IOException {
-			super(out);
-		}
-
+	/**
+	 * Queues a line for the text log, see {@link LogAppender}. The line is
+	 * always appended.
+	 */
+	public void writeAsText (Object obj, boolean append){
+		text().append(obj);
+	}
 
-		@Override
-		protected void writeStreamHeader() throws IOException {
-			reset();
+	/**
+	 * Waits until every entry queued for the logs has been written.
+	 */
+	public void flush() {
+		LogAppender binary, text;
+		synchronized (this) {
+			binary = this.binary;
+			text = this.text;
 		}
+		if (binary != null) binary.flush();
+		if (text != null) text.flush();
 	}
 
-	public synchronized void writeAsText (Object obj, boolean append){
-		try {
-
-			File file = new File(filename+".txt");
-
-			FileWriter fw = new FileWriter(file,true);
-			BufferedWriter bw = new BufferedWriter(fw);
-
-			bw.write(obj.toString());
-			bw.newLine();
-			bw.close();
+	private synchronized LogAppender binary() {
+		if (binary == null)
+			binary = new LogAppender(new File(filename), new BinaryLog(new File(filename)));
+		return binary;
+	}
 
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	private synchronized LogAppender text() {
+		if (text == null)
+			text = new LogAppender(new File(filename+".txt"));
+		return text;
 	}
 
-	public synchronized HashMap<int[], String> readLogFromTextfile (){
-		int clock[];
-		HashMap<int[], String> log= new HashMap<int[], String>();
+	/**
+	 * @return the lines of the text log, in the order they were written
+	 */
+	public ArrayList<String> readLogFromTextfile (){
+		flush();
+		ArrayList<String> log = new ArrayList<String>();
+		if (!TEXT_LOG) {
+			for (LogEntry entry : readFromBinaryFile())
+				log.add(entry.toString());
+			return log;
+		}
 		try {
 			File file = new File(filename+".txt");
 			BufferedReader br = new BufferedReader(new FileReader(file));
 			String line;
 			while ((line = br.readLine()) != null) {
-				// process the line.
-				String[] s1 = line.split("]");
-				String s3 = s1[0].substring(1);
-				String[] s2 = s3.split(",");
-				clock = new int[s2.length];
-				for(int i = 0; i< s2.length; i++){
-					clock[i] = Integer.parseInt(s2[i].trim());
-				}
-				log.put(clock, line);
+				if (!line.isEmpty()) log.add(line);
 			}
 			br.close();
 		} catch (IOException e) {
@@ -190,6 +181,40 @@ public class LogManager {
 		return log;
 	}
 
+	/**
+	 * Writes the log in causal order without holding it in memory,
+	 * see {@link LogMerger}.
+	 * @param extensionToFilename
+	 */
+	public void writeOrderedLog(String extensionToFilename) {
+		flush();
+		File log = new File(TEXT_LOG ? filename+".txt" : filename);
+		try {
+			LogMerger.merge(Collections.singletonList(log), new File(filename+extensionToFilename));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the binary log as text, one entry per line.
+	 */
+	public void exportText(File output) throws IOException {
+		MappedLogReader reader = openBinaryLog();
+		BufferedWriter bw = new BufferedWriter(new FileWriter(output));
+		try {
+			MappedLogReader.Record record = reader.view();
+			for (long i = 0; i < reader.size(); i++) {
+				if (record.moveTo(i).isOrigin()) continue;
+				bw.write(record.toLogEntry().toString());
+				bw.newLine();
+			}
+		} finally {
+			bw.close();
+			reader.close();
+		}
+	}
+
 	/**
 	 * The ordered logs must be ready to use. Check readOrderedLog function.
 	 * @param extensionToFilename
@@ -239,12 +264,7 @@ public class LogManager {
 				port = Integer.parseInt(s3[1]);
 			}
 
-			s1[0].replace("[","");
-			String[] s4 = s1[0].split(",");
-			clock = new int[s4.length];
-			for(int j = 0; i< s4.length; i++){
-				clock[j] = Integer.parseInt(s4[j].trim());
-			}
+			clock = VectorialClock.parse(s1[0] + "]");
 
 			//Create instance
 			entries[i] = new LogEntryText(hostname, port, event, clock, jobID);
@@ -0,0 +1,210 @@
+package distributed.systems.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the logs of several battlefields into one text log in causal
+ * order (see {@link CausalOrder}), with memory bounded by
+ * {@link #RUN_SIZE} lines however long the logs are. A log can be a text
+ * log or a binary one written by {@link BinaryLog}, whose entries are
+ * read as the lines they print as.
+ *
+ * The logs are read in runs of that many lines; each run is sorted and
+ * spilled to a temporary file next to the output. The runs are then
+ * merged, at most {@link #FAN_IN} at a time, by always taking the
+ * smallest of their current lines. An event every battlefield logged
+ * with the same clock shows up once in the output.
+ *
+ * Usage: LogMerger &lt;output&gt; &lt;log&gt; [&lt;log&gt; ...], for
+ * example LogMerger game_ordered localhost_41000 localhost_42000
+ */
+public class LogMerger {
+
+	/* Lines sorted in memory at once */
+	public static final int RUN_SIZE = Integer.getInteger("das.log.runSize", 100000);
+	/* Runs merged at once */
+	public static final int FAN_IN = Integer.getInteger("das.log.fanIn", 64);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* The current line of a run */
+	private static class Head implements Comparable<Head> {
+		final BufferedReader reader;
+		OrderedLine line;
+
+		Head(BufferedReader reader) {
+			this.reader = reader;
+		}
+
+		/* @return false at the end of the run */
+		boolean advance() throws IOException {
+			String text;
+			do {
+				text = reader.readLine();
+			} while (text != null && text.isEmpty());
+			line = text == null ? null : new OrderedLine(text);
+			return line != null;
+		}
+
+		public int compareTo(Head other) {
+			return line.compareTo(other.line);
+		}
+	}
+
+	public static void merge(List<File> logs, File output) throws IOException {
+		merge(logs, output, RUN_SIZE, FAN_IN);
+	}
+
+	static void merge(List<File> logs, File output, int runSize, int fanIn) throws IOException {
+		File dir = output.getAbsoluteFile().getParentFile();
+		List<File> runs = sortRuns(logs, dir, runSize);
+		try {
+			while (runs.size() > fanIn) {
+				List<File> merged = new ArrayList<File>();
+				for (int i = 0; i < runs.size(); i += fanIn) {
+					List<File> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+					File run = File.createTempFile("das-run", ".txt", dir);
+					merged.add(run);
+					mergeRuns(group, run);
+					delete(group);
+				}
+				runs = merged;
+			}
+			mergeRuns(runs, output);
+		} finally {
+			delete(runs);
+		}
+	}
+
+	/**
+	 * @return the sorted runs, as temporary files
+	 */
+	private static List<File> sortRuns(List<File> logs, File dir, int runSize) throws IOException {
+		List<File> runs = new ArrayList<File>();
+		ArrayList<OrderedLine> run = new ArrayList<OrderedLine>();
+		try {
+			for (File log : logs) {
+				if (MappedLogReader.isLog(log)) {
+					MappedLogReader reader = new MappedLogReader(log);
+					try {
+						MappedLogReader.Record record = reader.view();
+						for (long i = 0; i < reader.size(); i++) {
+							if (!record.moveTo(i).isOrigin())
+								add(record.toLogEntry().toString(), run, runs, dir, runSize);
+						}
+					} finally {
+						reader.close();
+					}
+					continue;
+				}
+				BufferedReader reader = open(log);
+				try {
+					String text;
+					while ((text = reader.readLine()) != null) {
+						if (!text.isEmpty())
+							add(text, run, runs, dir, runSize);
+					}
+				} finally {
+					reader.close();
+				}
+			}
+			if (!run.isEmpty() || runs.isEmpty())
+				runs.add(spill(run, dir));
+		} catch (IOException e) {
+			delete(runs);
+			throw e;
+		}
+		return runs;
+	}
+
+	/* Adds a line to the current run, spilling the run once it is full */
+	private static void add(String text, ArrayList<OrderedLine> run, List<File> runs, File dir, int runSize) throws IOException {
+		run.add(new OrderedLine(text));
+		if (run.size() >= runSize) {
+			runs.add(spill(run, dir));
+			run.clear();
+		}
+	}
+
+	private static File spill(ArrayList<OrderedLine> run, File dir) throws IOException {
+		Collections.sort(run);
+		File file = File.createTempFile("das-run", ".txt", dir);
+		file.deleteOnExit();
+		BufferedWriter writer = create(file);
+		try {
+			for (OrderedLine line : run) {
+				writer.write(line.text);
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	private static void mergeRuns(List<File> runs, File output) throws IOException {
+		PriorityQueue<Head> heads = new PriorityQueue<Head>(Math.max(1, runs.size()));
+		List<BufferedReader> readers = new ArrayList<BufferedReader>();
+		BufferedWriter writer = null;
+		try {
+			for (File run : runs) {
+				BufferedReader reader = open(run);
+				readers.add(reader);
+				Head head = new Head(reader);
+				if (head.advance()) heads.add(head);
+			}
+			writer = create(output);
+			String last = null;
+			while (!heads.isEmpty()) {
+				Head head = heads.poll();
+				// Equal lines come out next to each other
+				if (!head.line.text.equals(last)) {
+					writer.write(head.line.text);
+					writer.newLine();
+					last = head.line.text;
+				}
+				if (head.advance()) heads.add(head);
+			}
+		} finally {
+			for (BufferedReader reader : readers)
+				reader.close();
+			if (writer != null) writer.close();
+		}
+	}
+
+	private static BufferedReader open(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+	}
+
+	private static BufferedWriter create(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+	}
+
+	private static void delete(List<File> files) {
+		for (File file : files)
+			file.delete();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: LogMerger <output> <log> [<log> ...]");
+			System.exit(1);
+		}
+		List<File> logs = new ArrayList<File>();
+		for (int i = 1; i < args.length; i++)
+			logs.add(new File(args[i]));
+		merge(logs, new File(args[0]));
+	}
+}
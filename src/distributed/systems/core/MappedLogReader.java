@@ -0,0 +1,248 @@
+package distributed.systems.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import distributed.systems.das.units.Unit.UnitType;
+
+import static distributed.systems.core.BinaryLog.*;
+
+/**
+ * Reads a log written by {@link BinaryLog} through memory mappings of the
+ * file. Records are looked at in place with a {@link Record} view, which
+ * can be moved to any record without copying it, so scanning a log costs
+ * little more than the page faults.
+ *
+ * Only the records that were complete when the reader was opened are
+ * seen.
+ */
+public class MappedLogReader implements Closeable {
+
+	/* Bytes per mapping; a mapping can not go past 2GB */
+	private static final int REGION = 1 << 30;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final RandomAccessFile file;
+	private final int clockWidth;
+	private final int recordSize;
+	private final long count;
+	private final int perRegion;
+	private final MappedByteBuffer[] regions;
+	private final ArrayList<InetSocketAddress> origins = new ArrayList<InetSocketAddress>();
+
+	public MappedLogReader(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = this.file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining() && channel.read(header, header.position()) > 0);
+			if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getShort(H_VERSION) != VERSION)
+				throw new IOException("Not a battlefield log: " + file);
+			clockWidth = header.getShort(H_CLOCK_WIDTH);
+			recordSize = header.getInt(H_RECORD_SIZE);
+			count = Math.min(header.getLong(H_COUNT), (channel.size() - HEADER_SIZE) / recordSize);
+
+			perRegion = REGION / recordSize;
+			regions = new MappedByteBuffer[(int)((count + perRegion - 1) / perRegion)];
+			for (int i = 0; i < regions.length; i++) {
+				long first = (long)i * perRegion;
+				long records = Math.min(perRegion, count - first);
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * recordSize, records * recordSize);
+			}
+
+			Record record = view();
+			for (long i = 0; i < count; i++) {
+				if (record.moveTo(i).isOrigin()) {
+					byte[] host = new byte[record.buffer.get(record.offset + PAIRS) & 0xff];
+					for (int b = 0; b < host.length; b++)
+						host[b] = record.buffer.get(record.offset + CLOCK + b);
+					origins.add(new InetSocketAddress(new String(host, UTF8), record.value()));
+				}
+			}
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return whether the file starts like a log written by {@link BinaryLog}
+	 */
+	public static boolean isLog(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			return in.length() >= HEADER_SIZE && in.readInt() == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the number of records, origin records included
+	 */
+	public long size() {
+		return count;
+	}
+
+	public int clockWidth() {
+		return clockWidth;
+	}
+
+	public int recordSize() {
+		return recordSize;
+	}
+
+	/**
+	 * @return the number of origins defined
+	 */
+	public int origins() {
+		return origins.size();
+	}
+
+	public InetSocketAddress origin(int id) {
+		return id == NO_ORIGIN ? null : origins.get(id);
+	}
+
+	/**
+	 * @return a view on the first record
+	 */
+	public Record view() {
+		return new Record();
+	}
+
+	/**
+	 * @return the log entries, without the origin records
+	 */
+	public ArrayList<LogEntry> entries() {
+		ArrayList<LogEntry> entries = new ArrayList<LogEntry>();
+		Record record = view();
+		for (long i = 0; i < count; i++) {
+			if (!record.moveTo(i).isOrigin())
+				entries.add(record.toLogEntry());
+		}
+		return entries;
+	}
+
+	/**
+	 * Looks for an entry from the end of the log back.
+	 * @return the index of the last entry of the event with the value, or
+	 * -1 if there is none
+	 */
+	public long lastIndexOf(LogEntryType event, int value) {
+		Record record = view();
+		for (long i = count - 1; i >= 0; i--) {
+			record.moveTo(i);
+			if (!record.isOrigin() && record.event() == event && record.value() == value)
+				return i;
+		}
+		return -1;
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * A record of the log, read in place.
+	 */
+	public class Record {
+		private ByteBuffer buffer;
+		private int offset;
+
+		public Record moveTo(long index) {
+			if (index < 0 || index >= count)
+				throw new IndexOutOfBoundsException("Record " + index + " of " + count);
+			buffer = regions[(int)(index / perRegion)];
+			offset = (int)(index % perRegion) * recordSize;
+			return this;
+		}
+
+		/**
+		 * @return whether the record defines an origin rather than being an
+		 * entry
+		 */
+		public boolean isOrigin() {
+			return buffer.get(offset + EVENT) == ORIGIN_RECORD;
+		}
+
+		public LogEntryType event() {
+			return LogEntryType.values()[buffer.get(offset + EVENT)];
+		}
+
+		public InetSocketAddress origin() {
+			return MappedLogReader.this.origin(buffer.getShort(offset + ORIGIN) & 0xffff);
+		}
+
+		public int fromX() { return buffer.getShort(offset + FROM_X); }
+		public int fromY() { return buffer.getShort(offset + FROM_Y); }
+		public int toX() { return buffer.getShort(offset + TO_X); }
+		public int toY() { return buffer.getShort(offset + TO_Y); }
+
+		public int value() {
+			return buffer.getInt(offset + VALUE);
+		}
+
+		/**
+		 * @return the type of the unit spawned, or null if the record has
+		 * no unit
+		 */
+		public UnitType unitType() {
+			byte type = buffer.get(offset + UNIT_TYPE);
+			return type < 0 ? null : UnitType.values()[type];
+		}
+
+		public int maxHitPoints() { return buffer.getShort(offset + MAX_HIT_POINTS); }
+		public int hitPoints() { return buffer.getShort(offset + HIT_POINTS); }
+		public int attackPoints() { return buffer.getShort(offset + ATTACK_POINTS); }
+
+		/**
+		 * @return the battlefield that serves the unit spawned
+		 */
+		public InetSocketAddress battlefield() {
+			return MappedLogReader.this.origin(buffer.getShort(offset + BATTLEFIELD) & 0xffff);
+		}
+
+		/**
+		 * @return the number of id/counter pairs of the clock
+		 */
+		public int clockSize() {
+			return buffer.get(offset + PAIRS) & 0xff;
+		}
+
+		public int clockId(int i) {
+			return buffer.getInt(offset + CLOCK + 8 * i);
+		}
+
+		public int clockCounter(int i) {
+			return buffer.getInt(offset + CLOCK + 8 * i + 4);
+		}
+
+		/**
+		 * @return a copy of the clock as id/counter pairs
+		 */
+		public int[] clock() {
+			int[] clock = new int[2 * clockSize()];
+			for (int i = 0; i < clock.length; i++)
+				clock[i] = buffer.getInt(offset + CLOCK + 4 * i);
+			return clock;
+		}
+
+		public LogEntry toLogEntry() {
+			LogEntry entry = new LogEntry(clock(), event(), origin());
+			if (fromX() >= 0) entry.setFrom(new LogEntry.Position(fromX(), fromY()));
+			if (toX() >= 0) entry.setTo(new LogEntry.Position(toX(), toY()));
+			entry.setValue(value());
+			if (unitType() != null)
+				entry.setUnit(unitType(), maxHitPoints(), hitPoints(), attackPoints(), battlefield());
+			return entry;
+		}
+	}
+}
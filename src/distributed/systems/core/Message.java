@@ -1,9 +1,11 @@
 package distributed.systems.core;
 
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.Map;
 
 import distributed.systems.das.units.Unit;
 
@@ -28,6 +30,21 @@ public class Message implements Serializable {
 		attributes.put(key, value);
 	}
 	
+	/**
+	 * Reads a map of battlefield addresses to numbers, such as the list of
+	 * battlefields or their ids, checking every entry.
+	 * @return a copy of the map, or null if there is none
+	 * @throws ClassCastException if the value is not such a map
+	 */
+	public HashMap<InetSocketAddress, Integer> getAddressMap(String key) {
+		Map<?, ?> value = (Map<?, ?>)attributes.get(key);
+		if (value == null) return null;
+		HashMap<InetSocketAddress, Integer> map = new HashMap<InetSocketAddress, Integer>();
+		for (Map.Entry<?, ?> entry : value.entrySet())
+			map.put((InetSocketAddress)entry.getKey(), (Integer)entry.getValue());
+		return map;
+	}
+
 	public void put(String key, int value) {
 		attributes.put(key, Integer.valueOf(value));
 	}
@@ -51,5 +68,24 @@ public class Message implements Serializable {
 		
 	}
 
+	/**
+	 * Encodes the message into the payload of a transport frame.
+	 * @see MessageCodec#encode(Message)
+	 */
+	public static ByteBuffer encode(Message message) throws IOException {
+		return MessageCodec.encode(message);
+	}
+
+	/**
+	 * Reads a message back from a frame payload produced by {@link #encode(Message)}.
+	 */
+	public static Message decode(ByteBuffer frame) throws IOException {
+		return MessageCodec.decode(frame);
+	}
+
+	Map<String, Serializable> getAttributes() {
+		return attributes;
+	}
+
 
 }
@@ -0,0 +1,456 @@
+package distributed.systems.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import distributed.systems.das.MessageRequest;
+import distributed.systems.das.StateDelta;
+import distributed.systems.das.units.Unit.UnitType;
+
+/**
+ * Binary wire format for {@link Message}.
+ *
+ * The attributes used by the game protocol have a fixed type and a one
+ * byte key, so they are written without their name or class descriptor:
+ * integers as zig-zag varints, addresses as raw IP bytes plus port,
+ * vector clocks as varint id gaps and counters read straight from their
+ * int array, the request as its ordinal, the battlefield list as
+ * address/counter pairs, game state deltas field by field and batched
+ * messages one after the other. Any other attribute, or a known one
+ * holding an unexpected type, is written with its name and a type byte,
+ * falling back to Java serialization only for values the codec has no
+ * encoding for (the game state map). Units travel as their fields.
+ *
+ * Encoding goes into a per-thread buffer that is reused between calls.
+ */
+public class MessageCodec {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* Value types */
+	private static final byte T_NULL = 0;
+	private static final byte T_INT = 1;
+	private static final byte T_BOOLEAN = 2;
+	private static final byte T_STRING = 3;
+	private static final byte T_ADDRESS = 4;
+	private static final byte T_INT_ARRAY = 5;
+	private static final byte T_REQUEST = 6;
+	private static final byte T_OBJECT = 7;
+	private static final byte T_ADDRESS_MAP = 8;
+	private static final byte T_DELTAS = 9;
+	private static final byte T_MESSAGES = 10;
+	private static final byte T_CLOCK = 11;
+
+	/* Key byte reserved for attributes that are not in the schema */
+	private static final byte K_DYNAMIC = 0;
+
+	private static final String[] KEYS = new String[128];
+	private static final byte[] KEY_TYPES = new byte[128];
+	private static final Map<String, Byte> KEY_IDS = new HashMap<String, Byte>();
+
+	static {
+		int k = 1;
+		k = field(k, "request", T_REQUEST);
+		k = field(k, "x", T_INT);
+		k = field(k, "y", T_INT);
+		k = field(k, "id", T_INT);
+		k = field(k, "damage", T_INT);
+		k = field(k, "healed", T_INT);
+		k = field(k, "serverMessageID", T_INT);
+		k = field(k, "sync", T_BOOLEAN);
+		k = field(k, "ack", T_BOOLEAN);
+		k = field(k, "confirm", T_BOOLEAN);
+		k = field(k, "succeded", T_BOOLEAN);
+		k = field(k, "address", T_ADDRESS);
+		k = field(k, "serverAddress", T_ADDRESS);
+		k = field(k, "bfAddress", T_ADDRESS);
+		k = field(k, "unitAddress", T_ADDRESS);
+		k = field(k, "vclock", T_CLOCK);
+		k = field(k, "origin", T_STRING);
+		k = field(k, "fromX", T_INT);
+		k = field(k, "fromY", T_INT);
+		k = field(k, "unitType", T_INT);
+		k = field(k, "maxHitPoints", T_INT);
+		k = field(k, "hitPoints", T_INT);
+		k = field(k, "attackPoints", T_INT);
+		k = field(k, "unitBattlefield", T_ADDRESS);
+		k = field(k, "gamestate", T_OBJECT);
+		k = field(k, "bfList", T_ADDRESS_MAP);
+		k = field(k, "tick", T_INT);
+		k = field(k, "baseTick", T_INT);
+		k = field(k, "deltas", T_DELTAS);
+		k = field(k, "landmarks", T_DELTAS);
+		k = field(k, "action", T_REQUEST);
+		k = field(k, "messages", T_MESSAGES);
+		k = field(k, "sequence", T_INT);
+		k = field(k, "bfId", T_INT);
+		k = field(k, "bfIds", T_ADDRESS_MAP);
+		k = field(k, "chunk", T_INT);
+		k = field(k, "chunks", T_INT);
+		k = field(k, "owners", T_ADDRESS_MAP);
+		k = field(k, "epoch", T_INT);
+		k = field(k, "positions", T_ADDRESS_MAP);
+	}
+
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(1024);
+		}
+	};
+
+	private static int field(int key, String name, byte type) {
+		KEYS[key] = name;
+		KEY_TYPES[key] = type;
+		KEY_IDS.put(name, (byte)key);
+		return key + 1;
+	}
+
+	/**
+	 * Encodes the message into the calling thread's buffer. The returned
+	 * buffer is only valid until the next encode on the same thread.
+	 */
+	public static ByteBuffer encode(Message message) throws IOException {
+		ByteBuffer buf = buffers.get();
+		while (true) {
+			buf.clear();
+			try {
+				writeMessage(buf, message);
+				buf.flip();
+				return buf;
+			} catch (BufferOverflowException e) {
+				buf = ByteBuffer.allocate(buf.capacity() * 2);
+				buffers.set(buf);
+			}
+		}
+	}
+
+	public static Message decode(ByteBuffer buf) throws IOException {
+		try {
+			return readMessage(buf);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated message", e);
+		}
+	}
+
+	private static void writeMessage(ByteBuffer buf, Message message) throws IOException {
+		Map<String, Serializable> attributes = message.getAttributes();
+		writeVarInt(buf, attributes.size());
+		for (Map.Entry<String, Serializable> attribute : attributes.entrySet())
+			writeAttribute(buf, attribute.getKey(), attribute.getValue());
+	}
+
+	private static Message readMessage(ByteBuffer buf) throws IOException {
+		Message message = new Message();
+		int count = readVarInt(buf);
+		for (int i = 0; i < count; i++) {
+			byte key = buf.get();
+			if (key == K_DYNAMIC) {
+				String name = readString(buf);
+				message.put(name, readValue(buf, buf.get()));
+			} else {
+				if (key < 0 || KEYS[key] == null)
+					throw new IOException("Unknown message field " + key);
+				message.put(KEYS[key], readValue(buf, KEY_TYPES[key]));
+			}
+		}
+		return message;
+	}
+
+	private static void writeAttribute(ByteBuffer buf, String name, Serializable value) throws IOException {
+		Byte key = KEY_IDS.get(name);
+		if (key != null && value != null && typeOf(value) == KEY_TYPES[key]) {
+			buf.put(key);
+			writeValue(buf, KEY_TYPES[key], value);
+		} else {
+			buf.put(K_DYNAMIC);
+			writeString(buf, name);
+			byte type = typeOf(value);
+			buf.put(type);
+			writeValue(buf, type, value);
+		}
+	}
+
+	private static byte typeOf(Serializable value) {
+		if (value == null) return T_NULL;
+		if (value instanceof Integer) return T_INT;
+		if (value instanceof Boolean) return T_BOOLEAN;
+		if (value instanceof String) return T_STRING;
+		if (value instanceof InetSocketAddress) return T_ADDRESS;
+		if (value instanceof Integer[]) return T_INT_ARRAY;
+		if (value instanceof int[]) return T_CLOCK;
+		if (value instanceof MessageRequest) return T_REQUEST;
+		if (value instanceof StateDelta[]) return T_DELTAS;
+		if (value instanceof Message[]) return T_MESSAGES;
+		if (isAddressMap(value)) return T_ADDRESS_MAP;
+		return T_OBJECT;
+	}
+
+	private static boolean isAddressMap(Serializable value) {
+		if (!(value instanceof HashMap)) return false;
+		for (Map.Entry<?, ?> entry : ((HashMap<?, ?>)value).entrySet()) {
+			if (!(entry.getKey() instanceof InetSocketAddress) || !(entry.getValue() instanceof Integer))
+				return false;
+		}
+		return true;
+	}
+
+	private static void writeValue(ByteBuffer buf, byte type, Serializable value) throws IOException {
+		switch (type) {
+		case T_NULL:
+			break;
+		case T_INT:
+			writeVarInt(buf, zigZag((Integer)value));
+			break;
+		case T_BOOLEAN:
+			buf.put((byte)(((Boolean)value) ? 1 : 0));
+			break;
+		case T_STRING:
+			writeString(buf, (String)value);
+			break;
+		case T_ADDRESS:
+			writeAddress(buf, (InetSocketAddress)value);
+			break;
+		case T_INT_ARRAY: {
+			Integer[] array = (Integer[])value;
+			writeVarInt(buf, array.length);
+			for (Integer v : array)
+				writeVarInt(buf, zigZag(v));
+			break;
+		}
+		case T_CLOCK: {
+			// id/counter pairs, ids as the gap to the previous one
+			int[] clock = (int[])value;
+			writeVarInt(buf, clock.length / 2);
+			int previous = 0;
+			for (int p = 0; p < clock.length; p += 2) {
+				writeVarInt(buf, clock[p] - previous);
+				writeVarInt(buf, clock[p + 1]);
+				previous = clock[p];
+			}
+			break;
+		}
+		case T_REQUEST:
+			buf.put((byte)((MessageRequest)value).ordinal());
+			break;
+		case T_ADDRESS_MAP: {
+			@SuppressWarnings("unchecked")
+			Map<InetSocketAddress, Integer> map = (Map<InetSocketAddress, Integer>)value;
+			writeVarInt(buf, map.size());
+			for (Map.Entry<InetSocketAddress, Integer> entry : map.entrySet()) {
+				writeAddress(buf, entry.getKey());
+				writeVarInt(buf, zigZag(entry.getValue()));
+			}
+			break;
+		}
+		case T_DELTAS: {
+			StateDelta[] deltas = (StateDelta[])value;
+			writeVarInt(buf, deltas.length);
+			for (StateDelta delta : deltas)
+				writeDelta(buf, delta);
+			break;
+		}
+		case T_MESSAGES: {
+			Message[] messages = (Message[])value;
+			writeVarInt(buf, messages.length);
+			for (Message message : messages)
+				writeMessage(buf, message);
+			break;
+		}
+		default: {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(value);
+			out.close();
+			writeVarInt(buf, bytes.size());
+			buf.put(bytes.toByteArray());
+		}
+		}
+	}
+
+	private static Serializable readValue(ByteBuffer buf, byte type) throws IOException {
+		switch (type) {
+		case T_NULL:
+			return null;
+		case T_INT:
+			return unZigZag(readVarInt(buf));
+		case T_BOOLEAN:
+			return buf.get() != 0;
+		case T_STRING:
+			return readString(buf);
+		case T_ADDRESS:
+			return readAddress(buf);
+		case T_INT_ARRAY: {
+			Integer[] array = new Integer[readVarInt(buf)];
+			for (int i = 0; i < array.length; i++)
+				array[i] = unZigZag(readVarInt(buf));
+			return array;
+		}
+		case T_CLOCK: {
+			int[] clock = new int[2 * readVarInt(buf)];
+			int previous = 0;
+			for (int p = 0; p < clock.length; p += 2) {
+				clock[p] = previous += readVarInt(buf);
+				clock[p + 1] = readVarInt(buf);
+			}
+			return clock;
+		}
+		case T_REQUEST:
+			return MessageRequest.values()[buf.get()];
+		case T_ADDRESS_MAP: {
+			int size = readVarInt(buf);
+			HashMap<InetSocketAddress, Integer> map = new HashMap<InetSocketAddress, Integer>();
+			for (int i = 0; i < size; i++)
+				map.put(readAddress(buf), unZigZag(readVarInt(buf)));
+			return map;
+		}
+		case T_DELTAS: {
+			StateDelta[] deltas = new StateDelta[readVarInt(buf)];
+			for (int i = 0; i < deltas.length; i++)
+				deltas[i] = readDelta(buf);
+			return deltas;
+		}
+		case T_MESSAGES: {
+			Message[] messages = new Message[readVarInt(buf)];
+			for (int i = 0; i < messages.length; i++)
+				messages[i] = readMessage(buf);
+			return messages;
+		}
+		case T_OBJECT: {
+			int length = readVarInt(buf);
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buf.array(), buf.arrayOffset() + buf.position(), length));
+			buf.position(buf.position() + length);
+			try {
+				return (Serializable)in.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			} finally {
+				in.close();
+			}
+		}
+		default:
+			throw new IOException("Unknown value type " + type);
+		}
+	}
+
+	private static void writeDelta(ByteBuffer buf, StateDelta delta) {
+		buf.put((byte)delta.getKind().ordinal());
+		writeVarInt(buf, delta.getX());
+		writeVarInt(buf, delta.getY());
+		switch (delta.getKind()) {
+		case move:
+			writeVarInt(buf, delta.getToX());
+			writeVarInt(buf, delta.getToY());
+			break;
+		case hitPoints:
+			writeVarInt(buf, zigZag(delta.getHitPoints()));
+			break;
+		case spawn:
+			buf.put((byte)delta.getUnitType().ordinal());
+			writeVarInt(buf, zigZag(delta.getHitPoints()));
+			writeVarInt(buf, delta.getMaxHitPoints());
+			writeVarInt(buf, delta.getAttackPoints());
+			writeAddress(buf, delta.getAddress());
+			break;
+		default:
+			break;
+		}
+	}
+
+	private static StateDelta readDelta(ByteBuffer buf) throws IOException {
+		StateDelta.Kind kind = StateDelta.Kind.values()[buf.get()];
+		int x = readVarInt(buf);
+		int y = readVarInt(buf);
+		switch (kind) {
+		case move:
+			return StateDelta.move(x, y, readVarInt(buf), readVarInt(buf));
+		case hitPoints:
+			return StateDelta.hitPoints(x, y, unZigZag(readVarInt(buf)));
+		case spawn: {
+			UnitType type = UnitType.values()[buf.get()];
+			int hitPoints = unZigZag(readVarInt(buf));
+			int maxHitPoints = readVarInt(buf);
+			int attackPoints = readVarInt(buf);
+			return new StateDelta(kind, x, y, x, y, hitPoints, type, maxHitPoints, attackPoints, readAddress(buf));
+		}
+		default:
+			return StateDelta.remove(x, y);
+		}
+	}
+
+	private static void writeAddress(ByteBuffer buf, InetSocketAddress address) {
+		writeString(buf, address.getHostString());
+		InetAddress inet = address.getAddress();
+		if (inet == null) {
+			buf.put((byte)0);
+		} else {
+			byte[] raw = inet.getAddress();
+			buf.put((byte)raw.length);
+			buf.put(raw);
+		}
+		buf.putShort((short)address.getPort());
+	}
+
+	private static InetSocketAddress readAddress(ByteBuffer buf) throws IOException {
+		String host = readString(buf);
+		byte[] raw = new byte[buf.get()];
+		buf.get(raw);
+		int port = buf.getShort() & 0xFFFF;
+		if (raw.length == 0)
+			return InetSocketAddress.createUnresolved(host, port);
+		return new InetSocketAddress(InetAddress.getByAddress(host, raw), port);
+	}
+
+	private static void writeString(ByteBuffer buf, String s) {
+		byte[] bytes = s.getBytes(UTF8);
+		writeVarInt(buf, bytes.length);
+		buf.put(bytes);
+	}
+
+	private static String readString(ByteBuffer buf) {
+		int length = readVarInt(buf);
+		String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, UTF8);
+		buf.position(buf.position() + length);
+		return s;
+	}
+
+	static void writeVarInt(ByteBuffer buf, int value) {
+		while ((value & ~0x7F) != 0) {
+			buf.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte)value);
+	}
+
+	static int readVarInt(ByteBuffer buf) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buf.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
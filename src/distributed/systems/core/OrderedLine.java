@@ -0,0 +1,23 @@
+package distributed.systems.core;
+
+/**
+ * A text log line with its clock parsed once, for sorting in
+ * {@link CausalOrder}. Lines with the same clock are ordered by their
+ * text, so the order is the same every time.
+ */
+class OrderedLine implements Comparable<OrderedLine> {
+	final String text;
+	final int[] clock;
+	final long weight;
+
+	OrderedLine(String text) {
+		this.text = text;
+		this.clock = VectorialClock.parse(text.substring(0, text.indexOf(']') + 1));
+		this.weight = CausalOrder.weight(clock);
+	}
+
+	public int compareTo(OrderedLine other) {
+		int c = CausalOrder.compare(weight, clock, other.weight, other.clock);
+		return c != 0 ? c : text.compareTo(other.text);
+	}
+}
@@ -0,0 +1,53 @@
+package distributed.systems.core;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on the
+ * threads of a shared executor. One per connection keeps the messages of
+ * that connection in order without a thread of its own.
+ */
+public class SerialExecutor implements Executor {
+
+	private final Executor executor;
+	private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+	private boolean running = false;
+
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		synchronized (tasks) {
+			tasks.add(task);
+			if (running) return;
+			running = true;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				drain();
+			}
+		});
+	}
+
+	private void drain() {
+		while (true) {
+			Runnable task;
+			synchronized (tasks) {
+				task = tasks.poll();
+				if (task == null) {
+					running = false;
+					return;
+				}
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -1,142 +1,34 @@
 package distributed.systems.core;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
 
-import distributed.systems.das.units.Unit;
+/**
+ * Sends a single {@link Message} to a remote address. The message is
+ * encoded when the send is requested and written asynchronously over a
+ * long-lived connection from the {@link ConnectionPool}, so no thread or
+ * TCP handshake is spent per message.
+ */
+public class SynchronizedClientSocket {
 
-//import distributed.systems.gridscheduler.model.ControlMessage;
-//import distributed.systems.gridscheduler.model.SyncLog;
-
-
-public class SynchronizedClientSocket extends Thread  {
-	
-	private Socket socket;
 	private Message message;
 	private IMessageReceivedHandler handler;
 	private InetSocketAddress address;
-	private boolean requiresRepsonse;
 
-	
 	public SynchronizedClientSocket(Message message, InetSocketAddress address, IMessageReceivedHandler handler) {
 		this.handler = handler;
-		socket = new Socket();
 		this.message = message;
 		this.address = address;
 	}
 
-	@Override
-	public void run() {
-		
-		ObjectInputStream in = null;
-		Message msg = null;
-		ObjectOutputStream out = null;
-		//Message message = null;
-		//int connTries = 0;
-		//while(connTries < 2){
-			try {
-				Thread.sleep(50);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			try {
-				socket.connect(address);
-				//break;
-			} catch (IOException e1) {
-				message = handler.onExceptionThrown(message, address);
-				e1.printStackTrace();
-
-			}
-		
-		try {
-			//Send Message
-			out = new ObjectOutputStream(socket.getOutputStream());
-			//System.out.println("Message about to be sent:" + message.get("request"));
-			out.writeObject(message);
-			out.flush();
-		} catch (IOException e) {
-			message = handler.onExceptionThrown(message, address);
-			e.printStackTrace();
-		}
-
-		if (requiresRepsonse) {
-			// Espera pela recepo da resposta at um determinado ponto.
-			try {
-				socket.setSoTimeout(20000);
-				in = new ObjectInputStream(socket.getInputStream());
-				msg = (Message)in.readObject();
-				handler.onMessageReceived(msg);
-				in.close();
-			} catch (SocketTimeoutException e) {
-				System.out.println("Timeout!!!!");
-				message = handler.onExceptionThrown(message, address);
-				e.printStackTrace();
-			} catch (IOException e) {
-				message = handler.onExceptionThrown(message, address);
-				e.printStackTrace();
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
-			}
-		}else{
-			/*
-			// Give the server time to read the data from the socket
-			while(socket.isConnected())
-			try {
-				Thread.sleep(10);
-			}
-			catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}*/
-		}
-		
-		try {
-			out.close();
-			socket.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			message = handler.onExceptionThrown(message, address);
-			e.printStackTrace();
-		}
-
-		//if(message != null) sendMessageInSameThread(message);
-		
-		//TODO Procesar a mensagem... Problemas com concorrencia? Talvez fazer o metodo syncronized
-		//handler.onMessageReceived(msg);
-
-	}
-	
 	public void sendMessage() {
-		requiresRepsonse = false;
-		Thread t = new Thread(this);
-		t.start();
+		ConnectionPool.getDefault().send(address, message, handler, false);
 	}
-	
-	/*
-	public void sendLogMessage(SyncLog syncLog) {
-	//	this.syncLog = syncLog;
-		requiresRepsonse = true;
-		Thread t = new Thread(this);
-		t.start();
-	}*/
 
-	
+	/**
+	 * Sends the message and passes the reply of the remote handler to
+	 * onMessageReceived of this socket's handler.
+	 */
 	public void sendMessageWithResponse() {
-		requiresRepsonse = true;
-		Thread t = new Thread(this);
-		t.start();
+		ConnectionPool.getDefault().send(address, message, handler, true);
 	}
-	
-	/*
-	public void sendMessageInSameThread(ControlMessage message) {
-		this.cMessage = message;
-		requiresRepsonse = true;
-		this.run();
-	}*/
-
 }
@@ -1,98 +1,115 @@
 package distributed.systems.core;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class SynchronizedSocket extends Thread {
+/**
+ * Server side of the transport. The listening channel and every accepted
+ * connection are served by the shared {@link EventLoopGroup} instead of a
+ * thread per connection. Each incoming frame is decoded into a
+ * {@link Message} and handed to the registered handler. When the sender
+ * asked for a response (non-zero frame tag) a non-null reply is written
+ * back on the same connection under the same tag.
+ *
+ * Frames are decoded and handled on the workers of the group, one at a
+ * time per connection, so a handler waiting for a lock never stalls the
+ * loop that serves other connections.
+ */
+public class SynchronizedSocket implements ISelectionHandler, IFrameHandler {
 
-	private ServerSocket serverSocket;
+	private ServerSocketChannel serverChannel;
 	private IMessageReceivedHandler handler;
+	private EventLoopGroup group;
+	private final ConcurrentHashMap<FramedConnection, SerialExecutor> dispatchers = new ConcurrentHashMap<FramedConnection, SerialExecutor>();
 	private String localUrl;
 	private int localPort;
 
 	public SynchronizedSocket(String localUrl, int localPort) {
 		this.localUrl = localUrl;
 		this.localPort = localPort;
+		this.group = EventLoopGroup.getDefault();
 		try {
-			serverSocket = new ServerSocket(localPort);
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(localPort));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	
+	public void addMessageReceivedHandler(IMessageReceivedHandler handler) {
+		this.handler = handler;
+		group.next().register(serverChannel, SelectionKey.OP_ACCEPT, this);
+	}
 
-	public class ConnectionHandler extends Thread {
-		private Socket s;
-		private IMessageReceivedHandler handler;
-		public ConnectionHandler(Socket socket, IMessageReceivedHandler handler) {
-			s = socket;
-			this.handler =  handler;
-			
+	/**
+	 * Stops accepting new connections.
+	 */
+	public void close() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		
-		public void run() {
-			ObjectOutputStream out;
-			ObjectInputStream in;
-			try {
-				in = new ObjectInputStream(s.getInputStream());
-
-				Message msg = (Message)in.readObject();
-				//handler.onMessageReceived(msg);
-				Message replyMsg = handler.onMessageReceived(msg);
-
-				if(replyMsg != null) {
-					out = new ObjectOutputStream(s.getOutputStream());
-					out.writeObject(replyMsg);
-					out.flush();
-					out.close();
+	}
 
-				}
-				
-				in.close();
-				s.close();
+	@Override
+	public void onRegistered(SelectionKey key) {
+	}
 
-			} catch (IOException | ClassNotFoundException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}	
+	@Override
+	public void onSelected(SelectionKey key) throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.socket().setTcpNoDelay(true);
+			FramedConnection connection = new FramedConnection(channel, group.next(), this);
+			dispatchers.put(connection, group.newSerialExecutor());
+			connection.start();
 		}
 	}
 
 	@Override
-	public void run() {
-		while(true) {
-			try {
-				Socket s = serverSocket.accept();
-				Thread t = new ConnectionHandler(s, handler);
-				t.start();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}		
+	public void onClosed(IOException cause) {
+		if (cause != null)
+			System.err.println("Server socket " + localUrl + ":" + localPort + " closed: " + cause);
 	}
 
-	public void addMessageReceivedHandler(IMessageReceivedHandler handler) {
-		this.handler = handler;
-		Thread t = new Thread( this);
-		t.start();
+	@Override
+	public void onFrame(final FramedConnection connection, final int tag, final ByteBuffer payload) {
+		SerialExecutor dispatcher = dispatchers.get(connection);
+		if (dispatcher == null) return;
+		dispatcher.execute(new Runnable() {
+			public void run() {
+				handle(connection, tag, payload);
+			}
+		});
 	}
-	
-	/*
-	public void sendMessage(ControlMessage cMessage, InetSocketAddress address) {
+
+	private void handle(FramedConnection connection, int tag, ByteBuffer payload) {
+		Message replyMsg;
 		try {
-			Socket socket = new Socket(address.getAddress(), address.getPort());
-			ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-			out.writeObject(cMessage);
-			out.close();
-			
-			socket.close();
+			replyMsg = handler.onMessageReceived(Message.decode(payload));
 		} catch (IOException e) {
 			e.printStackTrace();
+			connection.close();
+			return;
 		}
-	}*/
-	
+		if (replyMsg == null || tag == 0) return;
+		try {
+			connection.send(tag, Message.encode(replyMsg), null);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void onClosed(FramedConnection connection, IOException cause) {
+		// Frames already handed over are still handled
+		dispatchers.remove(connection);
+	}
 }
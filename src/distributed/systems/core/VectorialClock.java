@@ -1,93 +1,244 @@
 package distributed.systems.core;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
 
 /**
- * Class that represents a Vectorial Clock
+ * Class that represents a Vectorial Clock.
+ *
+ * The clock only has entries for the current members, keyed by their
+ * node id, so its size follows the battlefields that are alive rather
+ * than the highest id ever used. A member is added when it joins, or when
+ * a clock from someone who knows it is merged in, and pruned when it
+ * leaves. Clock values are handed out as an int array of id/counter
+ * pairs sorted by id; a missing id counts as zero when comparing.
+ *
+ * Next to the members, the clock keeps a Lamport counter under the id
+ * {@link #LAMPORT}, which sorts first. It goes up with every increment
+ * and takes the maximum on merge, but unlike the member entries it is
+ * never pruned, so it keeps growing along causality across leaves. See
+ * {@link CausalOrder#weight(int[])}.
+ *
+ * Merging works in place and comparing allocates nothing; only the clock
+ * values handed out to be kept, like the one stamped on a message, are
+ * copies.
  */
 public class VectorialClock implements Serializable {
 
 	private static final long serialVersionUID = -4298646294358826625L;
 
-	private Integer[] clock;
+	/* Results of compare */
+	public static final int BEFORE = -1;
+	public static final int EQUAL = 0;
+	public static final int AFTER = 1;
+	public static final int CONCURRENT = 2;
 
-	public VectorialClock(int nEntities) {
-		clock = new Integer[nEntities];
-		for (int i = 0; i < nEntities; i++) {
-			clock[i] = 0;
-		}
+	/* Id of the Lamport counter entry, below every node id */
+	public static final int LAMPORT = -1;
+
+	private int[] ids = new int[4];
+	private int[] counters = new int[4];
+	private int size = 0;
+	private int lamport = 0;
+	/* Pruned members, ignored in clocks merged in later */
+	private final HashSet<Integer> departed = new HashSet<Integer>();
+
+	public VectorialClock() {
 	}
-	
-	public VectorialClock(Integer[] clock) {
-		this.clock = clock;
+
+	/**
+	 * @param clock id/counter pairs, see {@link #getClock()}
+	 */
+	public VectorialClock(int[] clock) {
+		setClock(clock);
 	}
 
 	/**
 	 * Returns the clock.
-	 * @return clock
+	 * @return a copy of the clock as id/counter pairs, sorted by id
+	 */
+	public synchronized int[] getClock() {
+		int first = lamport > 0 ? 2 : 0;
+		int[] clock = new int[first + 2 * size];
+		if (lamport > 0) {
+			clock[0] = LAMPORT;
+			clock[1] = lamport;
+		}
+		for (int i = 0; i < size; i++) {
+			clock[first + 2 * i] = ids[i];
+			clock[first + 2 * i + 1] = counters[i];
+		}
+		return clock;
+	}
+
+	/**
+	 * @return the number of members, not counting the Lamport counter
 	 */
-	public Integer[] getClock() {
-		return clock.clone();
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized void addMember(int id) {
+		departed.remove(id);
+		slot(id);
+	}
+
+	/**
+	 * Prunes the entry of a member that left. Its events compare as
+	 * unknown to clock values stamped afterwards; the Lamport counter
+	 * keeps counting them.
+	 */
+	public synchronized void removeMember(int id) {
+		departed.add(id);
+		int i = Arrays.binarySearch(ids, 0, size, id);
+		if (i < 0) return;
+		System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+		System.arraycopy(counters, i + 1, counters, i, size - i - 1);
+		size--;
 	}
 
 	/**
 	 * Increment the clock at a specified ID by one unit
-	 * @param id 
+	 * @param id
+	 * @return a copy of the clock after the increment
 	 */
-	public synchronized Integer[] incrementClock(int id) {
-		clock[id]++;
-		return clock.clone();
+	public synchronized int[] incrementClock(int id) {
+		counters[slot(id)]++;
+		lamport++;
+		return getClock();
 	}
 
 	/**
-	 * Updates the clock using an external clock as reference.
-	 * @param externalClock
-	 * @param id 
+	 * Updates the clock using an external clock as reference, in place.
+	 * Members only the external clock knows are added.
+	 * @param externalClock id/counter pairs
 	 */
-	public synchronized Integer[] updateClock(Integer[] externalClock) {
-		for (int i = 0; i < clock.length; i++) {
-			if (externalClock[i] > clock[i]) {
-				clock[i] = externalClock[i];
-			}
+	public synchronized void merge(int[] externalClock) {
+		lamport = Math.max(lamport, lamportOf(externalClock));
+		for (int p = 0; p < externalClock.length; p += 2) {
+			int id = externalClock[p];
+			if (id == LAMPORT || (!departed.isEmpty() && departed.contains(id))) continue;
+			int i = slot(id);
+			if (externalClock[p + 1] > counters[i])
+				counters[i] = externalClock[p + 1];
+		}
+	}
+
+	public synchronized void setClock(int[] externalClock) {
+		size = 0;
+		lamport = lamportOf(externalClock);
+		for (int p = 0; p < externalClock.length; p += 2) {
+			if (externalClock[p] != LAMPORT)
+				counters[slot(externalClock[p])] = externalClock[p + 1];
 		}
-		return clock.clone();
 	}
 
-	public synchronized Integer[] updateClockID(Integer[] externalClock, int id) {
-		for (int i = 0; i < clock.length; i++) {
-			if(id!=i) {
-				if (externalClock[i] > clock[i]) {
-					clock[i] = externalClock[i];
-				}
+	/*
+	 * The Lamport counter of a clock value; values written before there
+	 * was one count every event they saw in the sum of their counters
+	 */
+	private static int lamportOf(int[] clock) {
+		if (clock.length > 0 && clock[0] == LAMPORT) return clock[1];
+		int sum = 0;
+		for (int p = 1; p < clock.length; p += 2)
+			sum += clock[p];
+		return sum;
+	}
+
+	/* Index of the member's entry, which is added if missing */
+	private int slot(int id) {
+		int i = Arrays.binarySearch(ids, 0, size, id);
+		if (i >= 0) return i;
+		i = -i - 1;
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, 2 * size);
+			counters = Arrays.copyOf(counters, 2 * size);
+		}
+		System.arraycopy(ids, i, ids, i + 1, size - i);
+		System.arraycopy(counters, i, counters, i + 1, size - i);
+		ids[i] = id;
+		counters[i] = 0;
+		size++;
+		return i;
+	}
+
+	/**
+	 * Compares two clock values given as id/counter pairs.
+	 * @return {@link #BEFORE} if a happened before b, {@link #AFTER} if b
+	 * happened before a, {@link #EQUAL} or {@link #CONCURRENT}
+	 */
+	public static int compare(int[] a, int[] b) {
+		boolean smaller = false, greater = false;
+		int i = 0, j = 0;
+		while (i < a.length || j < b.length) {
+			int x, y;
+			if (j >= b.length || (i < a.length && a[i] < b[j])) {
+				x = a[i + 1];
+				y = 0;
+				i += 2;
+			} else if (i >= a.length || b[j] < a[i]) {
+				x = 0;
+				y = b[j + 1];
+				j += 2;
 			} else {
-				clock[i] = externalClock[i];
+				x = a[i + 1];
+				y = b[j + 1];
+				i += 2;
+				j += 2;
 			}
+			if (x < y) smaller = true;
+			else if (x > y) greater = true;
+			if (smaller && greater) return CONCURRENT;
 		}
-		return clock.clone();
+		if (smaller) return BEFORE;
+		return greater ? AFTER : EQUAL;
+	}
+
+	/**
+	 * @return whether clock a happened before clock b: no entry of a is
+	 * greater and at least one is smaller
+	 */
+	public static boolean happenedBefore(int[] a, int[] b) {
+		return compare(a, b) == BEFORE;
+	}
+
+	public static boolean concurrent(int[] a, int[] b) {
+		return compare(a, b) == CONCURRENT;
 	}
 
-	public void setClock(Integer[] externalClock) {
-		for (int i = 0; i < clock.length; i++) {
-			clock[i] = externalClock[i];
+	/**
+	 * @return the clock value as text, like [0:3, 1:12]
+	 */
+	public static String toString(int[] clock) {
+		StringBuilder s = new StringBuilder("[");
+		for (int p = 0; p < clock.length; p += 2) {
+			if (p > 0) s.append(", ");
+			s.append(clock[p]).append(':').append(clock[p + 1]);
 		}
+		return s.append("]").toString();
 	}
 
-	public void setIndexValue(int id, Integer value) {
-		assert(id<clock.length);
-		assert(id>=0);
-		clock[id] = value;
+	/**
+	 * Reads a clock value written by {@link #toString(int[])}.
+	 */
+	public static int[] parse(String text) {
+		String body = text.trim();
+		body = body.substring(body.indexOf('[') + 1, body.lastIndexOf(']')).trim();
+		if (body.isEmpty()) return new int[0];
+		String[] entries = body.split(",");
+		int[] clock = new int[2 * entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			String[] pair = entries[i].split(":");
+			clock[2 * i] = Integer.parseInt(pair[0].trim());
+			clock[2 * i + 1] = Integer.parseInt(pair[1].trim());
+		}
+		return clock;
 	}
- 
+
 	@Override
 	public String toString(){
-		String s = "[ ";
-		for( int i= 0; i< this.clock.length; i++){
-			s+=  this.clock[i];
-			s+=", "; 
-		}
-		s+= "]";
-		return s;}
-	
-	
+		return toString(getClock());
+	}
 
 }
@@ -0,0 +1,43 @@
+package distributed.systems.das;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import distributed.systems.core.Message;
+
+/**
+ * The last committed actions of every battlefield, by the sequence number
+ * their battlefield gave them. Every battlefield keeps the actions it
+ * applied, so one that missed some of them can get them from any peer.
+ * Only the last {@link #CAPACITY} actions per battlefield are kept.
+ */
+public class ActionLog {
+
+	public static final int CAPACITY = Integer.getInteger("das.actionLog.size", 4096);
+
+	private final HashMap<InetSocketAddress, TreeMap<Integer, Message>> actions = new HashMap<InetSocketAddress, TreeMap<Integer, Message>>();
+
+	public synchronized void add(InetSocketAddress origin, int sequence, Message action) {
+		TreeMap<Integer, Message> log = actions.get(origin);
+		if (log == null) {
+			log = new TreeMap<Integer, Message>();
+			actions.put(origin, log);
+		}
+		log.put(sequence, action);
+		while (log.size() > CAPACITY)
+			log.pollFirstEntry();
+	}
+
+	/**
+	 * @return the logged actions of the battlefield numbered from sequence
+	 * on, in order
+	 */
+	public synchronized List<Message> since(InetSocketAddress origin, int sequence) {
+		TreeMap<Integer, Message> log = actions.get(origin);
+		if (log == null) return new ArrayList<Message>();
+		return new ArrayList<Message>(log.tailMap(sequence, true).values());
+	}
+}
@@ -0,0 +1,54 @@
+package distributed.systems.das;
+
+import java.util.ArrayList;
+
+/**
+ * The square of cells around a unit that it is kept informed about.
+ * Game state updates for a unit are cut down to this area, so what a unit
+ * receives depends on how crowded its neighbourhood is rather than on
+ * the size of the map.
+ */
+public class AreaOfInterest {
+
+	private final int centerX, centerY;
+	private final int radius;
+
+	public AreaOfInterest(int centerX, int centerY, int radius) {
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.radius = radius;
+	}
+
+	public boolean contains(int x, int y) {
+		return Math.abs(x - centerX) <= radius && Math.abs(y - centerY) <= radius;
+	}
+
+	public int getMinX() { return centerX - radius; }
+	public int getMaxX() { return centerX + radius; }
+	public int getMinY() { return centerY - radius; }
+	public int getMaxY() { return centerY + radius; }
+
+	/**
+	 * Restricts a list of map changes to this area. A move that leaves the
+	 * area becomes a remove, and a move that enters it becomes a spawn of
+	 * the moving unit, so a view that only tracks the area stays correct.
+	 */
+	public StateDelta[] filter(StateDelta[] deltas) {
+		ArrayList<StateDelta> filtered = new ArrayList<StateDelta>();
+		for (StateDelta delta : deltas) {
+			boolean from = contains(delta.getX(), delta.getY());
+			if (delta.getKind() != StateDelta.Kind.move) {
+				if (from) filtered.add(delta);
+				continue;
+			}
+			boolean to = contains(delta.getToX(), delta.getToY());
+			if (from && to)
+				filtered.add(delta);
+			else if (from)
+				filtered.add(StateDelta.remove(delta.getX(), delta.getY()));
+			else if (to && delta.getUnit() != null)
+				filtered.add(StateDelta.spawn(delta.getUnit(), delta.getToX(), delta.getToY()));
+		}
+		return filtered.toArray(new StateDelta[filtered.size()]);
+	}
+}
@@ -3,21 +3,38 @@ package distributed.systems.das;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import distributed.systems.core.BinaryLog;
+import distributed.systems.core.ConnectionPool;
+import distributed.systems.core.FailureDetector;
+import distributed.systems.core.HashedWheelTimer;
+import distributed.systems.core.HashedWheelTimer.Timeout;
 import distributed.systems.core.IMessageReceivedHandler;
 import distributed.systems.core.LogEntry;
 import distributed.systems.core.LogEntry.Position;
 import distributed.systems.core.LogEntryType;
 import distributed.systems.core.LogManager;
+import distributed.systems.core.MappedLogReader;
 import distributed.systems.core.Message;
 import distributed.systems.core.SynchronizedClientSocket;
 import distributed.systems.core.SynchronizedSocket;
@@ -25,6 +42,7 @@ import distributed.systems.core.VectorialClock;
 import distributed.systems.das.units.Dragon;
 import distributed.systems.das.units.Player;
 import distributed.systems.das.units.Unit;
+import distributed.systems.das.units.Unit.UnitType;
 
 /**
  * The actual battlefield where the fighting takes place.
@@ -38,7 +56,7 @@ import distributed.systems.das.units.Unit;
  */
 public class BattleField implements IMessageReceivedHandler {
 	/* The array of units */
-	private Unit[][] map;
+	private ChunkedGrid map;
 	private ConcurrentHashMap<InetSocketAddress, Unit> units;
 
 
@@ -54,8 +72,14 @@ public class BattleField implements IMessageReceivedHandler {
 
 
 	private Map<ActionID, ActionInfo> pendingOutsideActions;
-	private Map<Integer, ActionInfo> pendingOwnActions;
-	private int localMessageCounter = 0;
+	private ConcurrentHashMap<Integer, ActionInfo> pendingOwnActions;
+	/* Own and outside pending actions by target cell, and pending moves by the cell they leave */
+	private CellIndex<ActionInfo> pendingTargets;
+	private CellIndex<ActionInfo> pendingMoveSources;
+	private AtomicInteger localMessageCounter = new AtomicInteger();
+	/* Pending actions that were confirmed, and those that timed out first */
+	private final AtomicLong confirmedActions = new AtomicLong();
+	private final AtomicLong expiredActions = new AtomicLong();
 
 
 	/* The last id that was assigned to an unit. This variable is used to
@@ -66,16 +90,87 @@ public class BattleField implements IMessageReceivedHandler {
 	public final int id;
 	public final boolean restart;
 
-	public final static int MAP_WIDTH = 25;
-	public final static int MAP_HEIGHT = 25;
+	/* Map size, the same on every battlefield; set with -Ddas.map.width and -Ddas.map.height */
+	public final static int MAP_WIDTH = Integer.getInteger("das.map.width", 25);
+	public final static int MAP_HEIGHT = Integer.getInteger("das.map.height", 25);
 	//private ArrayList <Unit> units; 
 	//private Map<InetSocketAddress, Integer> units; 
 
 	private HashMap<InetSocketAddress, Integer> battlefields; 
 
 	private VectorialClock vClock;
+	/* Id of every known battlefield, the key of its vector clock entry */
+	private ConcurrentHashMap<InetSocketAddress, Integer> bfIds = new ConcurrentHashMap<InetSocketAddress, Integer>();
+	/* Battlefields a clock holds at most, so that with its Lamport counter it fits a log record */
+	public final static int MAX_BATTLEFIELDS = BinaryLog.CLOCK_WIDTH - 1;
 	private LogManager logger;
 
+	/* Changes to the map, streamed to the units as deltas */
+	private StateJournal journal;
+	/* Last game state view sent to each locally connected unit */
+	private ConcurrentHashMap<InetSocketAddress, UnitView> sentViews;
+
+	/* Number of dragons outside its area of interest a player is told about */
+	public final static int NEAREST_DRAGONS = 3;
+
+	/* How actions are agreed on with the other battlefields */
+	public final static SyncMode SYNC_MODE = SyncMode.valueOf(System.getProperty("das.sync", SyncMode.unanimous.name()));
+	/* Battlefields, this one included, that must accept an action in quorum mode; 0 is a majority */
+	public final static int QUORUM = Integer.getInteger("das.quorum", 0);
+	/* How long an action may be rolled back in optimistic mode, in ms */
+	public final static long OPTIMISTIC_WINDOW = Long.getLong("das.optimistic.window", 1000);
+	/* Cell ownership in region mode, rebuilt when the set of battlefields changes */
+	private volatile RegionMap regionMap;
+	/* Columns past its strip a battlefield keeps in region mode, as far as its units see */
+	public final static int REGION_MARGIN = Math.max(1, Math.max(Player.INTEREST_RADIUS, Dragon.INTEREST_RADIUS));
+	/* Runs the work that waits for the whole map, away from the message handlers */
+	private final ExecutorService background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "BattleField-background");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	/* Guards the map; actions take the locks of the cells they touch */
+	private CellLocks locks;
+	/* Batches sync, response and confirm messages per peer battlefield */
+	private final SyncOutbox outbox = new SyncOutbox(this);
+	/* Sequencer mode: numbered actions waiting to be applied in order */
+	private final SequenceBuffer sequenced = new SequenceBuffer();
+	/* Sequencer mode: key of the numbered actions in the action log */
+	private static final InetSocketAddress SEQUENCED = new InetSocketAddress(0);
+	/* Sequencer mode, guarded by sequenced: whether actions are numbered here, and the takeover under way if any */
+	private boolean leading = false;
+	private Takeover takeover;
+	/* Quorum mode: committed actions of every battlefield, for peers that missed some */
+	private final ActionLog actionLog = new ActionLog();
+	private final AtomicInteger commitSequence = new AtomicInteger();
+	private final ConcurrentHashMap<InetSocketAddress, CommitStream> commitStreams = new ConcurrentHashMap<InetSocketAddress, CommitStream>();
+	/* Optimistic mode: recently applied actions by the cells they touched, while they may still be rolled back */
+	private final CellIndex<AppliedAction> recentActions = new CellIndex<AppliedAction>();
+	private final AtomicLong appliedOrder = new AtomicLong();
+	private final AtomicLong rolledBackActions = new AtomicLong();
+	/* Optimistic mode: units that left the game while a blow that killed them may still be rolled back */
+	private final Set<InetSocketAddress> departedUnits = Collections.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+	/* State snapshots for restarts, every das.snapshot.interval ms; 0 turns them off */
+	public final static long SNAPSHOT_INTERVAL = Long.getLong("das.snapshot.interval", 10000);
+	/* Whether the log before the last snapshot is dropped */
+	public final static boolean TRUNCATE_LOG = Boolean.getBoolean("das.snapshot.truncate");
+	/*
+	 * Held shared while the state changes and the change is logged,
+	 * exclusively to snapshot the state. Always taken before cell locks.
+	 */
+	private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+	private int snapshotNumber = 0;
+	private File snapshotFile;
+	/* Set while a joining battlefield waits for the game state of a peer */
+	private volatile StateTransfer transfer;
+	/* How long a joining battlefield waits for the game state before it starts its units, in ms */
+	public final static long JOIN_TIMEOUT = Long.getLong("das.join.timeout", 10000);
+	/* Watches the other battlefields and the units served here through their heartbeats */
+	private FailureDetector failureDetector;
+	private FailureDetector.Heartbeat heartbeat;
+
 	/**
 	 * Initialize the battlefield to the specified size 
 	 * @param width of the battlefield
@@ -101,63 +196,311 @@ public class BattleField implements IMessageReceivedHandler {
 
 		battlefields.put(new InetSocketAddress(url, port), 0);
 		initBattleField(restart);
+		transfer = new StateTransfer(new InetSocketAddress(otherUrl, otherPort));
 
 		Message message = new Message();
 		message.put("request", MessageRequest.requestBFList);
 		message.put("bfAddress", new InetSocketAddress(url, port));
+		message.put("bfId", id);
 		SynchronizedClientSocket clientSocket;
 		clientSocket = new SynchronizedClientSocket(message, new InetSocketAddress(otherUrl, otherPort), this);
 		clientSocket.sendMessageWithResponse();
 	}
 
 	private synchronized void initBattleField(boolean restart){
-		map = new Unit[MAP_WIDTH][MAP_WIDTH];
+		map = new ChunkedGrid(MAP_WIDTH, MAP_HEIGHT);
+		locks = new CellLocks(MAP_WIDTH);
 		units = new ConcurrentHashMap<InetSocketAddress, Unit>();
+		journal = new StateJournal();
+		sentViews = new ConcurrentHashMap<InetSocketAddress, UnitView>();
 
 		serverSocket = new SynchronizedSocket(url, port);
 		serverSocket.addMessageReceivedHandler(this);
+		startFailureDetection();
+		if (SYNC_MODE == SyncMode.quorum) scheduleCatchUp();
 		//units = new ArrayList<Unit>();
 		pendingOwnActions = new ConcurrentHashMap<Integer, ActionInfo>();
 		pendingOutsideActions = new ConcurrentHashMap<ActionID, ActionInfo>();
+		pendingTargets = new CellIndex<ActionInfo>();
+		pendingMoveSources = new CellIndex<ActionInfo>();
 		
-		vClock = new VectorialClock(5);
+		vClock = new VectorialClock();
+		vClock.addMember(id);
+		bfIds.put(new InetSocketAddress(url, port), id);
 		String filename = url + "_" + port;
+		snapshotFile = new File(filename + ".snapshot");
 		if(!restart) {
 			File f = new File(filename);
 			f.delete();
+			snapshotFile.delete();
 		}
 		logger = new LogManager(filename);
-		
-		
+		if(restart) recover();
+
+	}
+
+	/**
+	 * Rebuilds the map, the units and the vector clock after a restart,
+	 * before the battlefield rejoins: from the last snapshot, then from the
+	 * entries logged after it. The entries are applied with the same
+	 * methods processEvent applies actions with, in the order they were
+	 * logged. Units this battlefield served died with it; they are dropped
+	 * as soon as their game state update fails.
+	 */
+	private void recover() {
+		Snapshot snapshot = null;
+		try {
+			snapshot = Snapshot.read(snapshotFile);
+		} catch (IOException e) {
+			System.out.println("Ignoring the snapshot: " + e.getMessage());
+		}
+		if (snapshot != null) {
+			for (Snapshot.UnitState state : snapshot.getUnits())
+				spawnUnit(state.toUnit(), state.address, state.x, state.y);
+			vClock.merge(snapshot.getClock());
+			snapshotNumber = snapshot.getNumber();
+		}
+
+		MappedLogReader reader;
+		try {
+			reader = logger.openBinaryLog();
+		} catch (IOException e) {
+			System.out.println("Nothing to recover: " + e.getMessage());
+			return;
+		}
+		int applied = 0;
+		try {
+			MappedLogReader.Record record = reader.view();
+			long start = 0;
+			if (snapshot != null) {
+				start = snapshot.getLogPosition();
+				if (start < 0 || start >= reader.size() || !isSnapshotEntry(record.moveTo(start), snapshot.getNumber()))
+					start = reader.lastIndexOf(LogEntryType.SNAPSHOT, snapshot.getNumber()); // Moved by a truncation
+				if (start < 0)
+					System.out.println("Snapshot " + snapshot.getNumber() + " is not in the log, nothing replayed after it");
+				start = start < 0 ? reader.size() : start + 1;
+			}
+			for (long i = start; i < reader.size(); i++) {
+				if (record.moveTo(i).isOrigin()) continue;
+				applyLogged(record);
+				applied++;
+			}
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		System.out.println("Recovered " + units.size() + " units from " + (snapshot == null ? "no snapshot" : "snapshot " + snapshot.getNumber()) + " and " + applied + " log entries, clock " + vClock);
+	}
+
+	/**
+	 * Copies the units and the clock with the state lock held exclusively.
+	 * The state lock is always taken before any cell lock, so the wait for
+	 * it is bounded by the actions being applied.
+	 * @param logged whether to number the copy and log a snapshot entry
+	 * @param positions if not null, filled with the number of the first
+	 * commit of every battlefield the copy does not have, for quorum mode
+	 */
+	private Snapshot copyState(boolean logged, Map<InetSocketAddress, Integer> positions) {
+		stateLock.writeLock().lock();
+		try {
+			Snapshot snapshot = new Snapshot(logged ? ++snapshotNumber : 0, vClock.getClock(), units.values());
+			if (positions != null) {
+				for (Map.Entry<InetSocketAddress, CommitStream> stream : commitStreams.entrySet())
+					positions.put(stream.getKey(), stream.getValue().applied);
+				positions.put(new InetSocketAddress(url, port), commitSequence.get());
+			}
+			if (logged) {
+				LogEntry entry = new LogEntry(snapshot.getClock(), LogEntryType.SNAPSHOT, new InetSocketAddress(url, port));
+				entry.setValue(snapshot.getNumber());
+				logger.write(entry);
+			}
+			return snapshot;
+		} finally {
+			stateLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Streams a copy of the game state to a battlefield that joins. The
+	 * copy waits for the state lock, so it is taken in the background
+	 * rather than on the message handler.
+	 */
+	private void sendState(final InetSocketAddress joiner) {
+		background.execute(new Runnable() {
+			public void run() {
+				Snapshot state;
+				int sequence;
+				HashMap<InetSocketAddress, Integer> positions = new HashMap<InetSocketAddress, Integer>();
+				// Nothing is numbered in between, so the copy holds every action before sequence
+				synchronized (sequenced) {
+					state = copyState(false, positions);
+					sequence = sequenced.next();
+				}
+				List<Message> chunks = StateTransfer.chunksOf(state, bfIds, sequence, positions);
+				for (Message chunk : chunks)
+					ConnectionPool.getDefault().send(joiner, chunk, BattleField.this, false);
+				System.out.println("Sent " + state.getUnits().size() + " units to " + joiner + " in " + chunks.size() + " chunks");
+			}
+		});
+	}
+
+	/**
+	 * Ends the state transfer of a joining battlefield: puts the state of
+	 * the peer in place of its own, if it came, then applies the actions
+	 * held back meanwhile that the state does not have yet.
+	 */
+	private void applyState(StateTransfer joining, boolean received) {
+		if (!joining.claim()) return;
+		if (received) {
+			stateLock.readLock().lock();
+			locks.lockAll();
+			try {
+				for (Unit unit : new ArrayList<Unit>(units.values()))
+					dropUnit(unit.getAddress());
+				for (StateDelta delta : joining.getUnits()) {
+					Unit unit = Unit.replicaOf(delta.getUnitType(), delta.getAddress(), joining.battlefieldOf(delta.getAddress()),
+							delta.getMaxHitPoints(), delta.getHitPoints(), delta.getAttackPoints());
+					spawnUnit(unit, delta.getAddress(), delta.getX(), delta.getY());
+				}
+				vClock.merge(joining.getClock());
+				if (SYNC_MODE == SyncMode.region) dropUnkeptUnits();
+			} finally {
+				locks.unlockAll();
+				stateLock.readLock().unlock();
+			}
+		}
+
+		int applied = 0, skipped = 0;
+		StateTransfer.HeldAction held;
+		while ((held = joining.next()) != null) {
+			if (received && joining.covers((int[])held.message.get("vclock"))) {
+				skipped++;
+				continue;
+			}
+			stateLock.readLock().lock();
+			try {
+				applyEvent(held.message, new ActionInfo(held.action, null, false));
+			} finally {
+				stateLock.readLock().unlock();
+			}
+			applied++;
+		}
+		if (SYNC_MODE == SyncMode.sequencer) {
+			synchronized (sequenced) {
+				deliverOrdered(received ? sequenced.skipTo(joining.getSequence()) : sequenced.skipGap());
+			}
+		}
+		if (SYNC_MODE == SyncMode.quorum) {
+			// Commits that came meanwhile waited in their streams, the state has those before the positions
+			Map<InetSocketAddress, Integer> positions = received ? joining.getPositions() : new HashMap<InetSocketAddress, Integer>();
+			for (InetSocketAddress origin : positions.keySet())
+				streamOf(origin);
+			for (Map.Entry<InetSocketAddress, CommitStream> entry : commitStreams.entrySet()) {
+				CommitStream stream = entry.getValue();
+				Integer position = positions.get(entry.getKey());
+				synchronized (stream) {
+					applyCommits(entry.getKey(), stream, position != null ? stream.buffer.skipTo(position) : received ? stream.buffer.skipTo(0) : stream.buffer.skipGap());
+				}
+			}
+		}
+		transfer = null;
+		System.out.println((received ? "Joined with " + units.size() + " units from " + joining.getPeer() : "Joined without the game state")
+				+ ", " + applied + " held back actions applied and " + skipped + " already in it");
+	}
+
+	private static boolean isSnapshotEntry(MappedLogReader.Record record, int number) {
+		return !record.isOrigin() && record.event() == LogEntryType.SNAPSHOT && record.value() == number;
+	}
+
+	/**
+	 * Copies the units and the clock and logs a snapshot entry, with the
+	 * state lock held exclusively, then writes the copy out and truncates
+	 * the log if asked to.
+	 */
+	private void takeSnapshot() {
+		Snapshot snapshot = copyState(true, null);
+		try {
+			MappedLogReader reader = logger.openBinaryLog();
+			try {
+				snapshot.setLogPosition(reader.lastIndexOf(LogEntryType.SNAPSHOT, snapshot.getNumber()));
+			} finally {
+				reader.close();
+			}
+			if (snapshot.getLogPosition() < 0) return; // The entry did not make it to the log
+			snapshot.write(snapshotFile);
+			if (TRUNCATE_LOG) logger.truncateBinaryLog(snapshot.getLogPosition());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
+	private void applyLogged(MappedLogReader.Record record) {
+		Unit unit;
+		switch (record.event()) {
+		case SPAWN:
+			if (record.unitType() == null) break;
+			unit = Unit.replicaOf(record.unitType(), record.origin(), record.battlefield(), record.maxHitPoints(), record.hitPoints(), record.attackPoints());
+			if (spawnUnit(unit, record.origin(), record.toX(), record.toY()) && !keeps(record.toX()))
+				dropUnit(record.origin());
+			break;
+		case MOVE:
+			unit = units.get(record.origin());
+			if (unit == null && record.unitType() != null) {
+				// Walked into the part of the map kept here, in region mode
+				unit = Unit.replicaOf(record.unitType(), record.origin(), record.battlefield(), record.maxHitPoints(), record.hitPoints(), record.attackPoints());
+				if (!spawnUnit(unit, record.origin(), record.fromX(), record.fromY())) unit = null;
+			}
+			if (unit != null && moveUnit(unit, record.toX(), record.toY()) && !keeps(record.toX()))
+				dropUnit(record.origin());
+			break;
+		case ATACK:
+		case HEAL:
+			unit = getUnit(record.toX(), record.toY());
+			if (unit != null) {
+				unit.adjustHitPoints(record.event() == LogEntryType.ATACK ? -record.value() : record.value());
+				journal.record(StateDelta.hitPoints(record.toX(), record.toY(), unit.getHitPoints()));
+			}
+			break;
+		case REMOVE:
+			removeUnit(record.toX(), record.toY());
+			break;
+		case DISCONNECTED_UNIT:
+			dropUnit(record.origin());
+			break;
+		default:
+			break;
+		}
+		vClock.merge(record.clock());
 	}
 	
 	private void startExecution(int numberOfDragons, int numberOfPlayers) {
+		StateTransfer joining = transfer;
+		if (joining != null) {
+			try {
+				if (!joining.await(JOIN_TIMEOUT)) {
+					System.out.println("No game state from " + joining.getPeer() + ", starting without it");
+					applyState(joining, false);
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
 
+		checkSequencer();
 		System.out.println("Units will now start to connect!");	
 		
 		this.generateDragons(numberOfDragons);
 		BattleField.generatePlayeres(numberOfPlayers, "localhost",port+100, url, port);
 		
 		//Updates to game state
-		final BattleField bf = this;
 		new Thread(new Runnable() {
 			public void run() {
-				SynchronizedClientSocket clientSocket;
 				while(true) {
 
-					for( Map.Entry<InetSocketAddress, Unit> entry : units.entrySet()) {
-						if(!entry.getValue().getBattlefieldAddress().equals(new InetSocketAddress(url, port))) continue;
-						Message message = new Message();
-						message.put("request", MessageRequest.gameState);
-						message.put("gamestate", map);
-						//Puts position of the unit we are sending to in the map we are sending
-						Unit u = entry.getValue();
-						message.put("unit",  u);
-
-						clientSocket = new SynchronizedClientSocket(message, entry.getKey(), bf);
-						clientSocket.sendMessage();	
-					}
+					broadcastGameState();
 
 					try {
 						Thread.sleep(100L);//Time between gameState update is sent to units
@@ -169,6 +512,22 @@ public class BattleField implements IMessageReceivedHandler {
 		}).start();
 		
 
+		//Snapshots of the state, for restarts
+		if (SNAPSHOT_INTERVAL > 0) {
+			new Thread(new Runnable() {
+				public void run() {
+					while(true) {
+						try {
+							Thread.sleep(SNAPSHOT_INTERVAL);
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+						takeSnapshot();
+					}
+				}
+			}).start();
+		}
+
 		//Checks  game state
 		new Thread(new Runnable() {
 			public void run() {
@@ -188,12 +547,12 @@ public class BattleField implements IMessageReceivedHandler {
 						if(entry instanceof Player) player++;
 					}
 					System.out.println("Units: "+ dragon + " Dragons and " + player + " Players");
+					System.out.println("Actions: " + getConfirmedActions() + " confirmed, " + getExpiredActions() + " expired and " + getRolledBackActions() + " rolled back");
 					
-					if(dragon == 0 || player == 0) {
+					// In region mode the count is of the part of the map kept here only
+					if(SYNC_MODE != SyncMode.region && (dragon == 0 || player == 0)) {
 						System.out.println("GAME ENDED");
-						logger.readOrderedLog();
-						logger.writeOrderedLogToTextfile("_ordered");
-						logger.cleanupStructures();
+						logger.writeOrderedLog("_ordered");
 						System.exit(1);
 
 					}
@@ -211,6 +570,112 @@ public class BattleField implements IMessageReceivedHandler {
 		}).start();
 	}
 
+	/**
+	 * Closes the current game state tick and sends every locally connected
+	 * unit the changes inside its area of interest since the last tick it
+	 * received. A unit gets a snapshot of its area instead when it has not
+	 * received anything yet, asked for a resync, fell behind the journal or
+	 * moved since its last update. Players are also told about the nearest
+	 * dragons outside their area whenever those change.
+	 */
+	private void broadcastGameState() {
+		InetSocketAddress local = new InetSocketAddress(url, port);
+		Map<InetSocketAddress, Message> outgoing = new HashMap<InetSocketAddress, Message>();
+		List<Unit> players = new ArrayList<Unit>();
+		int tick;
+
+		// Where the dragons are, for the landmarks of the players; built
+		// without the map locks, a position a tick old is good enough
+		SpatialIndex dragons = new SpatialIndex();
+		for (Unit u : units.values()) {
+			Integer x = u.getX(), y = u.getY();
+			if (u instanceof Dragon && x != null && y != null)
+				dragons.add(u, x, y);
+		}
+
+		locks.lockAll();
+		try {
+			map.trim();
+			tick = journal.advance();
+			for (Map.Entry<InetSocketAddress, Unit> entry : units.entrySet()) {
+				Unit unit = entry.getValue();
+				if (!unit.getBattlefieldAddress().equals(local)) continue;
+				UnitView last = sentViews.get(entry.getKey());
+				AreaOfInterest area = new AreaOfInterest(unit.getX(), unit.getY(), unit.getInterestRadius());
+
+				int baseTick = -1;
+				StateDelta[] deltas = null;
+				if (last != null && last.x == unit.getX() && last.y == unit.getY()) {
+					StateDelta[] since = journal.since(last.tick);
+					if (since != null) {
+						baseTick = last.tick;
+						deltas = area.filter(since);
+					}
+				}
+				if (deltas == null)
+					deltas = snapshot(area);
+
+				Message message = new Message();
+				message.put("request", MessageRequest.gameState);
+				message.put("tick", tick);
+				message.put("baseTick", baseTick);
+				message.put("deltas", deltas);
+
+				if (unit instanceof Player) players.add(unit);
+				sentViews.put(entry.getKey(), new UnitView(tick, unit.getX(), unit.getY(), last == null ? null : last.landmarks));
+				outgoing.put(entry.getKey(), message);
+			}
+			sentViews.keySet().retainAll(units.keySet());
+		} finally {
+			locks.unlockAll();
+		}
+
+		for (Unit player : players) {
+			UnitView view = sentViews.get(player.getAddress());
+			if (view == null) continue;
+			StateDelta[] nearest = nearestDragonsOutside(dragons, view.x, view.y, new AreaOfInterest(view.x, view.y, player.getInterestRadius()));
+			if (view.landmarks == null || !Arrays.equals(nearest, view.landmarks)) {
+				outgoing.get(player.getAddress()).put("landmarks", nearest);
+				sentViews.put(player.getAddress(), new UnitView(view.tick, view.x, view.y, nearest));
+			}
+		}
+
+		for (Map.Entry<InetSocketAddress, Message> entry : outgoing.entrySet())
+			new SynchronizedClientSocket(entry.getValue(), entry.getKey(), this).sendMessage();
+	}
+
+	/**
+	 * @return a spawn delta for every unit inside the area
+	 */
+	private StateDelta[] snapshot(AreaOfInterest area) {
+		ArrayList<StateDelta> deltas = new ArrayList<StateDelta>();
+		for (Unit unit : map.unitsIn(area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY()))
+			deltas.add(StateDelta.spawn(unit, unit.getX(), unit.getY()));
+		return deltas.toArray(new StateDelta[deltas.size()]);
+	}
+
+	/**
+	 * @return spawn deltas of the {@link #NEAREST_DRAGONS} dragons closest
+	 * to the unit that lie outside its area, nearest first
+	 */
+	private static StateDelta[] nearestDragonsOutside(SpatialIndex dragons, int x, int y, AreaOfInterest area) {
+		ArrayList<Unit> outside = new ArrayList<Unit>(NEAREST_DRAGONS);
+		// Dragons inside the area come first, ask for more until enough are outside
+		for (int k = NEAREST_DRAGONS; ; k *= 2) {
+			List<Unit> found = dragons.nearest(x, y, UnitType.dragon, k);
+			outside.clear();
+			for (Unit dragon : found) {
+				if (!area.contains(dragon.getX(), dragon.getY()) && outside.size() < NEAREST_DRAGONS)
+					outside.add(dragon);
+			}
+			if (outside.size() == NEAREST_DRAGONS || found.size() < k) break;
+		}
+		StateDelta[] nearest = new StateDelta[outside.size()];
+		for (int i = 0; i < nearest.length; i++)
+			nearest[i] = StateDelta.spawn(outside.get(i), outside.get(i).getX(), outside.get(i).getY());
+		return nearest;
+	}
+
 	/**
 	 * Singleton method which returns the sole 
 	 * instance of the battlefield.
@@ -239,13 +704,17 @@ public class BattleField implements IMessageReceivedHandler {
 	 */
 	private boolean spawnUnit(Unit unit, InetSocketAddress address, int x, int y)
 	{
-		synchronized (this) {
-			if (map[x][y] != null)
+		CellLocks.Held held = locks.lock(x, y);
+		try {
+			if (map.get(x, y) != null)
 				return false;
-			map[x][y] = unit;
+			map.set(x, y, unit);
 			//unit.setRunning(false);
 			unit.setPosition(x, y);
 			units.put(address, unit);
+			journal.record(StateDelta.spawn(unit, x, y));
+		} finally {
+			held.unlock();
 		}
 		return true;
 	}
@@ -262,13 +731,18 @@ public class BattleField implements IMessageReceivedHandler {
 	 * @return true when the unit has been put on the 
 	 * specified position.
 	 */
-	private synchronized boolean putUnit(Unit unit, int x, int y)
+	private boolean putUnit(Unit unit, int x, int y)
 	{
-		if (map[x][y] != null)
-			return false;
+		CellLocks.Held held = locks.lock(x, y);
+		try {
+			if (map.get(x, y) != null)
+				return false;
 
-		map[x][y] = unit;
-		unit.setPosition(x, y);
+			map.set(x, y, unit);
+			unit.setPosition(x, y);
+		} finally {
+			held.unlock();
+		}
 
 		return true;
 	}
@@ -283,10 +757,22 @@ public class BattleField implements IMessageReceivedHandler {
 	 */
 	public Unit getUnit(int x, int y)
 	{
-		assert x >= 0 && x < map.length;
-		assert y >= 0 && x < map[0].length;
+		assert map.contains(x, y);
+
+		return map.get(x, y);
+	}
 
-		return map[x][y];
+	/**
+	 * @return every unit currently on the map
+	 */
+	public List<Unit> getUnitsOnMap()
+	{
+		locks.lockAll();
+		try {
+			return map.units();
+		} finally {
+			locks.unlockAll();
+		}
 	}
 
 	/**
@@ -298,25 +784,31 @@ public class BattleField implements IMessageReceivedHandler {
 	 * 
 	 * @return true on success.
 	 */
-	private synchronized boolean moveUnit(Unit tUnit, int newX, int newY)
+	private boolean moveUnit(Unit tUnit, int newX, int newY)
 	{
 		int originalX = tUnit.getX();
 		int originalY = tUnit.getY();
-		Unit unit = map[originalX][originalY];
-		if(unit == null || !unit.equals(tUnit)) return false;
-		//if(!((Math.abs(unit.getX() - x) <= 1 && Math.abs(unit.getY() - y) == 0)|| (Math.abs(unit.getY() - y) <= 1 && Math.abs(unit.getX() - x) == 0))) return false;
-		//System.out.println(originalX + " " + originalY + ":");
-		if (unit.getHitPoints() <= 0)
-			return false;
+		CellLocks.Held held = locks.lock(originalX, originalY, newX, newY);
+		try {
+			Unit unit = map.get(originalX, originalY);
+			if(unit == null || !unit.equals(tUnit)) return false;
+			//if(!((Math.abs(unit.getX() - x) <= 1 && Math.abs(unit.getY() - y) == 0)|| (Math.abs(unit.getY() - y) <= 1 && Math.abs(unit.getX() - x) == 0))) return false;
+			//System.out.println(originalX + " " + originalY + ":");
+			if (unit.getHitPoints() <= 0)
+				return false;
 
-		if (newX >= 0 && newX < BattleField.MAP_WIDTH)
-			if (newY >= 0 && newY < BattleField.MAP_HEIGHT)
-				if (map[newX][newY] == null) {
-					if (putUnit(unit, newX, newY)) {
-						map[originalX][originalY] = null;
-						return true;
+			if (newX >= 0 && newX < BattleField.MAP_WIDTH)
+				if (newY >= 0 && newY < BattleField.MAP_HEIGHT)
+					if (map.get(newX, newY) == null) {
+						if (putUnit(unit, newX, newY)) {
+							map.set(originalX, originalY, null);
+							journal.record(StateDelta.move(unit, originalX, originalY, newX, newY));
+							return true;
+						}
 					}
-				}
+		} finally {
+			held.unlock();
+		}
 
 		return false;
 	}
@@ -327,15 +819,99 @@ public class BattleField implements IMessageReceivedHandler {
 	 * @param x position.
 	 * @param y position.
 	 */
-	private synchronized void removeUnit(int x, int y)
+	private void removeUnit(int x, int y)
+	{
+		CellLocks.Held held = locks.lock(x, y);
+		try {
+			Unit unitToRemove = this.getUnit(x, y);
+			if (unitToRemove == null)
+				return; // There was no unit here to remove
+			map.set(x, y, null);
+			units.remove(unitToRemove.getAddress());
+			journal.record(StateDelta.remove(x, y));
+			unitToRemove.disconnect();
+		} finally {
+			held.unlock();
+		}
+
+	}
+
+	/**
+	 * Takes a unit that is gone off the map.
+	 * @return the unit, or null if it was not on the map
+	 */
+	private Unit dropUnit(InetSocketAddress address)
+	{
+		while (true) {
+			Unit u = units.get(address);
+			if (u == null)
+				return null;
+			int x = u.getX();
+			int y = u.getY();
+			CellLocks.Held held = locks.lock(x, y);
+			try {
+				if (x != u.getX() || y != u.getY())
+					continue; // Moved before we got the lock
+				if (!units.remove(address, u))
+					return null;
+				if (map.get(x, y) == u)
+					map.set(x, y, null);
+				journal.record(StateDelta.remove(x, y));
+				return u;
+			} finally {
+				held.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Locks the cells an action touches: its target cell and the cell of
+	 * the acting unit, if it is on the map already.
+	 */
+	private CellLocks.Held lockCellsOf(Message action)
+	{
+		while (true) {
+			int[] cells = cellsOf(action);
+			CellLocks.Held held = locks.lock(cells);
+			if (Arrays.equals(cells, cellsOf(action)))
+				return held;
+			held.unlock(); // The acting unit moved meanwhile
+		}
+	}
+
+	private int[] cellsOf(Message action)
 	{
-		Unit unitToRemove = this.getUnit(x, y);
-		if (unitToRemove == null)
-			return; // There was no unit here to remove
-		map[x][y] = null;
-		units.remove(unitToRemove.getAddress());
-		unitToRemove.disconnect();
+		int x = (Integer)action.get("x");
+		int y = (Integer)action.get("y");
+		Unit actor = units.get((InetSocketAddress)action.get("address"));
+		if (actor == null || actor.getX() == null) {
+			// A unit walking in from outside the kept part of the map
+			if (action.get("request") == MessageRequest.moveUnit && action.get("fromX") != null)
+				return new int[] {x, y, (Integer)action.get("fromX"), (Integer)action.get("fromY")};
+			return new int[] {x, y};
+		}
+		return new int[] {x, y, actor.getX(), actor.getY()};
+	}
+
+	/**
+	 * @return the number of pending actions that were confirmed
+	 */
+	public long getConfirmedActions() {
+		return confirmedActions.get();
+	}
+
+	/**
+	 * @return the number of pending actions dropped because they timed out
+	 */
+	public long getExpiredActions() {
+		return expiredActions.get();
+	}
 
+	/**
+	 * @return the number of optimistically applied actions that were undone
+	 */
+	public long getRolledBackActions() {
+		return rolledBackActions.get();
 	}
 
 	/**
@@ -348,6 +924,12 @@ public class BattleField implements IMessageReceivedHandler {
 
 	public Message onMessageReceived(Message msg) {
 
+		if((MessageRequest)msg.get("request") == MessageRequest.syncBatch) {
+			for(Message batched : (Message[])msg.get("messages"))
+				onMessageReceived(batched);
+			return null;
+		}
+
 		//System.out.println("MESSAGE RECEIVED:" + msg.get("request"));
 
 		//System.out.println("MESSAGE RECEIVED " + (MessageRequest)msg.get("request"));
@@ -361,20 +943,22 @@ public class BattleField implements IMessageReceivedHandler {
 			Message reply = null;
 			String origin = (String)msg.get("origin");
 			Unit unit;
-			Integer[] tempClock;
+			int[] tempClock;
 			Message replyMessage;
 			LogEntry entry;
 			switch(request)
 			{
 			case disconnectedUnit:
-				Unit u;
-				synchronized (this) {
-					u = units.remove((InetSocketAddress)msg.get("unitAddress"));
-					if(u!=null) map[u.getX()][u.getY()] = null;
+				tempClock= (int[])msg.get("vclock");
+				entry = new LogEntry(tempClock, LogEntryType.DISCONNECTED_UNIT, (InetSocketAddress)msg.get("unitAddress"));
+				stateLock.readLock().lock();
+				try {
+					departed((InetSocketAddress)msg.get("unitAddress"));
+					dropUnit((InetSocketAddress)msg.get("unitAddress"));
+					logger.write(entry);
+				} finally {
+					stateLock.readLock().unlock();
 				}
-				tempClock= ((Integer[])msg.get("vclock")).clone();
-				entry = new LogEntry(tempClock, LogEntryType.DISCONNECTED_UNIT, (InetSocketAddress)msg.get("serverAddress"));
-				logger.writeAsText(entry, true);
 				replyMessage = new Message();
 				replyMessage.put("request", MessageRequest.disconnectedUnitAck);
 				replyMessage.put("serverAddress", new InetSocketAddress(url, port));
@@ -383,9 +967,13 @@ public class BattleField implements IMessageReceivedHandler {
 				break;
 
 			case disconnectedBF:
-				tempClock = ((Integer[])msg.get("vclock")).clone();
+				if (msg.get("bfId") != null) {
+					bfIds.remove((InetSocketAddress)msg.get("bfAddress"));
+					vClock.removeMember((Integer)msg.get("bfId"));
+				}
+				tempClock = (int[])msg.get("vclock");
 				entry = new LogEntry(tempClock, LogEntryType.DISCONNECTED_BF, (InetSocketAddress)msg.get("serverAddress"));
-				logger.writeAsText(entry, true);
+				logger.write(entry);
 				replyMessage = new Message();
 				replyMessage.put("request", MessageRequest.disconnectedBFAck);
 				replyMessage.put("serverAddress", new InetSocketAddress(url, port));
@@ -401,24 +989,49 @@ public class BattleField implements IMessageReceivedHandler {
 			case requestBFList: {
 				reply = new Message();
 				reply.put("request", MessageRequest.replyBFList);
+				if (vClock.size() >= MAX_BATTLEFIELDS && !bfIds.containsKey((InetSocketAddress)msg.get("bfAddress"))) {
+					reply.put("succeded", false);
+					return reply;
+				}
 				battlefields.put((InetSocketAddress)msg.get("bfAddress"), 0);
+				addMember((InetSocketAddress)msg.get("bfAddress"), (Integer)msg.get("bfId"));
+				checkSequencer();
 				reply.put("bfList", battlefields);
+				reply.put("bfIds", new HashMap<InetSocketAddress, Integer>(bfIds));
 				return reply;
 			}
 
 			case replyBFList: {
-				HashMap<InetSocketAddress, Integer> bfList = (HashMap<InetSocketAddress, Integer>)msg.get("bfList");
+				if (Boolean.FALSE.equals(msg.get("succeded"))) {
+					System.err.println("Could not join: the game has " + MAX_BATTLEFIELDS + " battlefields already, see das.log.clockWidth");
+					shutdown();
+					return null;
+				}
+				HashMap<InetSocketAddress, Integer> bfList = msg.getAddressMap("bfList");
 				for(InetSocketAddress address: bfList.keySet()) {
 					battlefields.put(address, 0);
 				}
+				HashMap<InetSocketAddress, Integer> ids = msg.getAddressMap("bfIds");
+				if (ids != null) {
+					for (Map.Entry<InetSocketAddress, Integer> member : ids.entrySet())
+						addMember(member.getKey(), member.getValue());
+				}
+				checkSequencer();
 				for(InetSocketAddress address: battlefields.keySet()) {
 					SynchronizedClientSocket clientSocket;
 					Message message = new Message();
 					message.put("request", MessageRequest.addBF);
 					message.put("bfAddress", new InetSocketAddress(url, port));
+					message.put("bfId", id);
 					clientSocket = new SynchronizedClientSocket(message,address, this);
 					clientSocket.sendMessage();
 				}
+				if (transfer != null) {
+					Message stateRequest = new Message();
+					stateRequest.put("request", MessageRequest.stateRequest);
+					stateRequest.put("bfAddress", new InetSocketAddress(url, port));
+					ConnectionPool.getDefault().send(transfer.getPeer(), stateRequest, this, false);
+				}
 				//System.out.println("BATTLEFIELDS:"+ bfList.toString());
 
 				//reply = new Message();
@@ -428,8 +1041,33 @@ public class BattleField implements IMessageReceivedHandler {
 				return null;
 			}
 
+			case gameStateResync:
+				sentViews.remove((InetSocketAddress)msg.get("address"));
+				return null;
+
+			case heartbeat:
+				failureDetector.heartbeat((InetSocketAddress)(msg.get("serverAddress") != null ? msg.get("serverAddress") : msg.get("address")));
+				return null;
+
+			case stateRequest:
+				sendState((InetSocketAddress)msg.get("bfAddress"));
+				return null;
+
+			case regionUnits:
+				if (SYNC_MODE == SyncMode.region)
+					adoptUnits((InetSocketAddress)msg.get("serverAddress"), (StateDelta[])msg.get("deltas"));
+				return null;
+
+			case stateChunk: {
+				StateTransfer joining = transfer;
+				if (joining != null && joining.add(msg)) applyState(joining, true);
+				return null;
+			}
+
 			case addBF: {
 				battlefields.put((InetSocketAddress)msg.get("bfAddress"), 0);
+				addMember((InetSocketAddress)msg.get("bfAddress"), (Integer)msg.get("bfId"));
+				checkSequencer();
 				//System.out.println("ADD BF:"+ battlefields.toString());
 
 				return null;
@@ -446,6 +1084,34 @@ public class BattleField implements IMessageReceivedHandler {
 				break;
 			case SyncActionConfirm:
 				return processConfirmMessage(msg);
+			case SyncActionNotify:
+				processNotifyMessage(msg);
+				break;
+			case SyncActionSequence:
+				sequenceAction(msg);
+				break;
+			case SyncActionOrdered:
+				processOrderedMessage(msg);
+				break;
+			case SyncActionOptimistic:
+				processOptimisticMessage(msg);
+				break;
+			case sequencerTakeover:
+				answerTakeover(msg);
+				break;
+			case sequencerState:
+				takeoverAnswered(msg);
+				break;
+			case actionLogRequest: {
+				InetSocketAddress committer = (InetSocketAddress)msg.get("bfAddress");
+				List<Message> missed = actionLog.since(committer, (Integer)msg.get("sequence"));
+				if (missed.isEmpty()) break;
+				Message batch = new Message();
+				batch.put("request", MessageRequest.syncBatch);
+				batch.put("messages", missed.toArray(new Message[missed.size()]));
+				ConnectionPool.getDefault().send((InetSocketAddress)msg.get("serverAddress"), batch, this, false);
+				break;
+			}
 			}
 		}
 		return null;
@@ -461,10 +1127,31 @@ public class BattleField implements IMessageReceivedHandler {
 		}*/
 	}
 
-	private Message processEvent(Message msg, ActionInfo removeAction) {
+	/**
+	 * Applies an action and logs it, see {@link #applyEvent(Message, ActionInfo)}.
+	 * The caller holds the state lock shared, taken before the cell locks,
+	 * so a snapshot never falls between the change and its log entry.
+	 * While the game state is being transferred the action is held back
+	 * instead.
+	 */
+	private Message processEvent(Message msg, ActionInfo action) {
+		StateTransfer joining = transfer;
+		if (joining != null && joining.hold(new StateTransfer.HeldAction(msg, action.message))) return null;
+		return applyEvent(msg, action);
+	}
+
+	/**
+	 * @return a copy of the unit a spawn message describes
+	 */
+	private static Unit spawnedUnit(Message msg) {
+		return Unit.replicaOf(UnitType.values()[(Integer)msg.get("unitType")], (InetSocketAddress)msg.get("address"),
+				(InetSocketAddress)msg.get("unitBattlefield"), (Integer)msg.get("maxHitPoints"), (Integer)msg.get("hitPoints"), (Integer)msg.get("attackPoints"));
+	}
+
+	private Message applyEvent(Message msg, ActionInfo removeAction) {
 		Unit unit = null;
 		LogEntry entry;
-		Integer[] tempClock;
+		int[] tempClock;
 
 		switch ((MessageRequest)removeAction.message.get("request")) {
 
@@ -472,25 +1159,29 @@ public class BattleField implements IMessageReceivedHandler {
 			//System.out.println("BATTLE FIELD:Spawn" + port);
 			//System.out.println(battlefields.toString());
 
-			Boolean succeded = this.spawnUnit((Unit)msg.get("unit"), (InetSocketAddress)msg.get("address"), (Integer)msg.get("x"), (Integer)msg.get("y"));
+			Unit spawned = spawnedUnit(msg);
+			Boolean succeded = this.spawnUnit(spawned, (InetSocketAddress)msg.get("address"), (Integer)msg.get("x"), (Integer)msg.get("y"));
 			if(succeded) {
-				units.put((InetSocketAddress)msg.get("address"), (Unit)msg.get("unit"));	
+				units.put((InetSocketAddress)msg.get("address"), spawned);	
+				handOff(spawned, (Integer)msg.get("x"), (Integer)msg.get("y"));
 			}
 			Message reply = new Message();
 			reply.put("request", MessageRequest.spawnAck);
 			reply.put("succeded", succeded);
-			reply.put("gamestate", map);
-			//Puts position of the unit we are sending to in the map we are sending
-			Unit u = units.get((InetSocketAddress)msg.get("address"));
-			reply.put("unit",  u);
+			reply.put("x", (Integer)msg.get("x"));
+			reply.put("y", (Integer)msg.get("y"));
 			
-			tempClock = ((Integer[])msg.get("vclock")).clone();
+			tempClock = (int[])msg.get("vclock");
 			
 			entry = new LogEntry(tempClock, LogEntryType.SPAWN, (InetSocketAddress)msg.get("address"), new Position( (Integer)msg.get("x"),  (Integer)msg.get("y")));
-			logger.writeAsText(entry, true);
+			entry.setUnit(spawned.getUnitType(), spawned.getMaxHitPoints(), spawned.getHitPoints(), spawned.getAttackPoints(), spawned.getBattlefieldAddress());
+			logger.write(entry);
+			// Region mode: spawned outside the part of the map kept here
+			if (succeded && !keeps((Integer)msg.get("x")))
+				dropUnit((InetSocketAddress)msg.get("address"));
 			if(!((InetSocketAddress)msg.get("serverAddress")).equals(new InetSocketAddress(url, port))){
 				//System.out.println("<"+url+":"+port+"> Spawn will be processed --> "+toStringArray(tempClock));
-				vClock.updateClock(tempClock);
+				vClock.merge(tempClock);
 			}
 			return reply;
 
@@ -502,13 +1193,12 @@ public class BattleField implements IMessageReceivedHandler {
 			unit = this.getUnit(x, y);
 			if (unit != null) {
 				unit.adjustHitPoints( -(Integer)msg.get("damage") );
+				journal.record(StateDelta.hitPoints(x, y, unit.getHitPoints()));
 				
-				Unit attackingUnit = (Unit)msg.get("unit");
-				//System.out.println(attackingUnit);
-				entry = new LogEntry((Integer[])msg.get("vclock"), LogEntryType.ATACK, (InetSocketAddress)msg.get("address"), new Position( attackingUnit.getX(),  attackingUnit.getY()), new Position(x,y), (Integer)msg.get("damage"));
-				logger.writeAsText(entry, true);
+				entry = new LogEntry((int[])msg.get("vclock"), LogEntryType.ATACK, (InetSocketAddress)msg.get("address"), new Position( (Integer)msg.get("fromX"),  (Integer)msg.get("fromY")), new Position(x,y), (Integer)msg.get("damage"));
+				logger.write(entry);
 				if(!((InetSocketAddress)msg.get("serverAddress")).equals(new InetSocketAddress(url, port))){
-					vClock.updateClock((Integer[])msg.get("vclock"));
+					vClock.merge((int[])msg.get("vclock"));
 				}
 				
 				if(unit.getHitPoints() <= 0) {
@@ -516,7 +1206,7 @@ public class BattleField implements IMessageReceivedHandler {
 					//Log remove unit
 					// Should we log with same clock as deal damage that cause it?
 					entry = new LogEntry(vClock.getClock(), LogEntryType.REMOVE, (InetSocketAddress)msg.get("address"), new Position( (Integer)msg.get("x"),  (Integer)msg.get("y")));
-					logger.writeAsText(entry, true);
+					logger.write(entry);
 				}
 			}
 			break;
@@ -526,17 +1216,17 @@ public class BattleField implements IMessageReceivedHandler {
 			int x = (Integer)msg.get("x");
 			int y = (Integer)msg.get("y");
 			unit = this.getUnit(x, y);
-			if (unit != null)
+			if (unit != null) {
 				unit.adjustHitPoints( (Integer)msg.get("healed") );
+				journal.record(StateDelta.hitPoints(x, y, unit.getHitPoints()));
+			}
 			/* Copy the id of the message so that the unit knows 
 			 * what message the battlefield responded to. 
 			 */
-			Unit attackingUnit = (Unit)msg.get("unit");
-
-			entry = new LogEntry((Integer[])msg.get("vclock"), LogEntryType.HEAL, (InetSocketAddress)msg.get("address"), new Position( attackingUnit.getX(),  attackingUnit.getY()), new Position( (Integer)msg.get("x"),  (Integer)msg.get("y")), (Integer)msg.get("healed"));
-			logger.writeAsText(entry, true);
+			entry = new LogEntry((int[])msg.get("vclock"), LogEntryType.HEAL, (InetSocketAddress)msg.get("address"), new Position( (Integer)msg.get("fromX"),  (Integer)msg.get("fromY")), new Position( (Integer)msg.get("x"),  (Integer)msg.get("y")), (Integer)msg.get("healed"));
+			logger.write(entry);
 			if(!((InetSocketAddress)msg.get("serverAddress")).equals(new InetSocketAddress(url, port))){
-				vClock.updateClock((Integer[])msg.get("vclock"));
+				vClock.merge((int[])msg.get("vclock"));
 			}
 			break;
 		}
@@ -545,6 +1235,12 @@ public class BattleField implements IMessageReceivedHandler {
 
 			//System.out.println("BATTLEFIELD: MOVEUNIT");
 			Unit tempUnit = units.get((InetSocketAddress)msg.get("address"));
+			if (tempUnit == null) {
+				// Region mode: the unit walks into the part of the map kept here
+				if (msg.get("unitType") == null) break;
+				tempUnit = spawnedUnit(msg);
+				if (!spawnUnit(tempUnit, (InetSocketAddress)msg.get("address"), (Integer)msg.get("fromX"), (Integer)msg.get("fromY"))) break;
+			}
 			int x = tempUnit.getX();
 			int y = tempUnit.getY();
 		
@@ -555,12 +1251,18 @@ public class BattleField implements IMessageReceivedHandler {
 
 			boolean move = this.moveUnit(tempUnit, (Integer)msg.get("x"), (Integer)msg.get("y"));
 			if(!move) System.out.println("MOVE CANCELED");
+			else handOff(tempUnit, (Integer)msg.get("x"), (Integer)msg.get("y"));
 
-			entry = new LogEntry((Integer[])msg.get("vclock"), LogEntryType.MOVE, (InetSocketAddress)msg.get("address"), new Position( x, y), new Position( (Integer)msg.get("x"),  (Integer)msg.get("y")));
-			logger.writeAsText(entry, true);
+			entry = new LogEntry((int[])msg.get("vclock"), LogEntryType.MOVE, (InetSocketAddress)msg.get("address"), new Position( x, y), new Position( (Integer)msg.get("x"),  (Integer)msg.get("y")));
+			if (msg.get("unitType") != null)
+				entry.setUnit(tempUnit.getUnitType(), tempUnit.getMaxHitPoints(), tempUnit.getHitPoints(), tempUnit.getAttackPoints(), tempUnit.getBattlefieldAddress());
+			logger.write(entry);
+			// Region mode: the unit walked out of the part of the map kept here
+			if (move && !keeps((Integer)msg.get("x")))
+				dropUnit((InetSocketAddress)msg.get("address"));
 
 			if(!((InetSocketAddress)msg.get("serverAddress")).equals(new InetSocketAddress(url, port))){
-				vClock.updateClock((Integer[])msg.get("vclock"));
+				vClock.merge((int[])msg.get("vclock"));
 			}
 			/* Copy the id of the message so that the unit knows 
 			 * what message the battlefield responded to. 
@@ -573,23 +1275,41 @@ public class BattleField implements IMessageReceivedHandler {
 		return null;
 	}
 
-	private synchronized Message processConfirmMessage(Message msg) {
+	private Message processConfirmMessage(Message msg) {
 		//Write to log;
 		
+		if (SYNC_MODE == SyncMode.quorum && (Boolean)msg.get("confirm")) {
+			processQuorumCommit(msg);
+			return null;
+		}
 		Integer messageID = (Integer)msg.get("serverMessageID");
-		//System.out.println("[S"+port+"] MessageID "+messageID+" Address "+(InetSocketAddress)msg.get("serverAddress")+"\nOutsideSize "+pendingOutsideActions.size()+"\n[S"+port+"]"+pendingOutsideActions);
-		ActionInfo removeAction = pendingOutsideActions.remove(new ActionID(messageID, (InetSocketAddress)msg.get("serverAddress")));			
-		if(removeAction != null) {
-			removeAction.timer.cancel();
-			//System.out.println("[S"+port+"] OutsideSize "+pendingOutsideActions.size()+" Confirm = "+(Boolean)msg.get("confirm")+" RemoveAction Request: "+removeAction.message.get("request"));
-			if((Boolean)msg.get("confirm")) processEvent(msg,removeAction);
+		ActionID actionID = new ActionID(messageID, (InetSocketAddress)msg.get("serverAddress"));
+		ActionInfo pending = pendingOutsideActions.get(actionID);
+		if(pending == null) return null;
+
+		stateLock.readLock().lock();
+		CellLocks.Held held = lockCellsOf(pending.message);
+		try {
+			//System.out.println("[S"+port+"] MessageID "+messageID+" Address "+(InetSocketAddress)msg.get("serverAddress")+"\nOutsideSize "+pendingOutsideActions.size()+"\n[S"+port+"]"+pendingOutsideActions);
+			ActionInfo removeAction = removePendingOutsideAction(actionID);			
+			if(removeAction != null) {
+				removeAction.timer.cancel();
+				//System.out.println("[S"+port+"] OutsideSize "+pendingOutsideActions.size()+" Confirm = "+(Boolean)msg.get("confirm")+" RemoveAction Request: "+removeAction.message.get("request"));
+				if((Boolean)msg.get("confirm")) {
+					confirmedActions.incrementAndGet();
+					processEvent(msg,removeAction);
+				}
+			}
+		} finally {
+			held.unlock();
+			stateLock.readLock().unlock();
 		}
 
 		return null;
 
 	}
 
-	private String toStringArray(Integer[] c){
+	private String toStringArray(int[] c){
 		String s = "[ ";
 		for( int i= 0; i< c.length; i++){
 			s+=  c[i];
@@ -598,7 +1318,7 @@ public class BattleField implements IMessageReceivedHandler {
 		s+= "]";
 		return s;}
 	
-	private synchronized Message processResponseMessage(Message msg) {
+	private Message processResponseMessage(Message msg) {
 		Integer messageID = (Integer)msg.get("serverMessageID");
 		ActionInfo actionInfo =  pendingOwnActions.get(messageID);
 		InetSocketAddress serverAddress = (InetSocketAddress)msg.get("serverAddress");
@@ -612,187 +1332,171 @@ public class BattleField implements IMessageReceivedHandler {
 			if((Boolean)msg.get("ack")) {
 				//System.out.println("[S"+port+"] "+actionInfo.message.get("address")+" ACK TRUE from "+serverAddress.getHostName()+":"+serverAddress.getPort()+" Adding info to queue.");
 				actionInfo.ackReceived.add((InetSocketAddress)msg.get("serverAddress")); 
-				if(actionInfo.ackReceived.size() == battlefields.size()-1) {
-					message.put("confirm", true);
-					Integer[] tempClock = vClock.incrementClock(id);
-					//System.out.println("<"+url+":"+port+"> Clock added when action is ready to ship --> "+toStringArray(tempClock));
-					message.put("vclock", tempClock);
-					for(InetSocketAddress address : actionInfo.ackReceived) {
-						SynchronizedClientSocket clientSocket = new SynchronizedClientSocket(message, address, this);
-						clientSocket.sendMessage();
-					}
-					ActionInfo removeAction = pendingOwnActions.remove(messageID);
-					removeAction.timer.cancel();
-					msg.put("vclock", tempClock);
-					Message toPlayer = processEvent(message, removeAction);
-					if(toPlayer!=null) {
-						SynchronizedClientSocket clientSocket = new SynchronizedClientSocket(toPlayer, (InetSocketAddress)msg.get("address"), this);
-						clientSocket.sendMessage();
+				if(actionInfo.ackReceived.size() == acksNeeded(actionInfo)) {
+					stateLock.readLock().lock();
+					CellLocks.Held held = lockCellsOf(actionInfo.message);
+					try {
+						// Responses may race, only one of them commits
+						if(removePendingOwnAction(messageID, actionInfo)) {
+							actionInfo.timer.cancel();
+							confirmedActions.incrementAndGet();
+							commitOwnAction(message, actionInfo);
+						}
+					} finally {
+						held.unlock();
+						stateLock.readLock().unlock();
 					}
 				}
+			} else if(SYNC_MODE == SyncMode.quorum) {
+				// Give up once too few battlefields are left to make a quorum
+				int nacks = actionInfo.nacks.incrementAndGet();
+				if(actionInfo.participants.size() - nacks < acksNeeded(actionInfo) && removePendingOwnAction(messageID, actionInfo)) {
+					actionInfo.timer.cancel();
+					message.put("confirm", false);
+					outbox.multicast(actionInfo.participants, message);
+				}
 			} else {
-				pendingOwnActions.remove(messageID).timer.cancel();
+				if(removePendingOwnAction(messageID, actionInfo)) actionInfo.timer.cancel();
 				message.put("confirm", false);
-				SynchronizedClientSocket clientSocket = new SynchronizedClientSocket(message, serverAddress, this);
-				clientSocket.sendMessage();
+				outbox.send(serverAddress, message);
 
 			}
 
-		} else {
+		} else if(SYNC_MODE != SyncMode.quorum) {
+			// In quorum mode a late answer finds the action already decided and its outcome sent
 			message.put("confirm", false);
-			SynchronizedClientSocket clientSocket = new SynchronizedClientSocket(message, serverAddress, this);
-			clientSocket.sendMessage();
+			outbox.send(serverAddress, message);
 		}
 		return null;
 
 	}
 
-	private synchronized void processSyncMessage(Message msg) {
+	private void processSyncMessage(Message msg) {
 
-		MessageRequest request = (MessageRequest)msg.get("request");
 		Integer messageID = (Integer)msg.get("serverMessageID");
 		//InetSocketAddress originAddress = (InetSocketAddress)msg.get("address");
 		InetSocketAddress serverAddress = (InetSocketAddress)msg.get("serverAddress");
-		Integer x = (Integer)msg.get("x");
-		Integer y = (Integer)msg.get("y");
 
 		msg.put("sync", (Boolean)false);
 
 		//System.out.println("[S"+port+"] Process Sync Message from "+serverAddress.getPort()+"\n Message "+request.name()+" with X="+x+"|Y="+y);
 
-		boolean conflictFound = false; 
-		Set<InetSocketAddress> toRemoveTemp = new HashSet<InetSocketAddress>();
-		switch(request) {
-		case spawnUnit: 
-			if (getUnit(x, y) == null){
-				for(ActionInfo info : pendingOwnActions.values()){
-
-					MessageRequest actionType = (MessageRequest)info.message.get("request");
-					if(actionType == MessageRequest.moveUnit || actionType == MessageRequest.spawnUnit){
-						if(x.equals((Integer)info.message.get("x")) && y.equals((Integer)info.message.get("y"))) {
-							//sendActionAck(msg, false, messageID, originAddress);
-							conflictFound = true;
-							break;
-						} 
-					}
-				}
-				for(ActionInfo info : pendingOutsideActions.values()){
-
-					MessageRequest actionType = (MessageRequest)info.message.get("request");
-					if(actionType == MessageRequest.moveUnit || actionType == MessageRequest.spawnUnit){
-						if(x.equals((Integer)info.message.get("x")) && y.equals((Integer)info.message.get("y"))) {
-							//sendActionAck(msg, false, messageID, originAddress);
-							conflictFound = true;
-							break;
-						} 
-					}
+		Set<Integer> toCancel = new HashSet<Integer>();
+		boolean conflictFound;
+		CellLocks.Held held = lockCellsOf(msg);
+		try {
+			conflictFound = findConflict(msg, toCancel);
+			if(!conflictFound) {
+				for(Integer ownID : toCancel) {
+					ActionInfo info = pendingOwnActions.get(ownID);
+					if(info != null && removePendingOwnAction(ownID, info)) info.timer.cancel();
 				}
-
+				addPendingOutsideAction(msg, messageID, serverAddress);
 			}
-			else {
-				conflictFound = true;
+		} finally {
+			held.unlock();
+		}
+		sendActionAck(msg, !conflictFound, messageID, serverAddress);
+	}
+
+	/**
+	 * Checks an action against the map and against the actions that are
+	 * still being agreed on. Only the pending actions on the cells involved
+	 * are looked at, so the cost does not grow with the number in flight.
+	 * @param toCancel receives the ids of own pending heals and attacks on
+	 * a unit that is about to move away
+	 * @return true if the action cannot be accepted
+	 */
+	private boolean findConflict(Message msg, Set<Integer> toCancel) {
+		MessageRequest request = (MessageRequest)msg.get("request");
+		int x = (Integer)msg.get("x");
+		int y = (Integer)msg.get("y");
+
+		switch(request) {
+		case spawnUnit: 
+			if (getUnit(x, y) != null)
+				return true;
+			return isPendingArrival(x, y);
+
+		case moveUnit: {
+			if (getUnit(x, y) != null)
+				return true;
+
+			Unit unit = units.get((InetSocketAddress)msg.get("address"));
+			if(unit == null) return true;
+			if(!((Math.abs(unit.getX() - x) <= 1 && Math.abs(unit.getY() - y) == 0)|| (Math.abs(unit.getY() - y) <= 1 && Math.abs(unit.getX() - x) == 0))) {
+				return true;
 			}
+			if (isPendingArrival(x, y))
+				return true;
 
-			if(conflictFound) {
-				sendActionAck(msg, false, messageID, serverAddress);
-			} else {
-				addPendingOutsideAction(msg, messageID, serverAddress);
-				sendActionAck(msg, true, messageID, serverAddress);
+			for(ActionInfo info : pendingTargets.at(unit.getX(), unit.getY())) {
+				MessageRequest actionType = (MessageRequest)info.message.get("request");
+				if(info.ownID != null && (actionType == MessageRequest.healDamage || actionType == MessageRequest.dealDamage))
+					toCancel.add(info.ownID);
 			}
+			return false;
+		}
 
-			break;
+		case dealDamage:
+		case healDamage: 
+			if (getUnit(x, y) == null)
+				return true;
+			// The target must not be about to leave its cell
+			return !pendingMoveSources.at(x, y).isEmpty();
 
-		case moveUnit:
-			if (getUnit(x, y) == null){
-				
-				Unit unit = units.get((InetSocketAddress)msg.get("address"));
-				if(unit == null) break;
-				if(!((Math.abs(unit.getX() - x) <= 1 && Math.abs(unit.getY() - y) == 0)|| (Math.abs(unit.getY() - y) <= 1 && Math.abs(unit.getX() - x) == 0))) {
-					conflictFound = true;
-				}
+		default:
+			return false;
+		}
+	}
 
-				for(ActionInfo info : pendingOwnActions.values()){
-					MessageRequest actionType = (MessageRequest)info.message.get("request");
-					if(actionType == MessageRequest.moveUnit || actionType == MessageRequest.spawnUnit){
-						if(x.equals((Integer)info.message.get("x")) && y.equals((Integer)info.message.get("y"))) {
-							conflictFound = true;
-							break;
-						} 
-					} else if(actionType == MessageRequest.healDamage || actionType == MessageRequest.dealDamage) {
-						if(unit.getX().equals((Integer)info.message.get("x")) && unit.getY().equals((Integer)info.message.get("y"))) {
-							toRemoveTemp.add((InetSocketAddress)info.message.get("serverAddress"));
-						}
-					}
-				}
-				for(ActionInfo info : pendingOutsideActions.values()){
-					MessageRequest actionType = (MessageRequest)info.message.get("request");
-					if(actionType == MessageRequest.moveUnit || actionType == MessageRequest.spawnUnit){
-						if(x.equals((Integer)info.message.get("x")) && y.equals((Integer)info.message.get("y"))) {
-							conflictFound = true;
-							break;
-						} 
-					} 
-				}
-
-			}
-			else {
-				conflictFound = true;
-			}
-
-			if(conflictFound) {
-				sendActionAck(msg, false, messageID, serverAddress);
-			} else {
-				for(InetSocketAddress addressToRemove : toRemoveTemp) {
-					ActionInfo info = pendingOwnActions.remove(addressToRemove);
-					if(info!=null)info.timer.cancel();
-				}
-				addPendingOutsideAction(msg, messageID, serverAddress);
-				sendActionAck(msg, true, messageID, serverAddress);
-			}
+	/**
+	 * @return whether a pending spawn or move is heading for the cell
+	 */
+	private boolean isPendingArrival(int x, int y) {
+		for(ActionInfo info : pendingTargets.at(x, y)) {
+			MessageRequest actionType = (MessageRequest)info.message.get("request");
+			if(actionType == MessageRequest.moveUnit || actionType == MessageRequest.spawnUnit)
+				return true;
+		}
+		return false;
+	}
 
-			break;
+	private void addPendingOwnAction(Integer messageID, ActionInfo info) {
+		info.ownID = messageID;
+		indexPending(info);
+		pendingOwnActions.put(messageID, info);
+	}
 
-		case dealDamage:
-		case healDamage: 
-			if (getUnit(x, y) != null) {
-				for(ActionInfo info : pendingOwnActions.values()){
-					MessageRequest actionType = (MessageRequest)info.message.get("request");
-					if(actionType == MessageRequest.moveUnit){
-						Unit infoUnit = units.get((InetSocketAddress)info.message.get("address"));
-						if(x.equals(infoUnit.getX()) && y.equals(infoUnit.getY())) {
-							conflictFound = true;
-							break;
-						} 
-					}
-				} for(ActionInfo info : pendingOutsideActions.values()){
-					MessageRequest actionType = (MessageRequest)info.message.get("request");
-					if(actionType == MessageRequest.moveUnit){
-						Unit infoUnit = units.get((InetSocketAddress)info.message.get("address"));
-						if(x.equals(infoUnit.getX()) && y.equals(infoUnit.getY())) {
-							conflictFound = true;
-							break;
-						} 
-					}
-				}
-			}
-			else {
-				conflictFound = true;
-			}
+	private boolean removePendingOwnAction(Integer messageID, ActionInfo info) {
+		if(!pendingOwnActions.remove(messageID, info)) return false;
+		unindexPending(info);
+		return true;
+	}
 
-			if(conflictFound) {
-				sendActionAck(msg, false, messageID, serverAddress);
-			} else {
-				for(InetSocketAddress addressToRemove : toRemoveTemp) {
-					pendingOwnActions.remove(addressToRemove).timer.cancel();
-				}
-				addPendingOutsideAction(msg, messageID, serverAddress);
-				sendActionAck(msg, true, messageID, serverAddress);
-			}
-			break;
+	private ActionInfo removePendingOutsideAction(ActionID actionID) {
+		ActionInfo info = pendingOutsideActions.remove(actionID);
+		if(info != null) unindexPending(info);
+		return info;
+	}
 
+	private void indexPending(ActionInfo info) {
+		info.targetX = (Integer)info.message.get("x");
+		info.targetY = (Integer)info.message.get("y");
+		pendingTargets.add(info.targetX, info.targetY, info);
+		Unit actor = units.get((InetSocketAddress)info.message.get("address"));
+		if((MessageRequest)info.message.get("request") == MessageRequest.moveUnit && actor != null) {
+			info.source = new int[] {actor.getX(), actor.getY()};
+			pendingMoveSources.add(info.source[0], info.source[1], info);
 		}
 	}
 
+	private void unindexPending(ActionInfo info) {
+		pendingTargets.remove(info.targetX, info.targetY, info);
+		if(info.source != null)
+			pendingMoveSources.remove(info.source[0], info.source[1], info);
+	}
+
 	private void sendActionAck(Message message ,boolean valid, Integer messageID, InetSocketAddress address) {
 
 		Message toSend = new Message();
@@ -801,8 +1505,7 @@ public class BattleField implements IMessageReceivedHandler {
 		toSend.put("serverAddress", (InetSocketAddress)new InetSocketAddress(url,port));
 		toSend.put("ack", (Boolean)valid);
 
-		SynchronizedClientSocket socket = new SynchronizedClientSocket(toSend, address, this);
-		socket.sendMessage();
+		outbox.send(address, toSend);
 	}
 
 	/**
@@ -829,32 +1532,964 @@ public class BattleField implements IMessageReceivedHandler {
 
 
 	private void addPendingOutsideAction(Message message, Integer messageID, InetSocketAddress originAddress) {
-		Timer timer = new Timer();
 		//System.out.println("Adding to OUTSIDE ACTION | Message type: "+message.get("request"));
 		ActionID actionID = new ActionID(messageID, originAddress);
-		pendingOutsideActions.put(actionID, new ActionInfo(message, timer, false));
-		timer.schedule(new ScheduledTask(this, actionID), timeout);
+		Timeout timer = HashedWheelTimer.getDefault().schedule(new ScheduledTask(this, actionID), timeout, TimeUnit.MILLISECONDS);
+		ActionInfo info = new ActionInfo(message, timer, false);
+		indexPending(info);
+		pendingOutsideActions.put(actionID, info);
 	}
 
-	public synchronized void syncActionWithBattlefields(Message message) {
-		Timer timer = new Timer();
-		pendingOwnActions.put(++localMessageCounter, new ActionInfo(message, timer, true));
-		sendSyncMessage(message);
-		timer.schedule(new ScheduledTask(this, localMessageCounter), timeout);
+	public void syncActionWithBattlefields(Message message) {
+		int messageID = localMessageCounter.incrementAndGet();
+		if (SYNC_MODE == SyncMode.optimistic) {
+			executeOptimistically(message, messageID);
+			return;
+		}
+		if (SYNC_MODE == SyncMode.sequencer) {
+			submitToSequencer(message, messageID);
+			return;
+		}
+		Set<InetSocketAddress> participants = SYNC_MODE == SyncMode.region ? ownersOfAction(message) : otherBattlefields();
+		// Deciding locally commits the action right away
+		stateLock.readLock().lock();
+		CellLocks.Held held = lockCellsOf(message);
+		try {
+			if (SYNC_MODE == SyncMode.region && participants.isEmpty()) {
+				decideLocally(message, messageID);
+				return;
+			}
+			Timeout timer = HashedWheelTimer.getDefault().schedule(new ScheduledTask(this, messageID), timeout, TimeUnit.MILLISECONDS);
+			ActionInfo info = new ActionInfo(message, timer, true);
+			info.participants = participants;
+			addPendingOwnAction(messageID, info);
+		} finally {
+			held.unlock();
+			stateLock.readLock().unlock();
+		}
+		sendSyncMessage(message, messageID, participants);
 	}
 
-	private void sendSyncMessage(Message message){
-		SynchronizedClientSocket clientSocket;
+	private void sendSyncMessage(Message message, int messageID, Set<InetSocketAddress> participants){
 		message.put("sync", (Boolean)true);
 		message.put("serverAddress", new InetSocketAddress(url, port));
-		message.put("serverMessageID", localMessageCounter);
-		for (InetSocketAddress address : battlefields.keySet()) {
-			if(address.equals(new InetSocketAddress(url, port))) continue;
-			clientSocket = new SynchronizedClientSocket(message, address, this);
+		message.put("serverMessageID", messageID);
+		outbox.multicast(participants, message);
+	}
+
+	/**
+	 * Commits an action of a local unit that only touches cells owned by
+	 * this battlefield. It is checked against the actions still being
+	 * agreed on, as a remote owner would do, instead of asking anyone.
+	 * The caller holds the state lock shared and the locks of the cells
+	 * the action touches.
+	 */
+	private void decideLocally(Message message, Integer messageID) {
+		Set<Integer> toCancel = new HashSet<Integer>();
+		if (findConflict(message, toCancel)) {
+			refuseSpawn(message, (MessageRequest)message.get("request"));
+			return;
+		}
+		for (Integer ownID : toCancel) {
+			ActionInfo info = pendingOwnActions.get(ownID);
+			if (info != null && removePendingOwnAction(ownID, info)) info.timer.cancel();
+		}
+		Message confirm = message.clone();
+		confirm.put("sync", (Boolean)false);
+		confirm.put("serverAddress", new InetSocketAddress(url, port));
+		confirm.put("serverMessageID", messageID);
+		ActionInfo action = new ActionInfo(message, null, false);
+		action.participants = new HashSet<InetSocketAddress>();
+		commitOwnAction(confirm, action);
+	}
+
+	/**
+	 * Tells a unit whose spawn was refused or undone that it is not on the map.
+	 */
+	private void refuseSpawn(Message message, MessageRequest action) {
+		if (action != MessageRequest.spawnUnit) return;
+		Message reply = new Message();
+		reply.put("request", MessageRequest.spawnAck);
+		reply.put("succeded", false);
+		new SynchronizedClientSocket(reply, (InetSocketAddress)message.get("address"), this).sendMessage();
+	}
+
+	/**
+	 * Optimistic mode: applies an action of a local unit right away if the
+	 * local map allows it, answers the unit and only then tells the other
+	 * battlefields. Conflicts with their actions are settled as they come
+	 * in, see {@link #processOptimisticMessage(Message)}.
+	 */
+	private void executeOptimistically(Message message, int messageID) {
+		Message toPlayer;
+		Message applied;
+		stateLock.readLock().lock();
+		CellLocks.Held held = lockCellsOf(message);
+		try {
+			if (findConflict(message, new HashSet<Integer>())) {
+				refuseSpawn(message, (MessageRequest)message.get("request"));
+				return;
+			}
+			applied = message.clone();
+			applied.put("request", MessageRequest.SyncActionOptimistic);
+			applied.put("action", message.get("request"));
+			applied.put("serverAddress", new InetSocketAddress(url, port));
+			applied.put("serverMessageID", messageID);
+			applied.put("bfId", id);
+			applied.put("vclock", vClock.incrementClock(id));
+			toPlayer = applyOptimistically(applied);
+			outbox.multicast(otherBattlefields(), applied);
+		} finally {
+			held.unlock();
+			stateLock.readLock().unlock();
+		}
+		if (toPlayer != null)
+			new SynchronizedClientSocket(toPlayer, (InetSocketAddress)message.get("address"), this).sendMessage();
+	}
+
+	/**
+	 * Optimistic mode: applies an action another battlefield already
+	 * applied. If it conflicts with actions applied here within the last
+	 * {@link #OPTIMISTIC_WINDOW} ms, every battlefield keeps the one that
+	 * wins by {@link #wins(Message, Message)}: a losing incoming action is
+	 * dropped, losing local ones are rolled back first. An incoming action
+	 * the map does not allow conflicts with an older change and is dropped
+	 * as well.
+	 */
+	private void processOptimisticMessage(Message msg) {
+		Message action = msg.clone();
+		action.put("request", msg.get("action"));
+		// Rollbacks change the state too
+		stateLock.readLock().lock();
+		try {
+			CellLocks.Held held = lockCellsOf(action);
+			try {
+				if (settleOptimistic(msg, action, false)) return;
+			} finally {
+				held.unlock();
+			}
+			// Rolling back touches the rivals' cells as well
+			locks.lockAll();
+			try {
+				settleOptimistic(msg, action, true);
+			} finally {
+				locks.unlockAll();
+			}
+		} finally {
+			stateLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return false if rivals have to be rolled back first, which is only
+	 * done when rollBack is set
+	 */
+	private boolean settleOptimistic(Message msg, Message action, boolean rollBack) {
+		List<AppliedAction> rivals = rivalsOf(action);
+		for (AppliedAction rival : rivals) {
+			if (wins(rival.message, msg)) return true;
+		}
+		if (!rivals.isEmpty()) {
+			if (!rollBack) return false;
+			rollBackWithDependents(rivals);
+		}
+		if (findConflict(action, new HashSet<Integer>())) {
+			rolledBackActions.incrementAndGet();
+			return true;
+		}
+		applyOptimistically(msg);
+		return true;
+	}
+
+	/**
+	 * Rolls back the actions along with every later action that shares a
+	 * cell with one of them, as it may build on what is undone, latest
+	 * first. The caller holds every cell lock.
+	 */
+	private void rollBackWithDependents(List<AppliedAction> undone) {
+		List<AppliedAction> all = new ArrayList<AppliedAction>(undone);
+		for (int i = 0; i < all.size(); i++) {
+			AppliedAction applied = all.get(i);
+			for (int c = 0; c < applied.cells.length; c += 2) {
+				for (AppliedAction later : recentActions.at(applied.cells[c], applied.cells[c + 1])) {
+					if (later.order > applied.order && !all.contains(later)) all.add(later);
+				}
+			}
+		}
+		Collections.sort(all, new Comparator<AppliedAction>() {
+			public int compare(AppliedAction a, AppliedAction b) {
+				return Long.compare(b.order, a.order);
+			}
+		});
+		for (AppliedAction applied : all)
+			rollBack(applied);
+	}
+
+	/**
+	 * Applies an action and remembers what it changed, so it can be rolled
+	 * back while a conflicting action may still arrive. The caller holds
+	 * the locks of the cells it touches.
+	 */
+	private Message applyOptimistically(Message msg) {
+		final Message action = msg.clone();
+		action.put("request", msg.get("action"));
+		final AppliedAction applied = new AppliedAction(msg, cellsOf(action), appliedOrder.incrementAndGet());
+		int x = (Integer)msg.get("x");
+		int y = (Integer)msg.get("y");
+		int hitPoints = 0;
+		switch ((MessageRequest)action.get("request")) {
+		case moveUnit:
+			applied.unit = units.get((InetSocketAddress)msg.get("address"));
+			if (applied.unit != null) {
+				applied.fromX = applied.unit.getX();
+				applied.fromY = applied.unit.getY();
+			}
+			break;
+		case dealDamage:
+		case healDamage:
+			applied.unit = getUnit(x, y);
+			if (applied.unit != null) hitPoints = applied.unit.getHitPoints();
+			break;
+		default:
+			break;
+		}
+
+		Message toPlayer = processEvent(msg, new ActionInfo(action, null, false));
+		if (action.get("request") == MessageRequest.spawnUnit) {
+			// The battlefield spawned its own copy of the unit, if any
+			Unit spawned = getUnit(x, y);
+			if (spawned != null && spawned.getAddress().equals(msg.get("address")))
+				applied.unit = spawned;
+		}
+		if (applied.unit != null)
+			applied.hitPointChange = applied.unit.getHitPoints() - hitPoints;
+		confirmedActions.incrementAndGet();
+
+		for (int i = 0; i < applied.cells.length; i += 2)
+			recentActions.add(applied.cells[i], applied.cells[i + 1], applied);
+		applied.expiry = HashedWheelTimer.getDefault().schedule(new Runnable() {
+			public void run() {
+				forget(applied);
+			}
+		}, OPTIMISTIC_WINDOW, TimeUnit.MILLISECONDS);
+		return toPlayer;
+	}
+
+	/**
+	 * Undoes an applied action and logs the undo, so a replay of the log
+	 * does not bring the action back. The unit's battlefield sees the undo
+	 * in its next game state update, a refused spawn is told to the unit
+	 * directly. The caller holds the state lock and every cell lock.
+	 */
+	private void rollBack(AppliedAction applied) {
+		applied.expiry.cancel();
+		forget(applied);
+		rolledBackActions.incrementAndGet();
+		confirmedActions.decrementAndGet();
+
+		Message msg = applied.message;
+		MessageRequest kind = (MessageRequest)msg.get("action");
+		int x = (Integer)msg.get("x");
+		int y = (Integer)msg.get("y");
+		Unit unit = applied.unit;
+		if (unit == null) return;
+		InetSocketAddress address = (InetSocketAddress)msg.get("address");
+		switch (kind) {
+		case spawnUnit:
+			if (map.get(x, y) == unit) {
+				map.set(x, y, null);
+				units.remove(unit.getAddress(), unit);
+				journal.record(StateDelta.remove(x, y));
+				logger.write(new LogEntry(vClock.incrementClock(id), LogEntryType.REMOVE, address, new Position(x, y)));
+			}
+			if (new InetSocketAddress(url, port).equals(msg.get("serverAddress")))
+				refuseSpawn(msg, kind);
+			break;
+		case moveUnit:
+			if (map.get(x, y) == unit && moveUnit(unit, applied.fromX, applied.fromY))
+				logger.write(new LogEntry(vClock.incrementClock(id), LogEntryType.MOVE, address, new Position(x, y), new Position(applied.fromX, applied.fromY)));
+			break;
+		case dealDamage:
+		case healDamage:
+			unit.setHitPoints(unit.getHitPoints() - applied.hitPointChange);
+			if (map.get(x, y) == unit) {
+				journal.record(StateDelta.hitPoints(x, y, unit.getHitPoints()));
+				if (applied.hitPointChange != 0)
+					logger.write(new LogEntry(vClock.incrementClock(id), applied.hitPointChange > 0 ? LogEntryType.ATACK : LogEntryType.HEAL,
+							address, new Position(x, y), new Position(x, y), Math.abs(applied.hitPointChange)));
+			} else if (map.get(x, y) == null && unit.getHitPoints() > 0 && inGame(unit) && spawnUnit(unit, unit.getAddress(), x, y)) {
+				// The blow was fatal, the unit comes back as it was
+				LogEntry entry = new LogEntry(vClock.incrementClock(id), LogEntryType.SPAWN, unit.getAddress(), new Position(x, y));
+				entry.setUnit(unit.getUnitType(), unit.getMaxHitPoints(), unit.getHitPoints(), unit.getAttackPoints(), unit.getBattlefieldAddress());
+				logger.write(entry);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @return false if a unit taken off the map left the game since, or
+	 * its battlefield did, so it must not be put back
+	 */
+	private boolean inGame(Unit unit) {
+		return !units.containsKey(unit.getAddress()) && !departedUnits.contains(unit.getAddress())
+				&& battlefields.containsKey(unit.getBattlefieldAddress());
+	}
+
+	/**
+	 * Optimistic mode: remembers a unit that left the game for as long as
+	 * a blow that killed it may be rolled back.
+	 */
+	private void departed(final InetSocketAddress address) {
+		if (SYNC_MODE != SyncMode.optimistic) return;
+		departedUnits.add(address);
+		HashedWheelTimer.getDefault().schedule(new Runnable() {
+			public void run() {
+				departedUnits.remove(address);
+			}
+		}, OPTIMISTIC_WINDOW, TimeUnit.MILLISECONDS);
+	}
+
+	private void forget(AppliedAction applied) {
+		for (int i = 0; i < applied.cells.length; i += 2)
+			recentActions.remove(applied.cells[i], applied.cells[i + 1], applied);
+	}
+
+	/**
+	 * @return the recently applied actions that conflict with the action:
+	 * those sharing a cell with it that its battlefield had not seen yet,
+	 * unless both only change hit points
+	 */
+	private List<AppliedAction> rivalsOf(Message action) {
+		int[] clock = (int[])action.get("vclock");
+		MessageRequest kind = (MessageRequest)action.get("request");
+		boolean hits = kind == MessageRequest.dealDamage || kind == MessageRequest.healDamage;
+		int[] cells = cellsOf(action);
+		List<AppliedAction> rivals = new ArrayList<AppliedAction>();
+		for (int i = 0; i < cells.length; i += 2) {
+			for (AppliedAction applied : recentActions.at(cells[i], cells[i + 1])) {
+				MessageRequest other = (MessageRequest)applied.message.get("action");
+				if (hits && (other == MessageRequest.dealDamage || other == MessageRequest.healDamage)) continue;
+				if (VectorialClock.happenedBefore((int[])applied.message.get("vclock"), clock)) continue;
+				if (!rivals.contains(applied)) rivals.add(applied);
+			}
+		}
+		return rivals;
+	}
+
+	/**
+	 * @return whether action a wins over the conflicting action b: the one
+	 * that happened first, or for concurrent actions the one from the
+	 * battlefield with the lowest id
+	 */
+	private static boolean wins(Message a, Message b) {
+		int[] clockA = (int[])a.get("vclock");
+		int[] clockB = (int[])b.get("vclock");
+		if (VectorialClock.happenedBefore(clockA, clockB)) return true;
+		if (VectorialClock.happenedBefore(clockB, clockA)) return false;
+		return (Integer)a.get("bfId") < (Integer)b.get("bfId");
+	}
+
+	/**
+	 * Stamps an agreed action of a local unit with the next clock value,
+	 * confirms it to the battlefields that took part and applies it. In
+	 * region mode the other battlefields are then told about the outcome,
+	 * which they apply without having a say, to keep their map current.
+	 * The caller holds the state lock shared, so a copy of the state never
+	 * has the tick of the clock without the action, and the cell locks.
+	 */
+	private void commitOwnAction(Message message, ActionInfo action) {
+		message.put("request", MessageRequest.SyncActionConfirm);
+		message.put("confirm", true);
+		int[] tempClock = vClock.incrementClock(id);
+		//System.out.println("<"+url+":"+port+"> Clock added when action is ready to ship --> "+toStringArray(tempClock));
+		message.put("vclock", tempClock);
+		message.put("action", action.message.get("request"));
+		if (SYNC_MODE == SyncMode.quorum) {
+			// Numbered and sent under one lock so that peers receive them in order
+			synchronized (actionLog) {
+				int sequence = commitSequence.getAndIncrement();
+				message.put("sequence", sequence);
+				actionLog.add(new InetSocketAddress(url, port), sequence, message.clone());
+				outbox.multicast(action.participants, message);
+			}
+		} else {
+			outbox.multicast(action.participants, message);
+		}
+		if (SYNC_MODE == SyncMode.region)
+			notifyKeepers(message, action.participants);
+
+		Message toPlayer = processEvent(message, action);
+		if(toPlayer!=null) {
+			SynchronizedClientSocket clientSocket = new SynchronizedClientSocket(toPlayer, (InetSocketAddress)message.get("address"), this);
 			clientSocket.sendMessage();
 		}
 	}
 
+	/**
+	 * Region mode: tells the battlefields that keep a cell the committed
+	 * action touches, and took no part in it, about its outcome. A move
+	 * carries the unit, for a battlefield it walks in on.
+	 */
+	private void notifyKeepers(Message message, Set<InetSocketAddress> participants) {
+		int x = (Integer)message.get("x");
+		int y = (Integer)message.get("y");
+		Unit actor = units.get((InetSocketAddress)message.get("address"));
+		Set<InetSocketAddress> keepers;
+		if (actor == null || actor.getX() == null)
+			keepers = regions().keepersOf(REGION_MARGIN, new int[] {x, y});
+		else
+			keepers = regions().keepersOf(REGION_MARGIN, new int[] {x, y}, new int[] {actor.getX(), actor.getY()});
+		keepers.removeAll(participants);
+		keepers.remove(new InetSocketAddress(url, port));
+		if (keepers.isEmpty()) return;
+
+		Message notify = message.clone();
+		notify.put("request", MessageRequest.SyncActionNotify);
+		if (notify.get("action") == MessageRequest.moveUnit && actor != null && actor.getX() != null) {
+			notify.put("fromX", actor.getX());
+			notify.put("fromY", actor.getY());
+			notify.put("unitType", actor.getUnitType().ordinal());
+			notify.put("maxHitPoints", actor.getMaxHitPoints());
+			notify.put("hitPoints", actor.getHitPoints());
+			notify.put("attackPoints", actor.getAttackPoints());
+			notify.put("unitBattlefield", actor.getBattlefieldAddress());
+		}
+		outbox.multicast(keepers, notify);
+	}
+
+	/**
+	 * @return whether this battlefield keeps the state of the cell: always,
+	 * except in region mode, see {@link RegionMap#keeps(InetSocketAddress, int, int)}
+	 */
+	private boolean keeps(int x) {
+		return SYNC_MODE != SyncMode.region || regions().keeps(new InetSocketAddress(url, port), REGION_MARGIN, x);
+	}
+
+	/**
+	 * Applies an action another battlefield committed without us, see
+	 * {@link #commitOwnAction(Message, ActionInfo)}.
+	 */
+	private void processNotifyMessage(Message msg) {
+		Message action = msg.clone();
+		action.put("request", msg.get("action"));
+		stateLock.readLock().lock();
+		CellLocks.Held held = lockCellsOf(action);
+		try {
+			processEvent(msg, new ActionInfo(action, null, false));
+		} finally {
+			held.unlock();
+			stateLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return how many of the participants have to accept an own action
+	 * before it is committed
+	 */
+	private int acksNeeded(ActionInfo info) {
+		if (SYNC_MODE != SyncMode.quorum) return info.participants.size();
+		int quorum = QUORUM > 0 ? QUORUM : (info.participants.size() + 1) / 2 + 1;
+		return Math.max(0, Math.min(info.participants.size(), quorum - 1));
+	}
+
+	/**
+	 * Quorum mode: applies an action another battlefield committed, in the
+	 * order that battlefield committed its actions. The action is applied
+	 * even if this battlefield refused it or never heard of it, the quorum
+	 * decided. Missing earlier actions are fetched from the action log of
+	 * a peer; while the game state is being transferred they wait, the
+	 * state tells from where on they are needed.
+	 */
+	private void processQuorumCommit(Message msg) {
+		InetSocketAddress origin = (InetSocketAddress)msg.get("serverAddress");
+		CommitStream stream = streamOf(origin);
+		synchronized (stream) {
+			applyCommits(origin, stream, stream.buffer.offer(0, (Integer)msg.get("sequence"), msg));
+			if (transfer == null) catchUp(origin, stream);
+		}
+	}
+
+	/**
+	 * @return the commit stream of the battlefield, which starts at its
+	 * first commit
+	 */
+	private CommitStream streamOf(InetSocketAddress origin) {
+		CommitStream stream = commitStreams.get(origin);
+		if (stream == null) {
+			CommitStream created = new CommitStream();
+			stream = commitStreams.putIfAbsent(origin, created);
+			if (stream == null) stream = created;
+		}
+		return stream;
+	}
+
+	/**
+	 * Quorum mode: applies the commits of a stream that are next in order.
+	 * The caller holds the monitor of the stream.
+	 */
+	private void applyCommits(InetSocketAddress origin, CommitStream stream, List<Message> ready) {
+		for (Message committed : ready) {
+			Integer messageID = (Integer)committed.get("serverMessageID");
+			ActionInfo pending = removePendingOutsideAction(new ActionID(messageID, origin));
+			if (pending != null) pending.timer.cancel();
+
+			Message action = committed.clone();
+			action.put("request", committed.get("action"));
+			// A copy of the state always has the commits before the position of the stream
+			stateLock.readLock().lock();
+			CellLocks.Held held = lockCellsOf(action);
+			try {
+				processEvent(committed, new ActionInfo(action, null, false));
+				stream.applied = (Integer)committed.get("sequence") + 1;
+			} finally {
+				held.unlock();
+				stateLock.readLock().unlock();
+			}
+			confirmedActions.incrementAndGet();
+			actionLog.add(origin, (Integer)committed.get("sequence"), committed);
+		}
+	}
+
+	/**
+	 * Quorum mode: asks for the commits a stream is missing, at most once
+	 * per timeout. They come from the battlefield that made them or, once
+	 * it is gone, from any other, as every battlefield logs the commits it
+	 * applied. The caller holds the monitor of the stream.
+	 */
+	private void catchUp(InetSocketAddress origin, CommitStream stream) {
+		long now = System.currentTimeMillis();
+		if (stream.buffer.heldBack() == 0 || now - stream.lastCatchUp < timeout) return;
+		InetSocketAddress from = origin;
+		if (!battlefields.containsKey(origin)) {
+			List<InetSocketAddress> others = new ArrayList<InetSocketAddress>(otherBattlefields());
+			if (others.isEmpty()) return;
+			from = others.get(0);
+		}
+		stream.lastCatchUp = now;
+		Message request = new Message();
+		request.put("request", MessageRequest.actionLogRequest);
+		request.put("bfAddress", origin);
+		request.put("serverAddress", new InetSocketAddress(url, port));
+		request.put("sequence", stream.buffer.next());
+		ConnectionPool.getDefault().send(from, request, this, false);
+	}
+
+	/**
+	 * Quorum mode: retries the catch-up of every stream still missing
+	 * commits, every timeout, in case a request or its answer got lost.
+	 */
+	private void scheduleCatchUp() {
+		final Runnable retry = new Runnable() {
+			public void run() {
+				try {
+					if (transfer != null) return;
+					for (Map.Entry<InetSocketAddress, CommitStream> entry : commitStreams.entrySet()) {
+						synchronized (entry.getValue()) {
+							catchUp(entry.getKey(), entry.getValue());
+						}
+					}
+				} finally {
+					scheduleCatchUp();
+				}
+			}
+		};
+		HashedWheelTimer.getDefault().schedule(new Runnable() {
+			public void run() {
+				// The stream monitors may be held by a handler for long, keep them off the timer thread
+				background.execute(retry);
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sequencer mode: hands an action of a local unit to the sequencer,
+	 * which decides on it and tells every battlefield when to apply it.
+	 */
+	private void submitToSequencer(Message message, int messageID) {
+		InetSocketAddress local = new InetSocketAddress(url, port);
+		Timeout timer = HashedWheelTimer.getDefault().schedule(new ScheduledTask(this, messageID), timeout, TimeUnit.MILLISECONDS);
+		ActionInfo info = new ActionInfo(message, timer, false);
+		info.ownID = messageID;
+		pendingOwnActions.put(messageID, info);
+
+		Message proposal = message.clone();
+		proposal.put("request", MessageRequest.SyncActionSequence);
+		proposal.put("action", message.get("request"));
+		proposal.put("serverAddress", local);
+		proposal.put("serverMessageID", messageID);
+		InetSocketAddress sequencer = sequencer();
+		if (sequencer.equals(local))
+			sequenceAction(proposal);
+		else
+			outbox.send(sequencer, proposal);
+	}
+
+	/**
+	 * Sequencer mode, on the sequencer: checks a submitted action against
+	 * the map, which already holds every action numbered before it, then
+	 * gives it the next number and clock value and sends it to everyone.
+	 */
+	private void sequenceAction(Message proposal) {
+		InetSocketAddress local = new InetSocketAddress(url, port);
+		InetSocketAddress origin = (InetSocketAddress)proposal.get("serverAddress");
+
+		Message action = proposal.clone();
+		action.put("request", proposal.get("action"));
+		synchronized (sequenced) {
+			if (!leading) {
+				// Numbered once the takeover is done; otherwise sent before the sender saw us step down, it times out there
+				if (takeover != null) takeover.proposals.add(proposal);
+				return;
+			}
+			boolean conflictFound;
+			CellLocks.Held held = lockCellsOf(action);
+			try {
+				conflictFound = findConflict(action, new HashSet<Integer>());
+			} finally {
+				held.unlock();
+			}
+
+			Message ordered = proposal.clone();
+			ordered.put("request", MessageRequest.SyncActionOrdered);
+			ordered.put("confirm", !conflictFound);
+			if (conflictFound) {
+				if (origin.equals(local)) processOrderedMessage(ordered);
+				else outbox.send(origin, ordered);
+				return;
+			}
+			ordered.put("bfAddress", origin);
+			ordered.put("serverAddress", local);
+			ordered.put("sequence", sequenced.next());
+			ordered.put("epoch", sequenced.epoch());
+			ordered.put("vclock", vClock.incrementClock(id));
+			outbox.multicast(otherBattlefields(), ordered);
+			processOrderedMessage(ordered);
+		}
+	}
+
+	/**
+	 * Sequencer mode: applies the actions numbered by the sequencer in
+	 * order. A refused action only goes back to the battlefield of the unit.
+	 */
+	private void processOrderedMessage(Message msg) {
+		InetSocketAddress local = new InetSocketAddress(url, port);
+		if (!(Boolean)msg.get("confirm")) {
+			Integer ownID = (Integer)msg.get("serverMessageID");
+			ActionInfo own = pendingOwnActions.get(ownID);
+			if (own == null || !removePendingOwnAction(ownID, own)) return;
+			own.timer.cancel();
+			refuseSpawn(msg, (MessageRequest)msg.get("action"));
+			return;
+		}
+
+		synchronized (sequenced) {
+			deliverOrdered(sequenced.offer((Integer)msg.get("epoch"), (Integer)msg.get("sequence"), msg));
+		}
+	}
+
+	/**
+	 * Sequencer mode: applies numbered actions that are next in order and
+	 * keeps them for a sequencer that takes over. The caller holds the
+	 * monitor of the sequence buffer.
+	 */
+	private void deliverOrdered(List<Message> ready) {
+		InetSocketAddress local = new InetSocketAddress(url, port);
+		for (Message ordered : ready) {
+			Message action = ordered.clone();
+			action.put("request", ordered.get("action"));
+			Message toPlayer;
+			stateLock.readLock().lock();
+			CellLocks.Held held = lockCellsOf(action);
+			try {
+				toPlayer = processEvent(ordered, new ActionInfo(action, null, false));
+			} finally {
+				held.unlock();
+				stateLock.readLock().unlock();
+			}
+			confirmedActions.incrementAndGet();
+			actionLog.add(SEQUENCED, (Integer)ordered.get("sequence"), ordered);
+
+			if (!local.equals(ordered.get("bfAddress"))) continue;
+			Integer ownID = (Integer)ordered.get("serverMessageID");
+			ActionInfo own = pendingOwnActions.get(ownID);
+			if (own != null && removePendingOwnAction(ownID, own)) own.timer.cancel();
+			if (toPlayer != null)
+				new SynchronizedClientSocket(toPlayer, (InetSocketAddress)ordered.get("address"), this).sendMessage();
+		}
+	}
+
+	/**
+	 * Sequencer mode: called whenever the battlefields change. The lowest
+	 * one takes over as sequencer unless it already is; any other stops
+	 * numbering actions.
+	 */
+	private void checkSequencer() {
+		if (SYNC_MODE != SyncMode.sequencer || transfer != null) return;
+		synchronized (sequenced) {
+			if (!sequencer().equals(new InetSocketAddress(url, port))) {
+				leading = false;
+				takeover = null;
+				return;
+			}
+			if (!leading && takeover == null)
+				startTakeover(sequenced.epoch() + 1, new ArrayList<Message>());
+		}
+	}
+
+	/**
+	 * Sequencer mode: starts numbering actions in a new epoch. Every other
+	 * battlefield first moves to the epoch, so it ignores what the old
+	 * sequencer still sends, and tells how far it got. The caller holds the
+	 * monitor of the sequence buffer.
+	 */
+	private void startTakeover(int epoch, List<Message> proposals) {
+		final Takeover started = new Takeover(epoch, otherBattlefields(), sequenced.next(), proposals);
+		takeover = started;
+		leading = false;
+		sequenced.enter(epoch);
+
+		Message message = new Message();
+		message.put("request", MessageRequest.sequencerTakeover);
+		message.put("serverAddress", new InetSocketAddress(url, port));
+		message.put("epoch", epoch);
+		message.put("sequence", sequenced.next());
+		ConnectionPool.getDefault().multicast(started.waiting, message, this);
+		started.timer = HashedWheelTimer.getDefault().schedule(new Runnable() {
+			public void run() {
+				// Delivering takes locks, keep it off the timer thread
+				background.execute(new Runnable() {
+					public void run() {
+						synchronized (sequenced) {
+							finishTakeover(started);
+						}
+					}
+				});
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		if (started.waiting.isEmpty()) finishTakeover(started);
+	}
+
+	/**
+	 * Sequencer mode: moves to the epoch of a battlefield that takes over
+	 * and sends it the numbered actions it misses.
+	 */
+	private void answerTakeover(Message msg) {
+		int from = (Integer)msg.get("sequence");
+		Message reply = new Message();
+		reply.put("request", MessageRequest.sequencerState);
+		reply.put("serverAddress", new InetSocketAddress(url, port));
+		synchronized (sequenced) {
+			if (sequenced.enter((Integer)msg.get("epoch"))) {
+				leading = false;
+				takeover = null;
+			}
+			reply.put("epoch", sequenced.epoch());
+			reply.put("sequence", sequenced.next());
+			List<Message> missed = actionLog.since(SEQUENCED, from);
+			reply.put("messages", missed.toArray(new Message[missed.size()]));
+		}
+		ConnectionPool.getDefault().send((InetSocketAddress)msg.get("serverAddress"), reply, this, false);
+	}
+
+	private void takeoverAnswered(Message msg) {
+		synchronized (sequenced) {
+			Takeover current = takeover;
+			if (current == null || !current.waiting.remove((InetSocketAddress)msg.get("serverAddress"))) return;
+			current.newest = Math.max(current.newest, (Integer)msg.get("epoch"));
+			int delivered = (Integer)msg.get("sequence");
+			current.lowest = Math.min(current.lowest, delivered);
+			if (delivered > current.highest) {
+				current.highest = delivered;
+				current.missing = (Message[])msg.get("messages");
+			}
+			if (current.waiting.isEmpty()) finishTakeover(current);
+		}
+	}
+
+	/**
+	 * Sequencer mode: ends a takeover once every battlefield answered, or
+	 * it timed out. This battlefield first applies what the furthest one
+	 * had, then sends every battlefield what the least far one lacks, and
+	 * only then numbers actions. Another battlefield that is in a later
+	 * epoch already makes it start over in the epoch after that one. The
+	 * caller holds the monitor of the sequence buffer.
+	 */
+	private void finishTakeover(Takeover finished) {
+		if (takeover != finished) return;
+		finished.timer.cancel();
+		takeover = null;
+		if (finished.newest > finished.epoch) {
+			startTakeover(finished.newest + 1, finished.proposals);
+			return;
+		}
+
+		for (Message missed : finished.missing) {
+			Message again = missed.clone();
+			again.put("epoch", finished.epoch);
+			deliverOrdered(sequenced.offer(finished.epoch, (Integer)again.get("sequence"), again));
+		}
+		if (sequenced.next() < finished.highest) {
+			System.out.println("Sequencer takeover: actions " + sequenced.next() + " to " + (finished.highest - 1) + " are lost");
+			deliverOrdered(sequenced.skipTo(finished.highest));
+		}
+		List<Message> resend = new ArrayList<Message>();
+		for (Message ordered : actionLog.since(SEQUENCED, finished.lowest)) {
+			Message again = ordered.clone();
+			again.put("epoch", finished.epoch);
+			resend.add(again);
+		}
+		if (!resend.isEmpty()) {
+			Message batch = new Message();
+			batch.put("request", MessageRequest.syncBatch);
+			batch.put("messages", resend.toArray(new Message[resend.size()]));
+			ConnectionPool.getDefault().multicast(otherBattlefields(), batch, this);
+		}
+
+		leading = true;
+		System.out.println("Numbering actions from " + sequenced.next() + " in epoch " + finished.epoch);
+		for (Message proposal : finished.proposals)
+			sequenceAction(proposal);
+	}
+
+	/**
+	 * @return the battlefield that numbers actions in sequencer mode, the
+	 * lowest one. Once {@link #checkBFFailures(InetSocketAddress)} drops it
+	 * the next one takes over.
+	 */
+	private InetSocketAddress sequencer() {
+		return Collections.min(new ArrayList<InetSocketAddress>(battlefields.keySet()), RegionMap.ADDRESS_ORDER);
+	}
+
+	/**
+	 * @return the other battlefields owning a cell the action touches: the
+	 * target cell and, for units already on the map, the unit's own cell
+	 */
+	private Set<InetSocketAddress> ownersOfAction(Message message) {
+		int x = (Integer)message.get("x");
+		int y = (Integer)message.get("y");
+		Unit actor = units.get((InetSocketAddress)message.get("address"));
+		Set<InetSocketAddress> owners;
+		if (actor == null || actor.getX() == null)
+			owners = regions().ownersOf(new int[] {x, y});
+		else
+			owners = regions().ownersOf(new int[] {x, y}, new int[] {actor.getX(), actor.getY()});
+		owners.remove(new InetSocketAddress(url, port));
+		return owners;
+	}
+
+	private RegionMap regions() {
+		RegionMap regions = regionMap;
+		if (regions == null || !regions.isFor(battlefields.keySet())) {
+			regionMap = regions = new RegionMap(battlefields.keySet(), MAP_WIDTH);
+			background.execute(new Runnable() {
+				public void run() {
+					shareServedUnits();
+				}
+			});
+		}
+		return regions;
+	}
+
+	/**
+	 * Region mode: once the strips changed, tells every other battlefield
+	 * which units this one serves, so each can take over the units that
+	 * now stand in its strip and keep its new part of the map.
+	 */
+	private void shareServedUnits() {
+		InetSocketAddress local = new InetSocketAddress(url, port);
+		List<StateDelta> served = new ArrayList<StateDelta>();
+		stateLock.readLock().lock();
+		locks.lockAll();
+		try {
+			for (Unit unit : units.values()) {
+				if (local.equals(unit.getBattlefieldAddress()) && unit.getX() != null)
+					served.add(StateDelta.spawn(unit, unit.getX(), unit.getY()));
+			}
+		} finally {
+			locks.unlockAll();
+			stateLock.readLock().unlock();
+		}
+		Message message = new Message();
+		message.put("request", MessageRequest.regionUnits);
+		message.put("serverAddress", local);
+		message.put("deltas", served.toArray(new StateDelta[served.size()]));
+		ConnectionPool.getDefault().multicast(otherBattlefields(), message, this);
+		adoptUnits(local, new StateDelta[0]);
+	}
+
+	/**
+	 * Region mode: keeps the units another battlefield serves that stand in
+	 * the part of the map kept here, takes over those in the local strip
+	 * and lets go of every unit outside the kept part. Neither is logged;
+	 * a restarted battlefield gets them back with the game state.
+	 */
+	private void adoptUnits(InetSocketAddress server, StateDelta[] served) {
+		stateLock.readLock().lock();
+		locks.lockAll();
+		try {
+			for (StateDelta delta : served) {
+				Unit unit = units.get(delta.getAddress());
+				if (unit == null && keeps(delta.getX())) {
+					unit = Unit.replicaOf(delta.getUnitType(), delta.getAddress(), server, delta.getMaxHitPoints(), delta.getHitPoints(), delta.getAttackPoints());
+					if (!spawnUnit(unit, delta.getAddress(), delta.getX(), delta.getY())) unit = null;
+				}
+				if (unit != null) handOff(unit, unit.getX(), unit.getY());
+			}
+			dropUnkeptUnits();
+		} finally {
+			locks.unlockAll();
+			stateLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Region mode: lets go of the units outside the part of the map kept
+	 * here. The caller holds every cell lock.
+	 */
+	private void dropUnkeptUnits() {
+		for (Unit unit : new ArrayList<Unit>(units.values())) {
+			if (unit.getX() != null && !keeps(unit.getX()))
+				dropUnit(unit.getAddress());
+		}
+	}
+
+	/**
+	 * In region mode a unit is served by the owner of the cell it stands
+	 * on. Called on every battlefield after the unit spawned or moved; the
+	 * new owner tells the unit where to send its actions from now on.
+	 */
+	private void handOff(Unit unit, int x, int y) {
+		if (SYNC_MODE != SyncMode.region) return;
+		InetSocketAddress owner = regions().ownerOf(x, y);
+		if (owner.equals(unit.getBattlefieldAddress())) return;
+		unit.setBattlefieldAddress(owner);
+		sentViews.remove(unit.getAddress());
+		if (owner.equals(new InetSocketAddress(url, port))) {
+			Message message = new Message();
+			message.put("request", MessageRequest.handoff);
+			message.put("bfAddress", owner);
+			new SynchronizedClientSocket(message, unit.getAddress(), this).sendMessage();
+		}
+	}
+
+	/**
+	 * Gives a battlefield that joined an entry in the vector clock.
+	 */
+	private void addMember(InetSocketAddress address, Integer bfId) {
+		if (bfId == null) return;
+		bfIds.put(address, bfId);
+		vClock.addMember(bfId);
+	}
+
+	private Set<InetSocketAddress> otherBattlefields() {
+		Set<InetSocketAddress> others = new HashSet<InetSocketAddress>(battlefields.keySet());
+		others.remove(new InetSocketAddress(url, port));
+		return others;
+	}
+
 	public InetSocketAddress getAddress() {
 		return new InetSocketAddress(url, port);
 	}
@@ -872,9 +2507,10 @@ public class BattleField implements IMessageReceivedHandler {
 		}*/
 
 		//serverSocket.unRegister();
+		heartbeat.stop();
 	}
 
-	private class ScheduledTask extends TimerTask implements Runnable {
+	private class ScheduledTask implements Runnable {
 		private BattleField handler;
 		private boolean outsideAction;
 		private ActionID id;
@@ -899,9 +2535,12 @@ public class BattleField implements IMessageReceivedHandler {
 			System.out.println("TIME OUT");
 			//handler.checkBFFailures(destinationAddress);
 			if(outsideAction) {
-				handler.pendingOutsideActions.remove(id);
+				if (handler.removePendingOutsideAction(id) != null)
+					handler.expiredActions.incrementAndGet();
 			} else {
-				handler.pendingOwnActions.remove(idInt);
+				ActionInfo info = handler.pendingOwnActions.get(idInt);
+				if (info != null && handler.removePendingOwnAction(idInt, info))
+					handler.expiredActions.incrementAndGet();
 			}			
 		}
 	}
@@ -909,13 +2548,7 @@ public class BattleField implements IMessageReceivedHandler {
 	private void synchronizeWithAllBF(Message messageToSend) {
 
 		//SyncLog syncLog = new SyncLog();
-		SynchronizedClientSocket syncClientSocket;
-
-		for(InetSocketAddress address : battlefields.keySet()) {
-			if (address.getHostName().equals(url) && address.getPort() == port) continue;
-			syncClientSocket = new SynchronizedClientSocket(messageToSend, address, this);
-			syncClientSocket.sendMessage();
-		}
+		ConnectionPool.getDefault().multicast(otherBattlefields(), messageToSend, this);
 
 		/*
 		//Assume that it always gets a response from at least one of the GS
@@ -937,20 +2570,9 @@ public class BattleField implements IMessageReceivedHandler {
 			if(gsAvailable) return message;
 			break;
 		case gameState:
-			Unit u;
-			synchronized (this) {
-				u = units.remove(destinationAddress);
-				map[u.getX()][u.getY()] = null;
-			}
-			Integer[] tempClock = vClock.incrementClock(id);
-			LogEntry entry = new LogEntry(tempClock, LogEntryType.DISCONNECTED_UNIT, destinationAddress);
-			logger.writeAsText(entry, true);
-			Message replyMessage = new Message();
-			replyMessage.put("request", MessageRequest.disconnectedUnit);
-			replyMessage.put("unitAddress", destinationAddress);
-			replyMessage.put("vclock", tempClock);
-			
-			synchronizeWithAllBF(replyMessage);
+			// A lost update is no failure while the unit still sends heartbeats
+			if (!failureDetector.isAvailable(destinationAddress))
+				disconnectUnit(destinationAddress);
 			break;
 		default:
 			break;
@@ -983,11 +2605,79 @@ public class BattleField implements IMessageReceivedHandler {
 
 	}
 
+	private static class UnitView {
+		public final int tick;
+		public final int x, y;
+		public final StateDelta[] landmarks;
+		public UnitView(int tick, int x, int y, StateDelta[] landmarks) {
+			this.tick = tick;
+			this.x = x;
+			this.y = y;
+			this.landmarks = landmarks;
+		}
+	}
+
+	/* Optimistic mode: an applied action and what it changed */
+	private static class AppliedAction {
+		public final Message message;
+		public final int[] cells;
+		public final long order;
+		public Timeout expiry;
+		/* The unit spawned, moved, hit or healed */
+		public Unit unit;
+		public int fromX, fromY;
+		public int hitPointChange;
+		public AppliedAction(Message message, int[] cells, long order) {
+			this.message = message;
+			this.cells = cells;
+			this.order = order;
+		}
+	}
+
+	/* Sequencer mode: a battlefield taking over as sequencer, waiting for the others */
+	private static class Takeover {
+		public final int epoch;
+		public final Set<InetSocketAddress> waiting;
+		/* Proposals that came meanwhile, numbered once it is done */
+		public final List<Message> proposals;
+		public Timeout timer;
+		/* Latest epoch of an answer, and how far the least and the most advanced battlefield got */
+		public int newest;
+		public int lowest, highest;
+		/* What the most advanced one has beyond this battlefield */
+		public Message[] missing = new Message[0];
+		public Takeover(int epoch, Collection<InetSocketAddress> others, int next, List<Message> proposals) {
+			this.epoch = epoch;
+			this.waiting = new HashSet<InetSocketAddress>(others);
+			this.proposals = proposals;
+			this.newest = epoch;
+			this.lowest = next;
+			this.highest = next;
+		}
+	}
+
+	/* Quorum mode: commits of one other battlefield, applied in its order */
+	private static class CommitStream {
+		public final SequenceBuffer buffer = new SequenceBuffer();
+		public long lastCatchUp;
+		/* Number of the first commit not applied yet, guarded by the state lock */
+		public int applied;
+	}
+
 	private class ActionInfo {
 		public Message message;
-		public Timer timer;
+		public Timeout timer;
 		public Queue<InetSocketAddress> ackReceived;
-		public ActionInfo(Message message, Timer timer, boolean activateQueue) {
+		/* Battlefields that have to acknowledge an own action */
+		public Set<InetSocketAddress> participants;
+		/* Key in pendingOwnActions, null for outside actions */
+		public Integer ownID;
+		/* Cells under which a pending action is indexed */
+		public int targetX, targetY;
+		public int[] source;
+		/* Refusals of an own action, counted in quorum mode */
+		public final AtomicInteger nacks = new AtomicInteger();
+		public ActionInfo(Message message, Timeout timer, boolean activateQueue) {
 			this.message = message;
 			this.timer = timer;
 			if(activateQueue)
@@ -997,23 +2687,16 @@ public class BattleField implements IMessageReceivedHandler {
 		}
 	}
 	
+	/**
+	 * Counts a failed send to a battlefield. Failed sends only evict a
+	 * battlefield the failure detector does not see alive: a slow peer
+	 * still sends heartbeats.
+	 */
 	private synchronized boolean checkBFFailures(InetSocketAddress destinationAddress) {
 		Integer failures = battlefields.get(destinationAddress);
 		if(failures != null) {
-			if (failures > 1) {
-				battlefields.remove(destinationAddress);
-				//Remove all Units connected to this battleField
-				for( Map.Entry<InetSocketAddress, Unit> entry : units.entrySet()) {
-					if(entry.getValue().getBattlefieldAddress().equals(destinationAddress)){
-						removeUnit(entry.getValue().getX(), entry.getValue().getY());
-					}
-					
-				}
-				Message message = new Message();
-				message.put("request", MessageRequest.disconnectedBF);
-				message.put("serverAddress", new InetSocketAddress(url, port));
-				message.put("vclock", vClock.incrementClock(id));
-				synchronizeWithAllBF(message);
+			if (failures > 1 && !failureDetector.isAvailable(destinationAddress)) {
+				evictBattlefield(destinationAddress);
 				return false;
 			}
 			else {
@@ -1023,6 +2706,103 @@ public class BattleField implements IMessageReceivedHandler {
 		return false;
 	}
 
+	/**
+	 * Takes a failed battlefield and the units it served off the game and
+	 * tells the other battlefields.
+	 */
+	private synchronized void evictBattlefield(InetSocketAddress destinationAddress) {
+		if (battlefields.remove(destinationAddress) == null) return;
+		failureDetector.remove(destinationAddress);
+		//Remove all Units connected to this battleField
+		stateLock.readLock().lock();
+		locks.lockAll();
+		try {
+			for( Map.Entry<InetSocketAddress, Unit> entry : units.entrySet()) {
+				if(entry.getValue().getBattlefieldAddress().equals(destinationAddress)){
+					int x = entry.getValue().getX(), y = entry.getValue().getY();
+					removeUnit(x, y);
+					// Logged like a unit that dies, so a restart does not bring it back
+					logger.write(new LogEntry(vClock.getClock(), LogEntryType.REMOVE, entry.getKey(), new Position(x, y)));
+				}
+				
+			}
+		} finally {
+			locks.unlockAll();
+			stateLock.readLock().unlock();
+		}
+		Message message = new Message();
+		message.put("request", MessageRequest.disconnectedBF);
+		message.put("serverAddress", new InetSocketAddress(url, port));
+		Integer failedId = bfIds.remove(destinationAddress);
+		if (failedId != null) {
+			vClock.removeMember(failedId);
+			message.put("bfAddress", destinationAddress);
+			message.put("bfId", failedId);
+		}
+		message.put("vclock", vClock.incrementClock(id));
+		synchronizeWithAllBF(message);
+		checkSequencer();
+	}
+
+	/**
+	 * Takes a unit served here that is gone off the game and tells the
+	 * other battlefields.
+	 */
+	private void disconnectUnit(InetSocketAddress address) {
+		int[] tempClock;
+		stateLock.readLock().lock();
+		try {
+			departed(address);
+			if (dropUnit(address) == null) return;
+			tempClock = vClock.incrementClock(id);
+			logger.write(new LogEntry(tempClock, LogEntryType.DISCONNECTED_UNIT, address));
+		} finally {
+			stateLock.readLock().unlock();
+		}
+		Message replyMessage = new Message();
+		replyMessage.put("request", MessageRequest.disconnectedUnit);
+		replyMessage.put("unitAddress", address);
+		replyMessage.put("serverAddress", new InetSocketAddress(url, port));
+		replyMessage.put("vclock", tempClock);
+		
+		synchronizeWithAllBF(replyMessage);
+	}
+
+	/**
+	 * Sends heartbeats to the other battlefields and takes off the
+	 * battlefields and the units served here that stop sending theirs.
+	 */
+	private void startFailureDetection() {
+		failureDetector = new FailureDetector("FailureDetector " + port, new FailureDetector.Listener() {
+			public void memberFailed(InetSocketAddress member, double phi) {
+				if (otherBattlefields().contains(member)) {
+					System.out.println("Battlefield " + member + " failed, phi " + phi);
+					evictBattlefield(member);
+					return;
+				}
+				Unit unit = units.get(member);
+				// A unit handed off to another battlefield beats there now
+				if (unit != null && getAddress().equals(unit.getBattlefieldAddress())) {
+					System.out.println("Unit " + member + " failed, phi " + phi);
+					disconnectUnit(member);
+				}
+			}
+		});
+		heartbeat = new FailureDetector.Heartbeat() {
+			protected Collection<InetSocketAddress> targets() {
+				return otherBattlefields();
+			}
+
+			protected Message message() {
+				Message beat = new Message();
+				beat.put("request", MessageRequest.heartbeat);
+				beat.put("serverAddress", getAddress());
+				return beat;
+			}
+		};
+		heartbeat.start();
+	}
+
 	private void generateDragons(int numberOfDragons) {
 		/* All the dragons connect */
 		for(int i = 0; i < numberOfDragons; i++) {
@@ -0,0 +1,46 @@
+package distributed.systems.das;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Values kept per map cell, for questions like "which pending actions
+ * target this cell" that would otherwise need a scan over all of them.
+ */
+public class CellIndex<T> {
+
+	private final HashMap<Long, ArrayList<T>> cells = new HashMap<Long, ArrayList<T>>();
+
+	public synchronized void add(int x, int y, T value) {
+		Long key = key(x, y);
+		ArrayList<T> values = cells.get(key);
+		if (values == null) {
+			values = new ArrayList<T>(1);
+			cells.put(key, values);
+		}
+		values.add(value);
+	}
+
+	public synchronized void remove(int x, int y, T value) {
+		Long key = key(x, y);
+		ArrayList<T> values = cells.get(key);
+		if (values == null) return;
+		values.remove(value);
+		if (values.isEmpty()) cells.remove(key);
+	}
+
+	/**
+	 * @return a copy of the values at the cell
+	 */
+	public synchronized List<T> at(int x, int y) {
+		ArrayList<T> values = cells.get(key(x, y));
+		if (values == null) return Collections.emptyList();
+		return new ArrayList<T>(values);
+	}
+
+	private static Long key(int x, int y) {
+		return ((long)x << 32) | (y & 0xffffffffL);
+	}
+}
@@ -0,0 +1,95 @@
+package distributed.systems.das;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped locks over the battlefield map. The map is cut in blocks of
+ * {@link #BLOCK_SIZE} by {@link #BLOCK_SIZE} cells, numbered row by row,
+ * and every block maps to one of {@link #STRIPES} locks; blocks only share
+ * a stripe once there are more blocks than stripes. Actions on distant
+ * cells run in parallel while actions sharing a block are serialized.
+ *
+ * Actions touching several cells take all their stripes in ascending
+ * order, which rules out deadlocks between them. Work that needs the
+ * whole map to stand still, such as a game state snapshot, uses
+ * {@link #lockAll()}; it excludes every cell lock at once.
+ */
+public class CellLocks {
+
+	/* Number of stripes, rounded up to a power of two */
+	public static final int STRIPES = Integer.getInteger("das.lockStripes", 64);
+	/* Side of the square of cells behind one stripe */
+	public static final int BLOCK_SIZE = Integer.getInteger("das.lockBlock", 4);
+
+	private final ReentrantLock[] stripes;
+	private final int mask;
+	private final int blocksPerRow;
+	private final ReentrantReadWriteLock global = new ReentrantReadWriteLock();
+
+	/**
+	 * Cell locks held by the current thread, released with {@link #unlock()}.
+	 */
+	public class Held {
+		private final int[] held;
+
+		private Held(int[] held) {
+			this.held = held;
+		}
+
+		public void unlock() {
+			for (int i = held.length - 1; i >= 0; i--)
+				stripes[held[i]].unlock();
+			global.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param width the number of columns of the map
+	 */
+	public CellLocks(int width) {
+		blocksPerRow = Math.max(1, (width + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		int n = 1;
+		while (n < STRIPES) n <<= 1;
+		stripes = new ReentrantLock[n];
+		for (int i = 0; i < n; i++)
+			stripes[i] = new ReentrantLock();
+		mask = n - 1;
+	}
+
+	/**
+	 * Locks the stripes of the given cells.
+	 * @param cells x and y of every cell, one pair after the other
+	 */
+	public Held lock(int... cells) {
+		int[] indexes = new int[cells.length / 2];
+		for (int i = 0; i < indexes.length; i++)
+			indexes[i] = stripeOf(cells[2 * i], cells[2 * i + 1]);
+		Arrays.sort(indexes);
+
+		int distinct = 0;
+		for (int i = 0; i < indexes.length; i++) {
+			if (i == 0 || indexes[i] != indexes[i - 1])
+				indexes[distinct++] = indexes[i];
+		}
+		int[] held = Arrays.copyOf(indexes, distinct);
+
+		global.readLock().lock();
+		for (int index : held)
+			stripes[index].lock();
+		return new Held(held);
+	}
+
+	public void lockAll() {
+		global.writeLock().lock();
+	}
+
+	public void unlockAll() {
+		global.writeLock().unlock();
+	}
+
+	int stripeOf(int x, int y) {
+		return ((y / BLOCK_SIZE) * blocksPerRow + x / BLOCK_SIZE) & mask;
+	}
+}
@@ -0,0 +1,144 @@
+package distributed.systems.das;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import distributed.systems.das.units.Unit;
+
+/**
+ * Battlefield map stored as square chunks of {@link #CHUNK_SIZE} cells.
+ * A chunk is only allocated once a unit is placed in it and is dropped
+ * again by {@link #trim()} once it is empty, so memory follows the
+ * occupied area rather than the size of the map. Cell lookup is two array
+ * accesses.
+ *
+ * Threads may change different cells of the same chunk at once, as they
+ * do under the cell locks of {@link CellLocks}, whose blocks are smaller
+ * than a chunk: chunks are allocated with a compare-and-set, cells and
+ * counts are atomic, and a cell read sees the last write to it. Only
+ * {@link #trim()} and {@link #clear()} need the whole map to stand still.
+ */
+public class ChunkedGrid {
+
+	public static final int CHUNK_SIZE = 64;
+
+	private final int width, height;
+	private final int chunksX, chunksY;
+	private final AtomicReferenceArray<AtomicReferenceArray<Unit>> chunks;
+	private final AtomicIntegerArray occupied;
+
+	public ChunkedGrid(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.chunksX = (width + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		this.chunksY = (height + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		this.chunks = new AtomicReferenceArray<AtomicReferenceArray<Unit>>(chunksX * chunksY);
+		this.occupied = new AtomicIntegerArray(chunksX * chunksY);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean contains(int x, int y) {
+		return x >= 0 && x < width && y >= 0 && y < height;
+	}
+
+	public Unit get(int x, int y) {
+		AtomicReferenceArray<Unit> chunk = chunks.get(chunkOf(x, y));
+		return chunk == null ? null : chunk.get(cellOf(x, y));
+	}
+
+	/**
+	 * Places a unit in a cell, or clears it when unit is null.
+	 * @return the unit that was in the cell before
+	 */
+	public Unit set(int x, int y, Unit unit) {
+		int c = chunkOf(x, y);
+		AtomicReferenceArray<Unit> chunk = chunks.get(c);
+		if (chunk == null) {
+			if (unit == null) return null;
+			chunks.compareAndSet(c, null, new AtomicReferenceArray<Unit>(CHUNK_SIZE * CHUNK_SIZE));
+			chunk = chunks.get(c);
+		}
+		Unit previous = chunk.getAndSet(cellOf(x, y), unit);
+		if (previous == null && unit != null)
+			occupied.incrementAndGet(c);
+		else if (previous != null && unit == null)
+			occupied.decrementAndGet(c);
+		return previous;
+	}
+
+	/**
+	 * Drops the chunks left empty. Nothing may change the map meanwhile,
+	 * see {@link CellLocks#lockAll()}.
+	 */
+	public void trim() {
+		for (int c = 0; c < chunks.length(); c++) {
+			if (occupied.get(c) == 0)
+				chunks.set(c, null);
+		}
+	}
+
+	/**
+	 * Empties the map. Nothing may change it meanwhile.
+	 */
+	public void clear() {
+		for (int c = 0; c < chunks.length(); c++) {
+			chunks.set(c, null);
+			occupied.set(c, 0);
+		}
+	}
+
+	/**
+	 * @return every unit inside the rectangle, bounds inclusive and clipped
+	 * to the map. Only allocated chunks are visited.
+	 */
+	public List<Unit> unitsIn(int minX, int minY, int maxX, int maxY) {
+		ArrayList<Unit> found = new ArrayList<Unit>();
+		minX = Math.max(0, minX);
+		minY = Math.max(0, minY);
+		maxX = Math.min(width - 1, maxX);
+		maxY = Math.min(height - 1, maxY);
+		if (minX > maxX || minY > maxY) return found;
+
+		for (int cx = minX / CHUNK_SIZE; cx <= maxX / CHUNK_SIZE; cx++) {
+			for (int cy = minY / CHUNK_SIZE; cy <= maxY / CHUNK_SIZE; cy++) {
+				AtomicReferenceArray<Unit> chunk = chunks.get(cx * chunksY + cy);
+				if (chunk == null) continue;
+				int x0 = Math.max(minX, cx * CHUNK_SIZE), x1 = Math.min(maxX, cx * CHUNK_SIZE + CHUNK_SIZE - 1);
+				int y0 = Math.max(minY, cy * CHUNK_SIZE), y1 = Math.min(maxY, cy * CHUNK_SIZE + CHUNK_SIZE - 1);
+				for (int x = x0; x <= x1; x++) {
+					for (int y = y0; y <= y1; y++) {
+						Unit unit = chunk.get(cellOf(x, y));
+						if (unit != null) found.add(unit);
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return every unit on the map
+	 */
+	public List<Unit> units() {
+		return unitsIn(0, 0, width - 1, height - 1);
+	}
+
+	private int chunkOf(int x, int y) {
+		if (!contains(x, y))
+			throw new IndexOutOfBoundsException("<" + x + ", " + y + "> is outside the " + width + "x" + height + " map");
+		return (x / CHUNK_SIZE) * chunksY + y / CHUNK_SIZE;
+	}
+
+	private static int cellOf(int x, int y) {
+		return (x % CHUNK_SIZE) * CHUNK_SIZE + y % CHUNK_SIZE;
+	}
+}
@@ -10,7 +10,11 @@ public enum MessageRequest {
 	getType, dealDamage, healDamage, requestBFList, 
 	replyBFList, addBF, disconnectedBF, disconnectedBFAck, 
 	spawnAck,disconnectedUnit,disconnectedUnitAck, SyncAction, 
-	SyncActionResponse, SyncActionConfirm, gameState
+	SyncActionResponse, SyncActionConfirm, gameState, gameStateResync,
+	SyncActionNotify, handoff, syncBatch,
+	SyncActionSequence, SyncActionOrdered, actionLogRequest,
+	SyncActionOptimistic, stateRequest, stateChunk, heartbeat,
+	regionUnits, sequencerTakeover, sequencerState
 }
 
 
@@ -0,0 +1,90 @@
+package distributed.systems.das;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits the map into vertical strips, one per battlefield, and tells
+ * which battlefield owns a cell. Every battlefield derives the same split
+ * from the same set of members, so no extra agreement is needed.
+ *
+ * A battlefield keeps the state of its strip and of a margin on either
+ * side, as far as the units it serves can see over the border.
+ */
+public class RegionMap {
+
+	/* Order in which battlefields are ranked, the same everywhere */
+	public static final Comparator<InetSocketAddress> ADDRESS_ORDER = new Comparator<InetSocketAddress>() {
+		public int compare(InetSocketAddress a, InetSocketAddress b) {
+			int c = a.getHostString().compareTo(b.getHostString());
+			return c != 0 ? c : a.getPort() - b.getPort();
+		}
+	};
+
+	private final List<InetSocketAddress> owners;
+	private final int width;
+	private final int stripWidth;
+
+	public RegionMap(Collection<InetSocketAddress> battlefields, int width) {
+		this.owners = new ArrayList<InetSocketAddress>(battlefields);
+		Collections.sort(owners, ADDRESS_ORDER);
+		this.width = width;
+		this.stripWidth = Math.max(1, (width + owners.size() - 1) / Math.max(1, owners.size()));
+	}
+
+	/**
+	 * @return whether this split was made for exactly these battlefields
+	 */
+	public boolean isFor(Collection<InetSocketAddress> battlefields) {
+		return owners.size() == battlefields.size() && owners.containsAll(battlefields);
+	}
+
+	public InetSocketAddress ownerOf(int x, int y) {
+		return owners.get(Math.min(owners.size() - 1, Math.max(0, Math.min(x, width - 1)) / stripWidth));
+	}
+
+	/**
+	 * @return whether the battlefield keeps the cell: it lies in the
+	 * battlefield's strip or no more than margin columns away from it
+	 */
+	public boolean keeps(InetSocketAddress battlefield, int margin, int x) {
+		int i = owners.indexOf(battlefield);
+		if (i < 0) return false;
+		int first = i * stripWidth;
+		int last = i == owners.size() - 1 ? width - 1 : Math.min(width - 1, first + stripWidth - 1);
+		return x >= first - margin && x <= last + margin;
+	}
+
+	/**
+	 * @return the battlefields keeping any of the given cells, each cell
+	 * given as {x, y}, see {@link #keeps(InetSocketAddress, int, int)}
+	 */
+	public Set<InetSocketAddress> keepersOf(int margin, int[]... cells) {
+		Set<InetSocketAddress> found = new HashSet<InetSocketAddress>();
+		for (InetSocketAddress owner : owners) {
+			for (int[] cell : cells) {
+				if (keeps(owner, margin, cell[0])) {
+					found.add(owner);
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the owners of the given cells, each cell given as {x, y}
+	 */
+	public Set<InetSocketAddress> ownersOf(int[]... cells) {
+		Set<InetSocketAddress> found = new HashSet<InetSocketAddress>();
+		for (int[] cell : cells)
+			found.add(ownerOf(cell[0], cell[1]));
+		return found;
+	}
+}
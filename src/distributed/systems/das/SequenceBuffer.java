@@ -0,0 +1,104 @@
+package distributed.systems.das;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import distributed.systems.core.Message;
+
+/**
+ * Puts numbered actions back in order. Actions that arrive ahead of a
+ * missing one are held back until the gap is filled.
+ *
+ * Actions also carry the epoch of the sequencer that numbered them. Once
+ * an action or a takeover of a later epoch is seen, actions of earlier
+ * epochs are stale: those held back are dropped and those still in flight
+ * are ignored. Numbering goes on across epochs, the new sequencer sends
+ * again what some battlefields missed of the old one.
+ *
+ * Not thread safe; callers synchronize on the buffer and deliver the
+ * returned actions before letting go of it.
+ */
+public class SequenceBuffer {
+
+	private int epoch = 0;
+	private int next = 0;
+	private final TreeMap<Integer, Message> held = new TreeMap<Integer, Message>();
+
+	/**
+	 * @return the number the next action in order carries
+	 */
+	public int next() {
+		return next;
+	}
+
+	/**
+	 * @return the latest epoch seen
+	 */
+	public int epoch() {
+		return epoch;
+	}
+
+	/**
+	 * Moves on to a later epoch, dropping the actions held back from
+	 * earlier ones.
+	 * @return false if the epoch is not later than the current one
+	 */
+	public boolean enter(int epoch) {
+		if (epoch <= this.epoch) return false;
+		this.epoch = epoch;
+		held.clear();
+		return true;
+	}
+
+	/**
+	 * @return the actions that can be applied now, in order; empty if the
+	 * action was stale, a duplicate or has to wait for an earlier one
+	 */
+	public List<Message> offer(int epoch, int sequence, Message action) {
+		if (epoch < this.epoch) return new ArrayList<Message>();
+		enter(epoch);
+		if (sequence < next) return new ArrayList<Message>();
+		held.put(sequence, action);
+		return drain();
+	}
+
+	/**
+	 * Gives up on the actions before the given number, which the caller
+	 * has by other means, such as the game state of a peer.
+	 * @return the actions that can be applied now, in order
+	 */
+	public List<Message> skipTo(int sequence) {
+		if (sequence > next) {
+			held.headMap(sequence).clear();
+			next = sequence;
+		}
+		return drain();
+	}
+
+	/**
+	 * Gives up on a gap that will not be filled and goes on from the first
+	 * action held back.
+	 * @return the actions that can be applied now, in order
+	 */
+	public List<Message> skipGap() {
+		return held.isEmpty() ? new ArrayList<Message>() : skipTo(held.firstKey());
+	}
+
+	/**
+	 * @return the number of actions waiting for an earlier one
+	 */
+	public int heldBack() {
+		return held.size();
+	}
+
+	private List<Message> drain() {
+		List<Message> ready = new ArrayList<Message>();
+		Message m;
+		while ((m = held.remove(next)) != null) {
+			ready.add(m);
+			next++;
+		}
+		return ready;
+	}
+}
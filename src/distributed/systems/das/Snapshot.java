@@ -0,0 +1,182 @@
+package distributed.systems.das;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import distributed.systems.das.units.Unit;
+import distributed.systems.das.units.Unit.UnitType;
+
+/**
+ * The units and the vector clock of a battlefield at one point of its
+ * log, so that a restart only has to replay the log after that point. The
+ * point is a snapshot entry the battlefield logs as the copy is taken; the
+ * index of that entry is filled in once it is written.
+ *
+ * Taking a snapshot only copies the state of every unit; writing it to
+ * disk happens afterwards, away from the game.
+ */
+public class Snapshot {
+
+	private static final int MAGIC = 0x44415353;
+	private static final int VERSION = 1;
+
+	/* The state of one unit when the snapshot was taken */
+	public static class UnitState {
+		public final UnitType type;
+		public final InetSocketAddress address, battlefield;
+		public final int x, y, maxHitPoints, hitPoints, attackPoints;
+
+		UnitState(UnitType type, InetSocketAddress address, InetSocketAddress battlefield, int x, int y, int maxHitPoints, int hitPoints, int attackPoints) {
+			this.type = type;
+			this.address = address;
+			this.battlefield = battlefield;
+			this.x = x;
+			this.y = y;
+			this.maxHitPoints = maxHitPoints;
+			this.hitPoints = hitPoints;
+			this.attackPoints = attackPoints;
+		}
+
+		public Unit toUnit() {
+			return Unit.replicaOf(type, address, battlefield, maxHitPoints, hitPoints, attackPoints);
+		}
+	}
+
+	private final int number;
+	private final int[] clock;
+	private final List<UnitState> units;
+	private long logPosition = -1;
+
+	/**
+	 * Copies the state of the units. The caller keeps them from changing
+	 * meanwhile.
+	 */
+	public Snapshot(int number, int[] clock, Collection<Unit> units) {
+		this.number = number;
+		this.clock = clock;
+		this.units = new ArrayList<UnitState>(units.size());
+		for (Unit unit : units)
+			this.units.add(new UnitState(unit.getUnitType(), unit.getAddress(), unit.getBattlefieldAddress(),
+					unit.getX(), unit.getY(), unit.getMaxHitPoints(), unit.getHitPoints(), unit.getAttackPoints()));
+	}
+
+	private Snapshot(int number, int[] clock, List<UnitState> units, long logPosition) {
+		this.number = number;
+		this.clock = clock;
+		this.units = units;
+		this.logPosition = logPosition;
+	}
+
+	public int getNumber() {
+		return number;
+	}
+
+	public int[] getClock() {
+		return clock;
+	}
+
+	public List<UnitState> getUnits() {
+		return units;
+	}
+
+	/**
+	 * @return the index in the log of the snapshot entry, or -1 if unknown
+	 */
+	public long getLogPosition() {
+		return logPosition;
+	}
+
+	public void setLogPosition(long logPosition) {
+		this.logPosition = logPosition;
+	}
+
+	/**
+	 * Writes the snapshot next to the file and then moves it in place, so
+	 * the file always holds a complete snapshot.
+	 */
+	public void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(number);
+			out.writeLong(logPosition);
+			out.writeInt(clock.length);
+			for (int c : clock)
+				out.writeInt(c);
+			out.writeInt(units.size());
+			for (UnitState unit : units) {
+				out.writeByte(unit.type.ordinal());
+				writeAddress(out, unit.address);
+				writeAddress(out, unit.battlefield);
+				out.writeShort(unit.x);
+				out.writeShort(unit.y);
+				out.writeShort(unit.maxHitPoints);
+				out.writeShort(unit.hitPoints);
+				out.writeShort(unit.attackPoints);
+			}
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file))
+			throw new IOException("Could not move " + tmp + " to " + file);
+	}
+
+	/**
+	 * @return the snapshot in the file, or null if there is none
+	 */
+	public static Snapshot read(File file) throws IOException {
+		if (!file.exists()) return null;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a battlefield snapshot: " + file);
+			int number = in.readInt();
+			long logPosition = in.readLong();
+			int[] clock = new int[in.readInt()];
+			for (int i = 0; i < clock.length; i++)
+				clock[i] = in.readInt();
+			int size = in.readInt();
+			List<UnitState> units = new ArrayList<UnitState>(size);
+			for (int i = 0; i < size; i++) {
+				UnitType type = UnitType.values()[in.readByte()];
+				InetSocketAddress address = readAddress(in);
+				InetSocketAddress battlefield = readAddress(in);
+				int x = in.readShort();
+				int y = in.readShort();
+				int maxHitPoints = in.readShort();
+				int hitPoints = in.readShort();
+				int attackPoints = in.readShort();
+				units.add(new UnitState(type, address, battlefield, x, y, maxHitPoints, hitPoints, attackPoints));
+			}
+			return new Snapshot(number, clock, units, logPosition);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeAddress(DataOutputStream out, InetSocketAddress address) throws IOException {
+		out.writeUTF(address == null ? "" : address.getHostName());
+		out.writeInt(address == null ? 0 : address.getPort());
+	}
+
+	private static InetSocketAddress readAddress(DataInputStream in) throws IOException {
+		String host = in.readUTF();
+		int port = in.readInt();
+		return host.isEmpty() ? null : new InetSocketAddress(host, port);
+	}
+}
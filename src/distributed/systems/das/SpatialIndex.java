@@ -0,0 +1,195 @@
+package distributed.systems.das;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+
+import distributed.systems.das.units.Unit;
+import distributed.systems.das.units.Unit.UnitType;
+
+/**
+ * Index of unit positions for nearest-unit queries, kept separately per
+ * unit type. Units are grouped into square buckets of {@link #BUCKET_SIZE}
+ * cells and a query visits the buckets in rings around the query point,
+ * stopping as soon as no unvisited bucket can hold anything closer. Only
+ * occupied buckets are stored, so the cost of a query depends on how many
+ * units there are around the point and not on the size of the map.
+ *
+ * Distances are Manhattan distances, like the rest of the game.
+ */
+public class SpatialIndex {
+
+	public static final int BUCKET_SIZE = 8;
+
+	private final EnumMap<UnitType, Grid> grids = new EnumMap<UnitType, Grid>(UnitType.class);
+
+	private static class Entry {
+		final Unit unit;
+		final int x, y;
+		Entry(Unit unit, int x, int y) {
+			this.unit = unit;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	private static class Grid {
+		final HashMap<Long, ArrayList<Entry>> buckets = new HashMap<Long, ArrayList<Entry>>();
+		int size = 0;
+		// Bounds of every bucket ever used, so a query knows when to stop
+		int minBX = Integer.MAX_VALUE, maxBX = Integer.MIN_VALUE;
+		int minBY = Integer.MAX_VALUE, maxBY = Integer.MIN_VALUE;
+
+		void add(Unit unit, int x, int y) {
+			int bx = bucket(x), by = bucket(y);
+			Long key = key(bx, by);
+			ArrayList<Entry> entries = buckets.get(key);
+			if (entries == null) {
+				entries = new ArrayList<Entry>(2);
+				buckets.put(key, entries);
+			}
+			entries.add(new Entry(unit, x, y));
+			size++;
+			minBX = Math.min(minBX, bx);
+			maxBX = Math.max(maxBX, bx);
+			minBY = Math.min(minBY, by);
+			maxBY = Math.max(maxBY, by);
+		}
+
+		boolean remove(Unit unit, int x, int y) {
+			Long key = key(bucket(x), bucket(y));
+			ArrayList<Entry> entries = buckets.get(key);
+			if (entries == null) return false;
+			for (int i = 0; i < entries.size(); i++) {
+				Entry e = entries.get(i);
+				if (e.unit == unit && e.x == x && e.y == y) {
+					entries.remove(i);
+					if (entries.isEmpty()) buckets.remove(key);
+					size--;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Adds the k entries closest to (x, y) to best, which is kept sorted
+		 * by distance and no longer than k.
+		 */
+		void nearest(int x, int y, int k, ArrayList<Entry> best) {
+			if (size == 0) return;
+			int bx = bucket(x), by = bucket(y);
+			int rings = Math.max(Math.max(Math.abs(bx - minBX), Math.abs(bx - maxBX)),
+					Math.max(Math.abs(by - minBY), Math.abs(by - maxBY)));
+			int visited = 0;
+
+			for (int r = 0; r <= rings; r++) {
+				// Every cell in ring r is at least this far from the query point
+				if (best.size() == k && r > 0 && (r - 1) * BUCKET_SIZE + 1 > distance(best.get(k - 1), x, y))
+					return;
+				if (visited > buckets.size()) {
+					// Sparse grid: cheaper to look at every occupied bucket once
+					for (ArrayList<Entry> entries : buckets.values())
+						for (Entry e : entries)
+							if (!best.contains(e)) offer(best, k, e, x, y);
+					return;
+				}
+				if (r == 0) {
+					visited += visit(bx, by, x, y, k, best);
+					continue;
+				}
+				for (int i = -r; i <= r; i++) {
+					visited += visit(bx + i, by - r, x, y, k, best);
+					visited += visit(bx + i, by + r, x, y, k, best);
+				}
+				for (int j = -r + 1; j < r; j++) {
+					visited += visit(bx - r, by + j, x, y, k, best);
+					visited += visit(bx + r, by + j, x, y, k, best);
+				}
+			}
+		}
+
+		private int visit(int bx, int by, int x, int y, int k, ArrayList<Entry> best) {
+			ArrayList<Entry> entries = buckets.get(key(bx, by));
+			if (entries != null) {
+				for (Entry e : entries)
+					offer(best, k, e, x, y);
+			}
+			return 1;
+		}
+	}
+
+	public synchronized void add(Unit unit, int x, int y) {
+		UnitType type = unit.getUnitType();
+		Grid grid = grids.get(type);
+		if (grid == null) {
+			grid = new Grid();
+			grids.put(type, grid);
+		}
+		grid.add(unit, x, y);
+	}
+
+	public synchronized void remove(Unit unit, int x, int y) {
+		Grid grid = grids.get(unit.getUnitType());
+		if (grid != null) grid.remove(unit, x, y);
+	}
+
+	public synchronized void move(Unit unit, int fromX, int fromY, int toX, int toY) {
+		remove(unit, fromX, fromY);
+		add(unit, toX, toY);
+	}
+
+	public synchronized void clear() {
+		grids.clear();
+	}
+
+	/**
+	 * @param type the type to look for, undefined matches any unit
+	 * @return the unit of the given type closest to (x, y), or null if there is none
+	 */
+	public Unit nearest(int x, int y, UnitType type) {
+		List<Unit> nearest = nearest(x, y, type, 1);
+		return nearest.isEmpty() ? null : nearest.get(0);
+	}
+
+	/**
+	 * @param type the type to look for, undefined matches any unit
+	 * @return up to k units of the given type closest to (x, y), nearest first
+	 */
+	public synchronized List<Unit> nearest(int x, int y, UnitType type, int k) {
+		ArrayList<Entry> best = new ArrayList<Entry>(k + 1);
+		if (k > 0) {
+			for (UnitType t : grids.keySet()) {
+				if (type == UnitType.undefined || t == type)
+					grids.get(t).nearest(x, y, k, best);
+			}
+		}
+		ArrayList<Unit> units = new ArrayList<Unit>(best.size());
+		for (Entry e : best)
+			units.add(e.unit);
+		return units;
+	}
+
+	private static void offer(ArrayList<Entry> best, int k, Entry e, int x, int y) {
+		int d = distance(e, x, y);
+		int i = best.size();
+		while (i > 0 && distance(best.get(i - 1), x, y) > d)
+			i--;
+		if (i >= k) return;
+		best.add(i, e);
+		if (best.size() > k) best.remove(k);
+	}
+
+	private static int distance(Entry e, int x, int y) {
+		return Math.abs(e.x - x) + Math.abs(e.y - y);
+	}
+
+	private static int bucket(int c) {
+		return c >= 0 ? c / BUCKET_SIZE : -((-c - 1) / BUCKET_SIZE) - 1;
+	}
+
+	private static Long key(int bx, int by) {
+		return ((long)bx << 32) | (by & 0xffffffffL);
+	}
+}
@@ -0,0 +1,101 @@
+package distributed.systems.das;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+import distributed.systems.das.units.Unit;
+import distributed.systems.das.units.Unit.UnitType;
+
+/**
+ * A single cell-level change of the battlefield map. The battlefield
+ * records these in its {@link StateJournal} and streams them to the units
+ * instead of the whole map. A snapshot is simply a spawn delta for every
+ * occupied cell.
+ */
+public class StateDelta implements Serializable {
+
+	private static final long serialVersionUID = 2816403919472375095L;
+
+	public enum Kind {
+		spawn, move, hitPoints, remove
+	};
+
+	private final Kind kind;
+	private final int x, y;
+	private final int toX, toY;
+	private final int hitPoints;
+	/* Only set for spawns */
+	private final UnitType unitType;
+	private final int maxHitPoints;
+	private final int attackPoints;
+	private final InetSocketAddress address;
+	/* Unit that moved, kept on the battlefield side only */
+	private transient Unit unit;
+
+	public StateDelta(Kind kind, int x, int y, int toX, int toY, int hitPoints,
+			UnitType unitType, int maxHitPoints, int attackPoints, InetSocketAddress address) {
+		this.kind = kind;
+		this.x = x;
+		this.y = y;
+		this.toX = toX;
+		this.toY = toY;
+		this.hitPoints = hitPoints;
+		this.unitType = unitType;
+		this.maxHitPoints = maxHitPoints;
+		this.attackPoints = attackPoints;
+		this.address = address;
+	}
+
+	public static StateDelta spawn(Unit unit, int x, int y) {
+		return new StateDelta(Kind.spawn, x, y, x, y, unit.getHitPoints(),
+				unit.getUnitType(), unit.getMaxHitPoints(), unit.getAttackPoints(), unit.getAddress());
+	}
+
+	public static StateDelta move(int fromX, int fromY, int toX, int toY) {
+		return new StateDelta(Kind.move, fromX, fromY, toX, toY, 0, null, 0, 0, null);
+	}
+
+	public static StateDelta move(Unit unit, int fromX, int fromY, int toX, int toY) {
+		StateDelta delta = move(fromX, fromY, toX, toY);
+		delta.unit = unit;
+		return delta;
+	}
+
+	public static StateDelta hitPoints(int x, int y, int hitPoints) {
+		return new StateDelta(Kind.hitPoints, x, y, x, y, hitPoints, null, 0, 0, null);
+	}
+
+	public static StateDelta remove(int x, int y) {
+		return new StateDelta(Kind.remove, x, y, x, y, 0, null, 0, 0, null);
+	}
+
+	public Kind getKind() { return kind; }
+	public int getX() { return x; }
+	public int getY() { return y; }
+	public int getToX() { return toX; }
+	public int getToY() { return toY; }
+	public int getHitPoints() { return hitPoints; }
+	public UnitType getUnitType() { return unitType; }
+	public int getMaxHitPoints() { return maxHitPoints; }
+	public int getAttackPoints() { return attackPoints; }
+	public InetSocketAddress getAddress() { return address; }
+	public Unit getUnit() { return unit; }
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof StateDelta)) return false;
+		StateDelta d = (StateDelta)o;
+		return kind == d.kind && x == d.x && y == d.y && toX == d.toX && toY == d.toY
+				&& hitPoints == d.hitPoints && unitType == d.unitType
+				&& (address == null ? d.address == null : address.equals(d.address));
+	}
+
+	@Override
+	public int hashCode() {
+		return ((kind.ordinal() * 31 + x) * 31 + y) * 31 + hitPoints;
+	}
+
+	public String toString() {
+		return kind + "<" + x + "," + y + ">" + (kind == Kind.move ? "->" + "<" + toX + "," + toY + ">" : "");
+	}
+}
@@ -0,0 +1,61 @@
+package distributed.systems.das;
+
+import java.util.ArrayList;
+
+/**
+ * Versioned history of the changes made to the battlefield map.
+ *
+ * Changes are recorded as they happen and grouped into ticks by
+ * {@link #advance()}, which the game state broadcaster calls once per
+ * round. Only the last {@link #RETAINED_TICKS} ticks are kept; a unit that
+ * is further behind than that has to be resynchronized with a snapshot.
+ */
+public class StateJournal {
+
+	public static final int RETAINED_TICKS = 30;
+
+	private static final StateDelta[] EMPTY = new StateDelta[0];
+
+	private final StateDelta[][] history = new StateDelta[RETAINED_TICKS][];
+	private final ArrayList<StateDelta> open = new ArrayList<StateDelta>();
+	private int tick = 0;
+
+	public synchronized void record(StateDelta delta) {
+		open.add(delta);
+	}
+
+	/**
+	 * Closes the changes recorded since the previous call as a new tick.
+	 * @return the number of the tick that was just closed
+	 */
+	public synchronized int advance() {
+		tick++;
+		history[tick % RETAINED_TICKS] = open.isEmpty() ? EMPTY : open.toArray(new StateDelta[open.size()]);
+		open.clear();
+		return tick;
+	}
+
+	public synchronized int currentTick() {
+		return tick;
+	}
+
+	/**
+	 * Returns the changes of every tick after baseTick up to the current
+	 * one, or null if some of them are no longer retained.
+	 */
+	public synchronized StateDelta[] since(int baseTick) {
+		if (baseTick > tick || tick - baseTick >= RETAINED_TICKS)
+			return null;
+		if (baseTick == tick)
+			return EMPTY;
+		if (baseTick == tick - 1)
+			return history[tick % RETAINED_TICKS];
+
+		ArrayList<StateDelta> deltas = new ArrayList<StateDelta>();
+		for (int t = baseTick + 1; t <= tick; t++) {
+			for (StateDelta delta : history[t % RETAINED_TICKS])
+				deltas.add(delta);
+		}
+		return deltas.toArray(new StateDelta[deltas.size()]);
+	}
+}
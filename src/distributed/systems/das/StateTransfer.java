@@ -0,0 +1,213 @@
+package distributed.systems.das;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import distributed.systems.core.Message;
+import distributed.systems.core.VectorialClock;
+
+/**
+ * The game state a joining battlefield gets from a peer, and the actions
+ * it holds back until that state is in place.
+ *
+ * The peer copies its units and clock at one point and sends them in
+ * chunks of {@link #CHUNK_SIZE} units; the first chunk also carries the
+ * clock, the battlefield ids and the number of the first ordered action,
+ * in sequencer mode, or commit of every battlefield, in quorum mode, the
+ * copy does not have. Actions committed meanwhile are held
+ * back. Once the state is applied they are applied in the order they
+ * came, except those the copy already has: actions whose clock is not
+ * after the copied clock.
+ */
+public class StateTransfer {
+
+	public static final int CHUNK_SIZE = Integer.getInteger("das.join.chunkSize", 256);
+
+	/* An action held back, with the message it came in */
+	public static class HeldAction {
+		public final Message message;
+		public final Message action;
+		public HeldAction(Message message, Message action) {
+			this.message = message;
+			this.action = action;
+		}
+	}
+
+	private final InetSocketAddress peer;
+	private StateDelta[][] chunks;
+	private int received = 0;
+	private int[] clock;
+	private int sequence;
+	private final HashMap<InetSocketAddress, Integer> positions = new HashMap<InetSocketAddress, Integer>();
+	private final HashMap<InetSocketAddress, Integer> owners = new HashMap<InetSocketAddress, Integer>();
+	private final HashMap<Integer, InetSocketAddress> battlefields = new HashMap<Integer, InetSocketAddress>();
+
+	private final ArrayDeque<HeldAction> held = new ArrayDeque<HeldAction>();
+	private boolean holding = true;
+	private boolean claimed = false;
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	/**
+	 * @param peer the battlefield the state comes from
+	 */
+	public StateTransfer(InetSocketAddress peer) {
+		this.peer = peer;
+	}
+
+	public InetSocketAddress getPeer() {
+		return peer;
+	}
+
+	/**
+	 * Cuts a copy of the state into the messages that carry it.
+	 * @param bfIds the id of every known battlefield
+	 * @param sequence the number of the first ordered action not in the copy
+	 * @param positions the number of the first commit of every battlefield not in the copy
+	 */
+	public static List<Message> chunksOf(Snapshot state, Map<InetSocketAddress, Integer> bfIds, int sequence, Map<InetSocketAddress, Integer> positions) {
+		List<Snapshot.UnitState> units = state.getUnits();
+		int count = Math.max(1, (units.size() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		List<Message> chunks = new ArrayList<Message>(count);
+		for (int c = 0; c < count; c++) {
+			List<Snapshot.UnitState> part = units.subList(Math.min(units.size(), c * CHUNK_SIZE), Math.min(units.size(), (c + 1) * CHUNK_SIZE));
+			StateDelta[] deltas = new StateDelta[part.size()];
+			HashMap<InetSocketAddress, Integer> owners = new HashMap<InetSocketAddress, Integer>();
+			for (int i = 0; i < deltas.length; i++) {
+				Snapshot.UnitState unit = part.get(i);
+				deltas[i] = new StateDelta(StateDelta.Kind.spawn, unit.x, unit.y, unit.x, unit.y, unit.hitPoints,
+						unit.type, unit.maxHitPoints, unit.attackPoints, unit.address);
+				Integer owner = unit.battlefield == null ? null : bfIds.get(unit.battlefield);
+				if (owner != null) owners.put(unit.address, owner);
+			}
+			Message chunk = new Message();
+			chunk.put("request", MessageRequest.stateChunk);
+			chunk.put("chunk", c);
+			chunk.put("chunks", count);
+			chunk.put("deltas", deltas);
+			chunk.put("owners", owners);
+			if (c == 0) {
+				chunk.put("vclock", state.getClock());
+				chunk.put("bfIds", new HashMap<InetSocketAddress, Integer>(bfIds));
+				chunk.put("sequence", sequence);
+				chunk.put("positions", new HashMap<InetSocketAddress, Integer>(positions));
+			}
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	/**
+	 * @return true once every chunk has come
+	 */
+	public synchronized boolean add(Message chunk) {
+		int index = (Integer)chunk.get("chunk");
+		if (chunks == null)
+			chunks = new StateDelta[(Integer)chunk.get("chunks")][];
+		if (index >= chunks.length || chunks[index] != null) return false;
+		chunks[index] = (StateDelta[])chunk.get("deltas");
+		owners.putAll(chunk.getAddressMap("owners"));
+		if (index == 0) {
+			clock = (int[])chunk.get("vclock");
+			sequence = (Integer)chunk.get("sequence");
+			positions.putAll(chunk.getAddressMap("positions"));
+			for (Map.Entry<InetSocketAddress, Integer> bf : chunk.getAddressMap("bfIds").entrySet())
+				battlefields.put(bf.getValue(), bf.getKey());
+		}
+		return ++received == chunks.length;
+	}
+
+	/**
+	 * @return the units of every chunk, as spawn deltas
+	 */
+	public synchronized List<StateDelta> getUnits() {
+		List<StateDelta> units = new ArrayList<StateDelta>();
+		for (StateDelta[] chunk : chunks) {
+			for (StateDelta unit : chunk)
+				units.add(unit);
+		}
+		return units;
+	}
+
+	/**
+	 * @return the battlefield that served the unit, or null if unknown
+	 */
+	public synchronized InetSocketAddress battlefieldOf(InetSocketAddress unit) {
+		Integer owner = owners.get(unit);
+		return owner == null ? null : battlefields.get(owner);
+	}
+
+	public synchronized int[] getClock() {
+		return clock;
+	}
+
+	/**
+	 * @return the number of the first ordered action the copy does not have
+	 */
+	public synchronized int getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the number of the first commit of every battlefield the copy
+	 * does not have
+	 */
+	public synchronized Map<InetSocketAddress, Integer> getPositions() {
+		return new HashMap<InetSocketAddress, Integer>(positions);
+	}
+
+	/**
+	 * @return true for the one caller that gets to end the transfer
+	 */
+	public synchronized boolean claim() {
+		if (claimed) return false;
+		claimed = true;
+		return true;
+	}
+
+	/**
+	 * Holds an action back while the state is not in place.
+	 * @return false if the action can be applied right away
+	 */
+	public synchronized boolean hold(HeldAction action) {
+		if (!holding) return false;
+		held.add(action);
+		return true;
+	}
+
+	/**
+	 * @return the next action held back, or null once there are none left,
+	 * after which actions are no longer held
+	 */
+	public synchronized HeldAction next() {
+		HeldAction action = held.poll();
+		if (action == null && holding) {
+			holding = false;
+			finished.countDown();
+		}
+		return action;
+	}
+
+	/**
+	 * @return whether the action is in the copied state already
+	 */
+	public boolean covers(int[] actionClock) {
+		int[] copied = getClock();
+		if (copied == null || actionClock == null) return false;
+		int order = VectorialClock.compare(actionClock, copied);
+		return order == VectorialClock.BEFORE || order == VectorialClock.EQUAL;
+	}
+
+	/**
+	 * Waits until the held back actions are applied.
+	 * @return false if that did not happen in time
+	 */
+	public boolean await(long timeoutMillis) throws InterruptedException {
+		return finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+}
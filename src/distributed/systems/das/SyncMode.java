@@ -0,0 +1,18 @@
+package distributed.systems.das;
+
+/**
+ * How battlefields agree on the actions of their units. Chosen with
+ * -Ddas.sync=&lt;mode&gt; and expected to be the same on every battlefield.
+ */
+public enum SyncMode {
+	/* Every action is acknowledged by every other battlefield */
+	unanimous,
+	/* Actions are decided by the battlefields owning the cells they touch */
+	region,
+	/* Actions are numbered by one elected battlefield and applied in that order */
+	sequencer,
+	/* Actions commit once a quorum of battlefields accepted them */
+	quorum,
+	/* Actions are applied at once and rolled back if they lose a conflict */
+	optimistic
+}
@@ -0,0 +1,105 @@
+package distributed.systems.das;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import distributed.systems.core.ConnectionPool;
+import distributed.systems.core.HashedWheelTimer;
+import distributed.systems.core.HashedWheelTimer.Timeout;
+import distributed.systems.core.IMessageReceivedHandler;
+import distributed.systems.core.Message;
+
+/**
+ * Batches the sync protocol messages a battlefield sends to its peers.
+ * Messages for the same peer are held for up to {@link #WINDOW_MILLIS}
+ * or until {@link #MAX_BATCH} of them are waiting, then sent together as
+ * one {@link MessageRequest#syncBatch} message. When hundreds of units act
+ * at once, a phase of the sync round then costs one message per peer
+ * instead of one per action.
+ *
+ * Messages to one peer are sent in the order they were queued, and the
+ * receiver handles a batch in that same order.
+ */
+public class SyncOutbox {
+
+	public static final int MAX_BATCH = Integer.getInteger("das.batch.size", 64);
+	/* Zero sends every message right away */
+	public static final long WINDOW_MILLIS = Long.getLong("das.batch.window", 10);
+
+	private final IMessageReceivedHandler handler;
+	private final ConcurrentHashMap<InetSocketAddress, Peer> peers = new ConcurrentHashMap<InetSocketAddress, Peer>();
+
+	private class Peer implements Runnable {
+		final InetSocketAddress address;
+		final ArrayList<Message> queued = new ArrayList<Message>();
+		Timeout flush;
+
+		Peer(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		/* Window expired */
+		public void run() {
+			synchronized (this) {
+				flush = null;
+				flush(this);
+			}
+		}
+	}
+
+	public SyncOutbox(IMessageReceivedHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Queues a message for the peer. The message is copied, so the caller
+	 * may go on changing it.
+	 */
+	public void send(InetSocketAddress address, Message message) {
+		if (WINDOW_MILLIS <= 0 || MAX_BATCH <= 1) {
+			ConnectionPool.getDefault().send(address, message, handler, false);
+			return;
+		}
+		Peer peer = peers.get(address);
+		if (peer == null) {
+			Peer created = new Peer(address);
+			peer = peers.putIfAbsent(address, created);
+			if (peer == null) peer = created;
+		}
+		synchronized (peer) {
+			peer.queued.add(message.clone());
+			if (peer.queued.size() >= MAX_BATCH)
+				flush(peer);
+			else if (peer.flush == null)
+				peer.flush = HashedWheelTimer.getDefault().schedule(peer, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void multicast(Collection<InetSocketAddress> addresses, Message message) {
+		for (InetSocketAddress address : addresses)
+			send(address, message);
+	}
+
+	/* Called holding the peer's lock, which keeps batches in order */
+	private void flush(Peer peer) {
+		if (peer.flush != null) {
+			peer.flush.cancel();
+			peer.flush = null;
+		}
+		if (peer.queued.isEmpty()) return;
+
+		Message message;
+		if (peer.queued.size() == 1) {
+			message = peer.queued.get(0);
+		} else {
+			message = new Message();
+			message.put("request", MessageRequest.syncBatch);
+			message.put("messages", peer.queued.toArray(new Message[peer.queued.size()]));
+		}
+		peer.queued.clear();
+		ConnectionPool.getDefault().send(peer.address, message, handler, false);
+	}
+}
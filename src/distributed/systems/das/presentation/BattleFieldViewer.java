@@ -69,8 +69,7 @@ public class BattleFieldViewer extends JPanel implements Runnable {
 	 * for dragons and a blue one for players. 
 	 */
 	public void paint(Graphics g) {
-		Unit u;
-		double x = 0, y = 0;
+		double x, y;
 		double xRatio = (double)this.getWidth() / (double)BattleField.MAP_WIDTH;
 		double yRatio = (double)this.getHeight() / (double)BattleField.MAP_HEIGHT;
 		double filler;
@@ -87,33 +86,32 @@ public class BattleFieldViewer extends JPanel implements Runnable {
 		doubleBufferGraphics.clearRect(0, 0, bufferWidth, bufferHeight);
 		doubleBufferGraphics.setColor(Color.BLACK);
 
-		/* Draw the field, rectangle-wise */
-		for(int i = 0; i < BattleField.MAP_WIDTH; i++, x += xRatio, y = 0)
-			for(int j = 0; j < BattleField.MAP_HEIGHT; j++, y += yRatio) {
-				u = bf.getUnit(i, j);
-				if (u == null) continue; // Nothing to draw in this sector
+		/* Draw the occupied sectors only, large maps are mostly empty */
+		for (Unit u : bf.getUnitsOnMap()) {
+			x = u.getX() * xRatio;
+			y = u.getY() * yRatio;
 
-				if (u instanceof Dragon)
-					doubleBufferGraphics.setColor(Color.RED);
-				else if (u instanceof Player)
-					doubleBufferGraphics.setColor(Color.BLUE);
+			if (u instanceof Dragon)
+				doubleBufferGraphics.setColor(Color.RED);
+			else if (u instanceof Player)
+				doubleBufferGraphics.setColor(Color.BLUE);
 
-				/* Fill the unit color */
-				doubleBufferGraphics.fillRect((int)x + 1, (int)y + 1, (int)xRatio - 1, (int)yRatio - 1);
+			/* Fill the unit color */
+			doubleBufferGraphics.fillRect((int)x + 1, (int)y + 1, Math.max(1, (int)xRatio - 1), Math.max(1, (int)yRatio - 1));
 
-				/* Draw healthbar */
-				doubleBufferGraphics.setColor(Color.GREEN);
-				filler = (double)yRatio * u.getHitPoints() / (double)u.getMaxHitPoints();
-				doubleBufferGraphics.fillRect((int)(x + 0.75 * xRatio), (int)(y + 1 + yRatio - filler), (int)xRatio / 4, (int)(filler));
+			/* Draw healthbar */
+			doubleBufferGraphics.setColor(Color.GREEN);
+			filler = (double)yRatio * u.getHitPoints() / (double)u.getMaxHitPoints();
+			doubleBufferGraphics.fillRect((int)(x + 0.75 * xRatio), (int)(y + 1 + yRatio - filler), (int)xRatio / 4, (int)(filler));
 
-				/* Draw the identifier */
-				doubleBufferGraphics.setColor(Color.WHITE);
-				doubleBufferGraphics.drawString("" + u.getUnitID(), (int)x, (int)y + 15);
-				doubleBufferGraphics.setColor(Color.BLACK);
+			/* Draw the identifier */
+			doubleBufferGraphics.setColor(Color.WHITE);
+			doubleBufferGraphics.drawString("" + u.getUnitID(), (int)x, (int)y + 15);
+			doubleBufferGraphics.setColor(Color.BLACK);
 
-				/* Draw a rectangle around the unit */
-				doubleBufferGraphics.drawRect((int)x, (int)y, (int)xRatio, (int)yRatio);
-			}
+			/* Draw a rectangle around the unit */
+			doubleBufferGraphics.drawRect((int)x, (int)y, (int)xRatio, (int)yRatio);
+		}
 
 		/* Flip the double buffer */
 		g.drawImage(doubleBufferImage, 0, 0, this);
@@ -1,6 +1,7 @@
 package distributed.systems.das.units;
 
 import java.io.Serializable;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 
 import distributed.systems.das.BattleField;
@@ -32,6 +33,8 @@ public class Dragon extends Unit implements Runnable, Serializable {
 	// The minimum and maximum amount of hitpoints that a particular dragon has
 	public static final int MIN_ATTACKPOINTS = 5;
 	public static final int MAX_ATTACKPOINTS = 20;
+	// Distance within which a dragon is kept informed about the map, it only looks at adjacent cells
+	public static final int INTEREST_RADIUS = Integer.getInteger("das.dragon.interestRadius", 1);
 	
 	/**
 	 * Spawn a new dragon, initialize the 
@@ -56,6 +59,18 @@ public class Dragon extends Unit implements Runnable, Serializable {
 		runnerThread.start();
 	}
 
+	/**
+	 * Replica of a dragon running elsewhere, used to represent it in a local map.
+	 */
+	Dragon(InetSocketAddress address, InetSocketAddress battlefieldAddress, int maxHealth, int hitPoints, int attackPoints) {
+		super(address, battlefieldAddress, maxHealth, hitPoints, attackPoints);
+	}
+
+	@Override
+	public int getInterestRadius() {
+		return INTEREST_RADIUS;
+	}
+
 	/**
 	 * Roleplay the dragon. Make the dragon act once a while,
 	 * only stopping when the dragon is actually dead or the 
@@ -84,7 +99,7 @@ public class Dragon extends Unit implements Runnable, Serializable {
 				if (getY().intValue() > 0)
 					if ( getType( getX(), getY() - 1 ) == UnitType.player )
 						adjacentPlayers.add(Direction.up);
-				if (getY().intValue() < BattleField.MAP_WIDTH - 1)
+				if (getY().intValue() < BattleField.MAP_HEIGHT - 1)
 					if ( getType( getX(), getY() + 1 ) == UnitType.player )
 						adjacentPlayers.add(Direction.down);
 				if (getX().intValue() > 0)
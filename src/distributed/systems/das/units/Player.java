@@ -1,6 +1,7 @@
 package distributed.systems.das.units;
 
 import java.io.Serializable;
+import java.net.InetSocketAddress;
 
 import distributed.systems.core.LogEntry.Position;
 import distributed.systems.core.SynchronizedSocket;
@@ -32,6 +33,8 @@ public class Player extends Unit implements Runnable, Serializable {
 	public static final int MAX_HITPOINTS = 20;
 	public static final int MIN_ATTACKPOINTS = 1;
 	public static final int MAX_ATTACKPOINTS = 10;
+	// Distance within which a player is kept informed about the map
+	public static final int INTEREST_RADIUS = Integer.getInteger("das.player.interestRadius", 3);
 
 	protected Unit[][] map;
 
@@ -64,6 +67,18 @@ public class Player extends Unit implements Runnable, Serializable {
 		runnerThread.start();
 	}
 
+	/**
+	 * Replica of a player running elsewhere, used to represent it in a local map.
+	 */
+	Player(InetSocketAddress address, InetSocketAddress battlefieldAddress, int maxHealth, int hitPoints, int attackPoints) {
+		super(address, battlefieldAddress, maxHealth, hitPoints, attackPoints);
+	}
+
+	@Override
+	public int getInterestRadius() {
+		return INTEREST_RADIUS;
+	}
+
 	/**
 	 * Roleplay the player. Make the player act once in a while,
 	 * only stopping when the player is actually dead or the 
@@ -2,14 +2,24 @@ package distributed.systems.das.units;
 
 import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import distributed.systems.core.FailureDetector;
 import distributed.systems.core.IMessageReceivedHandler;
 import distributed.systems.core.Message;
 import distributed.systems.core.SynchronizedClientSocket;
 import distributed.systems.core.SynchronizedSocket;
+import distributed.systems.das.BattleField;
+import distributed.systems.das.ChunkedGrid;
+import distributed.systems.das.GameState;
 import distributed.systems.das.MessageRequest;
+import distributed.systems.das.SpatialIndex;
+import distributed.systems.das.StateDelta;
 
 /**
  * Base class for all players whom can 
@@ -23,7 +33,7 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 	private static final long serialVersionUID = -4550572524008491160L;
 
 	//
-	private InetSocketAddress battlefieldAddress;
+	private volatile InetSocketAddress battlefieldAddress;
 
 	// Position of the unit
 	protected Integer x, y;
@@ -52,7 +62,16 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 	// If this is set to false, the unit will return its run()-method and disconnect from the server
 	protected boolean running;
 	
-	private transient Unit[][] map;
+	private transient ChunkedGrid map;
+	// Positions of the units in map, for nearest-unit queries
+	private transient SpatialIndex index;
+	// Nearest dragons outside the area of interest, as last reported by the battlefield
+	private transient volatile Unit[] landmarks = new Unit[0];
+	// Last game state tick applied to the map, -1 while waiting for a snapshot
+	private transient int stateTick = -1;
+	private transient boolean resyncRequested = false;
+	// Tells the battlefield this unit is alive, from the moment it spawned
+	private transient FailureDetector.Heartbeat heartbeat;
 
 	/* The thread that is used to make the unit run in a separate thread.
 	 * We need to remember this thread to make sure that Java exits cleanly.
@@ -105,10 +124,40 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 */
 		//clientSocket.addMessageReceivedHandler(this);
 		address = new InetSocketAddress(url, port);
+		map = new ChunkedGrid(BattleField.MAP_WIDTH, BattleField.MAP_HEIGHT);
+		index = new SpatialIndex();
 		serverSocket = new SynchronizedSocket(url, port);
 		serverSocket.addMessageReceivedHandler(this);	
 	}
 
+	/**
+	 * Creates a local copy of a unit that lives somewhere else. Replicas
+	 * only hold state; they open no socket and never run.
+	 */
+	protected Unit(InetSocketAddress address, InetSocketAddress battlefieldAddress, int maxHealth, int hitPoints, int attackPoints) {
+		this.address = address;
+		this.battlefieldAddress = battlefieldAddress;
+		this.messageList = new HashMap<Integer, Message>();
+		this.maxHitPoints = maxHealth;
+		this.hitPoints = hitPoints;
+		this.attackPoints = attackPoints;
+	}
+
+	/**
+	 * Creates a replica of a unit of the given type.
+	 * @see #Unit(InetSocketAddress, InetSocketAddress, int, int, int)
+	 */
+	public static Unit replicaOf(UnitType type, InetSocketAddress address, InetSocketAddress battlefieldAddress, int maxHealth, int hitPoints, int attackPoints) {
+		switch (type) {
+		case dragon:
+			return new Dragon(address, battlefieldAddress, maxHealth, hitPoints, attackPoints);
+		case player:
+			return new Player(address, battlefieldAddress, maxHealth, hitPoints, attackPoints);
+		default:
+			return null;
+		}
+	}
+
 	/**
 	 * Adjust the hitpoints to a certain level. 
 	 * Useful for healing or dying purposes.
@@ -129,6 +178,14 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 			removeUnit(x, y);
 	}
 	
+	/**
+	 * Sets the hitpoints directly, even of a dead unit.
+	 * Used by the battlefield to undo an action.
+	 */
+	public synchronized void setHitPoints(int hitPoints) {
+		this.hitPoints = Math.min(hitPoints, maxHitPoints);
+	}
+
 	public void dealDamage(int x, int y, int damage) {
 		/* Create a new message, notifying the board
 		 * that a unit has been dealt damage.
@@ -142,7 +199,8 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 			damageMessage.put("request", MessageRequest.dealDamage);
 			damageMessage.put("x", x);
 			damageMessage.put("y", y);
-			damageMessage.put("unit", this);
+			damageMessage.put("fromX", this.x);
+			damageMessage.put("fromY", this.y);
 			damageMessage.put("address", address);
 			damageMessage.put("damage", damage);
 			damageMessage.put("id", id);
@@ -181,7 +239,8 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 			healMessage.put("address", address);
 			healMessage.put("healed", healed);
 			healMessage.put("id", id);
-			healMessage.put("unit", this);
+			healMessage.put("fromX", this.x);
+			healMessage.put("fromY", this.y);
 
 		}
 
@@ -240,6 +299,25 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 		return hitPoints;
 	}
 
+	/**
+	 * @return the distance around the unit within which the battlefield
+	 * keeps it informed about the map
+	 */
+	public int getInterestRadius() {
+		return Math.max(BattleField.MAP_WIDTH, BattleField.MAP_HEIGHT);
+	}
+
+	/**
+	 * @return whether this is a player or a dragon
+	 */
+	public UnitType getUnitType() {
+		if (this instanceof Player)
+			return UnitType.player;
+		else if (this instanceof Dragon)
+			return UnitType.dragon;
+		else return UnitType.undefined;
+	}
+
 	/**
 	 * @return the attack points
 	 */
@@ -265,7 +343,11 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 		spawnMessage.put("request", MessageRequest.spawnUnit);
 		spawnMessage.put("x", x);
 		spawnMessage.put("y", y);
-		spawnMessage.put("unit", this);
+		spawnMessage.put("unitType", getUnitType().ordinal());
+		spawnMessage.put("maxHitPoints", getMaxHitPoints());
+		spawnMessage.put("hitPoints", getHitPoints());
+		spawnMessage.put("attackPoints", getAttackPoints());
+		spawnMessage.put("unitBattlefield", battlefieldAddress);
 		spawnMessage.put("address", address);
 
 		spawnMessage.put("id", 0);
@@ -322,12 +404,12 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 
 	protected Unit getUnit(int x, int y)
 	{
-		return map[x][y];
+		return map.get(x, y);
 	}
 
 	protected void removeUnit(int x, int y)
 	{
-		//map[x][y] = null;
+		//map.set(x, y, null);
 		
 		Message removeMessage = new Message();
 		int id = localMessageCounter++;
@@ -381,19 +463,23 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 		//System.out.println("UNIT MSG RCV:" + message.toString());
 		if ((MessageRequest)message.get("request") == MessageRequest.gameState) {
 			//System.out.println("Games State update");
-			//Who am I?
-			map = (Unit[][])message.get("gamestate");
-			//Unit u = searchMapForThisUnit(map);//Could return null if it isn't in the map anymore
-			Unit u = (Unit)message.get("unit");//Could return null if it isn't in the map anymore
-			updateUnitState(u);
-			//System.out.println("Unit:" + u.unitID + " " + u.getX() + " " + u.getY());
-			//Update this instance variables
-			
+			applyGameState((Integer)message.get("baseTick"), (Integer)message.get("tick"), (StateDelta[])message.get("deltas"));
+			if (message.get("landmarks") != null)
+				applyLandmarks((StateDelta[])message.get("landmarks"));
+		}
+		if((MessageRequest)message.get("request") == MessageRequest.handoff) {
+			// The battlefield owning our cell takes over, its first update is a snapshot
+			synchronized (this) {
+				battlefieldAddress = (InetSocketAddress)message.get("bfAddress");
+				stateTick = -1;
+			}
 		}
 		if((MessageRequest)message.get("request") == MessageRequest.spawnAck) {
-			map = (Unit[][])message.get("gamestate");
-			Unit u = (Unit)message.get("unit");//Could return null if it isn't in the map anymore
-			updateUnitState(u);
+			if ((Boolean)message.get("succeded")) {
+				setPosition((Integer)message.get("x"), (Integer)message.get("y"));
+				startHeartbeat();
+			} else
+				this.hitPoints = 0;
 
 			messageList.put(0, null);
 
@@ -404,16 +490,107 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 		return null;
 	}
 	
+	/**
+	 * Applies a game state update from the battlefield to the local map.
+	 * A negative baseTick marks a snapshot, which replaces the map. Deltas
+	 * that do not continue from the last applied tick are dropped and a
+	 * snapshot is requested instead.
+	 */
+	private synchronized void applyGameState(int baseTick, int tick, StateDelta[] deltas) {
+		if (baseTick < 0) {
+			map.clear();
+			index.clear();
+			boolean found = false;
+			for (StateDelta delta : deltas) {
+				applyDelta(delta);
+				if (address.equals(delta.getAddress())) {
+					setPosition(delta.getX(), delta.getY());
+					this.hitPoints = delta.getHitPoints();
+					found = true;
+				}
+			}
+			if (!found) this.hitPoints = 0;
+			resyncRequested = false;
+		} else if (baseTick != stateTick) {
+			if (!resyncRequested) {
+				resyncRequested = true;
+				Message resync = new Message();
+				resync.put("request", MessageRequest.gameStateResync);
+				resync.put("address", address);
+				new SynchronizedClientSocket(resync, battlefieldAddress, this).sendMessage();
+			}
+			return;
+		} else {
+			for (StateDelta delta : deltas) {
+				boolean own = x != null && delta.getX() == x && delta.getY() == y;
+				applyDelta(delta);
+				if (!own) continue;
+				switch (delta.getKind()) {
+				case move:
+					setPosition(delta.getToX(), delta.getToY());
+					break;
+				case hitPoints:
+					this.hitPoints = delta.getHitPoints();
+					break;
+				case remove:
+					this.hitPoints = 0;
+					break;
+				default:
+					break;
+				}
+			}
+		}
+		stateTick = tick;
+	}
+
+	private synchronized void applyLandmarks(StateDelta[] deltas) {
+		Unit[] replicas = new Unit[deltas.length];
+		for (int i = 0; i < deltas.length; i++) {
+			StateDelta d = deltas[i];
+			replicas[i] = replicaOf(d.getUnitType(), d.getAddress(), battlefieldAddress, d.getMaxHitPoints(), d.getHitPoints(), d.getAttackPoints());
+			replicas[i].setPosition(d.getX(), d.getY());
+		}
+		landmarks = replicas;
+	}
+
+	private void applyDelta(StateDelta delta) {
+		int x = delta.getX();
+		int y = delta.getY();
+		switch (delta.getKind()) {
+		case spawn:
+			if (map.get(x, y) != null) index.remove(map.get(x, y), x, y);
+			map.set(x, y, replicaOf(delta.getUnitType(), delta.getAddress(), battlefieldAddress, delta.getMaxHitPoints(), delta.getHitPoints(), delta.getAttackPoints()));
+			map.get(x, y).setPosition(x, y);
+			index.add(map.get(x, y), x, y);
+			break;
+		case move:
+			Unit moved = map.get(x, y);
+			map.set(x, y, null);
+			if (map.get(delta.getToX(), delta.getToY()) != null)
+				index.remove(map.get(delta.getToX(), delta.getToY()), delta.getToX(), delta.getToY());
+			map.set(delta.getToX(), delta.getToY(), moved);
+			if (moved != null) {
+				moved.setPosition(delta.getToX(), delta.getToY());
+				index.move(moved, x, y, delta.getToX(), delta.getToY());
+			}
+			break;
+		case hitPoints:
+			if (map.get(x, y) != null) map.get(x, y).hitPoints = delta.getHitPoints();
+			break;
+		case remove:
+			if (map.get(x, y) != null) index.remove(map.get(x, y), x, y);
+			map.set(x, y, null);
+			break;
+		}
+	}
+
 	//Return the unit in the map that is equal(same address) to this instance
 	//TODO Could be improved... like using a HashMap.
-	private Unit searchMapForThisUnit(Unit[][] map) {
-		for( int i = 0; i < map.length; i++) {
-			for( int j = 0; j < map[0].length; j++) {
-				if(map[i][j] == null) continue;
-				if(this.equals(map[i][j])){
-					updateUnitState(map[i][j]);
-					return map[i][j];
-				}
+	private Unit searchMapForThisUnit(ChunkedGrid map) {
+		for(Unit u : map.units()) {
+			if(this.equals(u)){
+				updateUnitState(u);
+				return u;
 			}
 		}
 		return null;
@@ -422,20 +599,31 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 	
 	//If type is Undefined can return Unit of either type
 	protected Unit closestUnitOfType(UnitType type) {
-		Unit closest = null;
-		int distance = map.length*map.length; //Bigger than max distance
-
-		for( int i = 0; i < map.length; i++) {
-			for( int j = 0; j < map[0].length; j++) {
-				if(map[i][j] == null || Math.abs(this.getX()-i) + Math.abs(this.getY()-j) > distance) continue;
-				if(type == UnitType.undefined || getType(i,j) == type){
-					closest = map[i][j];
-					distance = Math.abs(this.getX()-i) + Math.abs(this.getY()-j);
-				}
-			}
+		List<Unit> closest = closestUnitsOfType(type, 1);
+		return closest.isEmpty() ? null : closest.get(0);
+	}
+
+	/**
+	 * @return up to k units of the given type closest to this unit, nearest first
+	 */
+	protected List<Unit> closestUnitsOfType(UnitType type, int k) {
+		List<Unit> closest = new ArrayList<Unit>(index.nearest(getX(), getY(), type, k));
+		// Units outside the area of interest are only known through the landmarks
+		Unit[] known = landmarks;
+		for (int i = 0; known != null && i < known.length; i++) {
+			Unit landmark = known[i];
+			if (type != UnitType.undefined && landmark.getUnitType() != type) continue;
+			int d = distanceTo(landmark);
+			int pos = closest.size();
+			while (pos > 0 && distanceTo(closest.get(pos - 1)) > d)
+				pos--;
+			closest.add(pos, landmark);
 		}
-		return closest;
-		
+		return closest.size() > k ? closest.subList(0, k) : closest;
+	}
+
+	private int distanceTo(Unit unit) {
+		return Math.abs(this.getX()-unit.getX()) + Math.abs(this.getY()-unit.getY());
 	}
 	
 	protected Direction inDirectionOfUnit(Unit unit) {
@@ -463,6 +651,32 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 	// Disconnects the unit from the battlefield by exiting its run-state
 	public void disconnect() {
 		running = false;
+		if (heartbeat != null) heartbeat.stop();
+	}
+
+	/**
+	 * Sends heartbeats to the battlefield that serves the unit, the one of
+	 * the moment, for as long as the unit lives.
+	 */
+	private synchronized void startHeartbeat() {
+		if (heartbeat != null) return;
+		heartbeat = new FailureDetector.Heartbeat() {
+			protected boolean beating() {
+				return GameState.getRunningState() && hitPoints > 0;
+			}
+
+			protected Collection<InetSocketAddress> targets() {
+				return Collections.singleton(getBattlefieldAddress());
+			}
+
+			protected Message message() {
+				Message beat = new Message();
+				beat.put("request", MessageRequest.heartbeat);
+				beat.put("address", address);
+				return beat;
+			}
+		};
+		heartbeat.start();
 	}
 	
 	void waitForMessage(int id) {
@@ -496,6 +710,10 @@ public abstract class Unit implements Serializable, IMessageReceivedHandler {
 	public InetSocketAddress getBattlefieldAddress() {
 		return battlefieldAddress;
 	}
+
+	public void setBattlefieldAddress(InetSocketAddress battlefieldAddress) {
+		this.battlefieldAddress = battlefieldAddress;
+	}
 	
 	public Message onExceptionThrown(Message message, InetSocketAddress destinationAddress){
 		return null;
@@ -0,0 +1,171 @@
+package distributed.systems.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import distributed.systems.core.LogEntry.Position;
+import distributed.systems.das.units.Unit;
+
+public class BinaryLogTest {
+
+	private static final InetSocketAddress A = new InetSocketAddress("localhost", 41000);
+	private static final InetSocketAddress B = new InetSocketAddress("localhost", 42000);
+	private static final InetSocketAddress C = new InetSocketAddress("localhost", 43000);
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile("das-log", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void deleteDir() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	private static LogEntry move(int counter, InetSocketAddress origin) {
+		int[] clock = {VectorialClock.LAMPORT, counter, 0, counter, 1, counter / 2};
+		return new LogEntry(clock, LogEntryType.MOVE, origin, new Position(counter % 25, 3), new Position(counter % 25, 4));
+	}
+
+	private static List<String> read(File file) throws IOException {
+		MappedLogReader reader = new MappedLogReader(file);
+		List<String> entries = new ArrayList<String>();
+		try {
+			for (LogEntry entry : reader.entries())
+				entries.add(entry.toString());
+		} finally {
+			reader.close();
+		}
+		return entries;
+	}
+
+	@Test
+	public void entriesReadBackAfterTruncate() throws IOException {
+		File file = new File(dir, "log");
+		LogAppender log = new LogAppender(file, new BinaryLog(file));
+		List<String> expected = new ArrayList<String>();
+		for (int i = 1; i <= 10; i++) {
+			LogEntry entry = i == 6 ? new LogEntry(new int[] {0, i}, LogEntryType.SNAPSHOT, A, null, null, 1) : move(i, i < 5 ? A : B);
+			log.append(entry);
+			if (i >= 6) expected.add(entry.toString());
+		}
+		log.flush();
+
+		MappedLogReader reader = new MappedLogReader(file);
+		long first = reader.lastIndexOf(LogEntryType.SNAPSHOT, 1);
+		reader.close();
+		assertTrue(first > 0);
+		log.truncate(first);
+
+		// Entries after the truncation go on from there, with a new origin too
+		for (int i = 11; i <= 13; i++) {
+			LogEntry entry = move(i, i == 12 ? C : A);
+			log.append(entry);
+			expected.add(entry.toString());
+		}
+		log.flush();
+
+		assertEquals(expected, read(file));
+		reader = new MappedLogReader(file);
+		try {
+			assertEquals(3, reader.origins());
+			assertEquals(A.getPort(), reader.origin(0).getPort());
+			assertEquals(B.getPort(), reader.origin(1).getPort());
+			assertEquals(C.getPort(), reader.origin(2).getPort());
+			assertEquals(BinaryLog.CLOCK_WIDTH, reader.clockWidth());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void reopenedLogAppendsAfterTruncate() throws IOException {
+		File file = new File(dir, "log");
+		LogAppender log = new LogAppender(file, new BinaryLog(file));
+		for (int i = 1; i <= 5; i++)
+			log.append(move(i, A));
+		log.flush();
+		log.truncate(3);
+		log.flush();
+		List<String> kept = read(file);
+		assertEquals(3, kept.size());
+
+		LogAppender reopened = new LogAppender(file, new BinaryLog(file));
+		LogEntry entry = move(6, B);
+		reopened.append(entry);
+		reopened.flush();
+		kept.add(entry.toString());
+		assertEquals(kept, read(file));
+	}
+
+	@Test
+	public void textLogDropsTheFirstLines() throws IOException {
+		File file = new File(dir, "log.txt");
+		LogAppender log = new LogAppender(file);
+		for (int i = 0; i < 10; i++)
+			log.append("line " + i);
+		log.flush();
+		log.truncate(4);
+		log.append("after");
+		log.flush();
+
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+		} finally {
+			reader.close();
+		}
+		assertEquals(7, lines.size());
+		assertEquals("line 4", lines.get(0));
+		assertEquals("line 9", lines.get(5));
+		assertEquals("after", lines.get(6));
+	}
+
+	@Test
+	public void entryWithAnUnloggableHostDefinesNoOrigin() throws IOException {
+		StringBuilder host = new StringBuilder();
+		for (int i = 0; i < 300; i++)
+			host.append('h');
+		File file = new File(dir, "log");
+		LogAppender log = new LogAppender(file, new BinaryLog(file));
+		LogEntry spawn = new LogEntry(new int[] {VectorialClock.LAMPORT, 1, 0, 1}, LogEntryType.SPAWN, A, new Position(1, 1));
+		spawn.setUnit(Unit.UnitType.player, 20, 20, 5, InetSocketAddress.createUnresolved(host.toString(), 41000));
+		log.append(spawn);
+		LogEntry entry = move(2, B);
+		log.append(entry);
+		log.flush();
+
+		List<String> expected = new ArrayList<String>();
+		expected.add(entry.toString());
+		assertEquals(expected, read(file));
+		MappedLogReader reader = new MappedLogReader(file);
+		try {
+			assertEquals(2, reader.size());
+			assertEquals(1, reader.origins());
+			assertEquals(B.getPort(), reader.origin(0).getPort());
+		} finally {
+			reader.close();
+		}
+	}
+}
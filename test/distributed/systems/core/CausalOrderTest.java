@@ -0,0 +1,69 @@
+package distributed.systems.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CausalOrderTest {
+
+	@Test
+	public void eventsAfterALeaveSortAfterWhatTheyFollow() {
+		VectorialClock a = new VectorialClock();
+		VectorialClock b = new VectorialClock();
+		for (int id = 0; id < 3; id++) {
+			a.addMember(id);
+			b.addMember(id);
+		}
+		// Battlefield 2 counts many events that 0 sees, then leaves
+		for (int i = 0; i < 10; i++)
+			b.incrementClock(2);
+		a.merge(b.getClock());
+		int[] seen = a.incrementClock(0);
+		a.removeMember(2);
+		int[] after = a.incrementClock(0);
+
+		// The counters alone no longer tell, 2 is pruned from the later value
+		assertTrue(CausalOrder.compare(seen, after) < 0);
+		assertTrue(CausalOrder.weight(seen) < CausalOrder.weight(after));
+	}
+
+	@Test
+	public void sortingKeepsCausalChainsAcrossALeave() {
+		VectorialClock[] nodes = new VectorialClock[3];
+		for (int n = 0; n < nodes.length; n++) {
+			nodes[n] = new VectorialClock();
+			for (int id = 0; id < nodes.length; id++)
+				nodes[n].addMember(id);
+		}
+		List<int[]> chain = new ArrayList<int[]>();
+		for (int i = 0; i < 5; i++)
+			chain.add(nodes[2].incrementClock(2));
+		nodes[1].merge(chain.get(chain.size() - 1));
+		chain.add(nodes[1].incrementClock(1));
+		nodes[0].merge(chain.get(chain.size() - 1));
+		chain.add(nodes[0].incrementClock(0));
+		nodes[0].removeMember(2);
+		nodes[1].removeMember(2);
+		chain.add(nodes[0].incrementClock(0));
+		nodes[1].merge(chain.get(chain.size() - 1));
+		chain.add(nodes[1].incrementClock(1));
+
+		List<int[]> sorted = new ArrayList<int[]>(chain);
+		Collections.reverse(sorted);
+		Collections.sort(sorted, CausalOrder.CLOCKS);
+		for (int i = 0; i < chain.size(); i++)
+			assertArrayEquals(chain.get(i), sorted.get(i));
+	}
+
+	@Test
+	public void clocksWithoutALamportCounterWeighTheirCounters() {
+		assertEquals(7, CausalOrder.weight(new int[] {0, 3, 1, 4}));
+		assertEquals(9, CausalOrder.weight(new int[] {VectorialClock.LAMPORT, 9, 0, 3}));
+	}
+}
@@ -0,0 +1,61 @@
+package distributed.systems.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import distributed.systems.core.HashedWheelTimer.Timeout;
+
+public class HashedWheelTimerTest {
+
+	private static Runnable countDown(final CountDownLatch latch) {
+		return new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		};
+	}
+
+	@Test
+	public void taskRunsOnceTheDelayHasPassed() throws InterruptedException {
+		HashedWheelTimer timer = new HashedWheelTimer("test", 5, TimeUnit.MILLISECONDS, 8);
+		CountDownLatch ran = new CountDownLatch(1);
+		long start = System.nanoTime();
+		Timeout timeout = timer.schedule(countDown(ran), 50, TimeUnit.MILLISECONDS);
+		assertTrue(ran.await(1, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+	}
+
+	@Test
+	public void delayLongerThanTheWheelTakesSeveralRounds() throws InterruptedException {
+		// 8 buckets of 5 ms go round in 40 ms
+		HashedWheelTimer timer = new HashedWheelTimer("test", 5, TimeUnit.MILLISECONDS, 8);
+		CountDownLatch ran = new CountDownLatch(1);
+		long start = System.nanoTime();
+		timer.schedule(countDown(ran), 130, TimeUnit.MILLISECONDS);
+		assertTrue(ran.await(1, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 130);
+	}
+
+	@Test
+	public void cancelledTaskNeverRuns() throws InterruptedException {
+		HashedWheelTimer timer = new HashedWheelTimer("test", 5, TimeUnit.MILLISECONDS, 8);
+		CountDownLatch cancelledRan = new CountDownLatch(1);
+		CountDownLatch laterRan = new CountDownLatch(1);
+		Timeout timeout = timer.schedule(countDown(cancelledRan), 20, TimeUnit.MILLISECONDS);
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		timer.schedule(countDown(laterRan), 60, TimeUnit.MILLISECONDS);
+		assertTrue(laterRan.await(1, TimeUnit.SECONDS));
+		assertFalse(cancelledRan.await(0, TimeUnit.MILLISECONDS));
+		assertTrue(timeout.isCancelled());
+		assertEquals(0, timer.getPendingCount());
+	}
+}
@@ -0,0 +1,197 @@
+package distributed.systems.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import distributed.systems.core.LogEntry.Position;
+
+public class LogMergerTest {
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile("das-merge", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void deleteDir() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	private File write(String name, List<String> lines) throws IOException {
+		File file = new File(dir, name);
+		Writer writer = new FileWriter(file);
+		try {
+			for (String line : lines)
+				writer.write(line + "\n");
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	private static List<String> read(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static int[] clockOf(String line) {
+		return VectorialClock.parse(line.substring(0, line.indexOf(']') + 1));
+	}
+
+	/*
+	 * Three battlefields act and hear from each other at random, then one
+	 * leaves. Every log has its own events and, like the logs of actions
+	 * every battlefield applies, copies of some of the others', so the logs
+	 * cover overlapping ranges of clocks and share lines.
+	 */
+	private List<List<String>> play(int events) {
+		Random random = new Random(42);
+		VectorialClock[] clocks = new VectorialClock[3];
+		List<List<String>> logs = new ArrayList<List<String>>();
+		for (int n = 0; n < clocks.length; n++) {
+			clocks[n] = new VectorialClock();
+			for (int id = 0; id < clocks.length; id++)
+				clocks[n].addMember(id);
+			logs.add(new ArrayList<String>());
+		}
+		int alive = clocks.length;
+		for (int e = 0; e < events; e++) {
+			if (e == events / 2) {
+				alive = 2;
+				clocks[0].removeMember(2);
+				clocks[1].removeMember(2);
+			}
+			int n = random.nextInt(alive);
+			String line = VectorialClock.toString(clocks[n].incrementClock(n)) + " MOVE bf" + n + " " + e;
+			logs.get(n).add(line);
+			for (int other = 0; other < alive; other++) {
+				if (other != n && random.nextInt(3) == 0) {
+					clocks[other].merge(clockOf(line));
+					logs.get(other).add(line);
+				}
+			}
+		}
+		return logs;
+	}
+
+	private void checkMerge(int runSize, int fanIn) throws IOException {
+		List<List<String>> logs = play(300);
+		List<File> files = new ArrayList<File>();
+		HashSet<String> distinct = new HashSet<String>();
+		for (int n = 0; n < logs.size(); n++) {
+			files.add(write("bf" + n + ".txt", logs.get(n)));
+			distinct.addAll(logs.get(n));
+		}
+		File output = new File(dir, "merged.txt");
+		LogMerger.merge(files, output, runSize, fanIn);
+
+		List<String> merged = read(output);
+		assertEquals(distinct.size(), merged.size());
+		assertEquals(distinct, new HashSet<String>(merged));
+		for (int i = 0; i < merged.size(); i++) {
+			for (int j = i + 1; j < merged.size(); j++)
+				assertFalse(merged.get(j) + " before " + merged.get(i),
+						VectorialClock.happenedBefore(clockOf(merged.get(j)), clockOf(merged.get(i))));
+		}
+		// Only the output is left behind
+		assertEquals(files.size() + 1, dir.listFiles().length);
+	}
+
+	@Test
+	public void mergesOverlappingLogsInOneRun() throws IOException {
+		checkMerge(100000, 64);
+	}
+
+	@Test
+	public void mergesManyOverlappingRunsWithDuplicates() throws IOException {
+		// Runs of 7 lines and two at a time, so runs are merged in several passes
+		checkMerge(7, 2);
+	}
+
+	@Test
+	public void sharedLinesComeOutOnce() throws IOException {
+		List<String> a = new ArrayList<String>();
+		List<String> b = new ArrayList<String>();
+		a.add("[-1:1, 0:1, 1:0] SPAWN bf0");
+		a.add("[-1:2, 0:1, 1:1] MOVE bf1");
+		b.add("[-1:2, 0:1, 1:1] MOVE bf1");
+		b.add("[-1:2, 0:1, 1:1] MOVE bf1");
+		b.add("[-1:1, 0:1, 1:0] SPAWN bf0");
+		File output = new File(dir, "merged.txt");
+		List<File> files = new ArrayList<File>();
+		files.add(write("a.txt", a));
+		files.add(write("b.txt", b));
+		LogMerger.merge(files, output, 1, 2);
+
+		List<String> merged = read(output);
+		assertEquals(2, merged.size());
+		assertTrue(merged.get(0).endsWith("SPAWN bf0"));
+		assertTrue(merged.get(1).endsWith("MOVE bf1"));
+	}
+
+	@Test
+	public void mergesBinaryLogs() throws IOException {
+		InetSocketAddress a = new InetSocketAddress("localhost", 41000);
+		InetSocketAddress b = new InetSocketAddress("localhost", 42000);
+		LogEntry spawn = new LogEntry(new int[] {VectorialClock.LAMPORT, 1, 0, 1}, LogEntryType.SPAWN, a, new Position(1, 1));
+		LogEntry moveA = new LogEntry(new int[] {VectorialClock.LAMPORT, 2, 0, 2}, LogEntryType.MOVE, a, new Position(1, 1), new Position(1, 2));
+		LogEntry moveB = new LogEntry(new int[] {VectorialClock.LAMPORT, 2, 0, 1, 1, 1}, LogEntryType.MOVE, b, new Position(5, 5), new Position(5, 6));
+		LogEntry heal = new LogEntry(new int[] {VectorialClock.LAMPORT, 3, 0, 2, 1, 2}, LogEntryType.HEAL, b, new Position(5, 6), new Position(1, 2), 4);
+
+		File first = new File(dir, "localhost_41000");
+		LogAppender log = new LogAppender(first, new BinaryLog(first));
+		log.append(spawn);
+		log.append(moveA);
+		log.flush();
+		File second = new File(dir, "localhost_42000");
+		log = new LogAppender(second, new BinaryLog(second));
+		log.append(spawn);
+		log.append(heal);
+		log.append(moveB);
+		log.flush();
+
+		File output = new File(dir, "merged.txt");
+		List<File> files = new ArrayList<File>();
+		files.add(first);
+		files.add(second);
+		LogMerger.merge(files, output, 2, 2);
+
+		List<String> merged = read(output);
+		assertEquals(4, merged.size());
+		assertEquals(spawn.toString(), merged.get(0));
+		assertTrue(merged.contains(moveA.toString()));
+		assertTrue(merged.contains(moveB.toString()));
+		assertEquals(heal.toString(), merged.get(3));
+	}
+}
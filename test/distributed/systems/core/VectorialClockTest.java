@@ -0,0 +1,113 @@
+package distributed.systems.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class VectorialClockTest {
+
+	/* The member entries of a clock value, without the Lamport counter */
+	private static int[] members(int[] clock) {
+		if (clock.length > 0 && clock[0] == VectorialClock.LAMPORT)
+			return Arrays.copyOfRange(clock, 2, clock.length);
+		return clock;
+	}
+
+	@Test
+	public void compareFollowsTheCounters() {
+		int[] a = {0, 1, 1, 2};
+		int[] b = {0, 2, 1, 2};
+		int[] c = {0, 1, 1, 3};
+		assertEquals(VectorialClock.EQUAL, VectorialClock.compare(a, a.clone()));
+		assertEquals(VectorialClock.BEFORE, VectorialClock.compare(a, b));
+		assertEquals(VectorialClock.AFTER, VectorialClock.compare(b, a));
+		assertEquals(VectorialClock.CONCURRENT, VectorialClock.compare(b, c));
+	}
+
+	@Test
+	public void missingMembersCountAsZero() {
+		assertEquals(VectorialClock.BEFORE, VectorialClock.compare(new int[] {0, 1}, new int[] {0, 1, 2, 1}));
+		assertEquals(VectorialClock.CONCURRENT, VectorialClock.compare(new int[] {0, 1, 1, 1}, new int[] {0, 1, 2, 1}));
+		assertEquals(VectorialClock.AFTER, VectorialClock.compare(new int[] {3, 1}, new int[0]));
+	}
+
+	@Test
+	public void mergeTakesTheMaximumAndAddsJoinedMembers() {
+		VectorialClock clock = new VectorialClock(new int[] {0, 3, 2, 1});
+		clock.merge(new int[] {0, 1, 1, 4, 2, 5});
+		assertArrayEquals(new int[] {0, 3, 1, 4, 2, 5}, members(clock.getClock()));
+		assertEquals(3, clock.size());
+	}
+
+	@Test
+	public void eventsAfterAJoinFollowThoseBefore() {
+		VectorialClock first = new VectorialClock();
+		first.addMember(0);
+		int[] before = first.incrementClock(0);
+
+		// Battlefield 5 joins with the state of 0 and acts
+		first.addMember(5);
+		VectorialClock joined = new VectorialClock(first.getClock());
+		int[] after = joined.incrementClock(5);
+
+		assertTrue(VectorialClock.happenedBefore(before, after));
+		first.merge(after);
+		assertArrayEquals(new int[] {0, 1, 5, 1}, members(first.getClock()));
+	}
+
+	@Test
+	public void leftMembersArePrunedAndNotMergedBack() {
+		VectorialClock clock = new VectorialClock(new int[] {0, 2, 1, 3, 2, 4});
+		clock.removeMember(1);
+		assertArrayEquals(new int[] {0, 2, 2, 4}, members(clock.getClock()));
+		assertEquals(2, clock.size());
+
+		// A peer that has not seen the leave yet still sends the old entry
+		clock.merge(new int[] {0, 1, 1, 7, 2, 6});
+		assertArrayEquals(new int[] {0, 2, 2, 6}, members(clock.getClock()));
+
+		// Rejoining brings the entry back
+		clock.addMember(1);
+		clock.merge(new int[] {1, 8});
+		assertArrayEquals(new int[] {0, 2, 1, 8, 2, 6}, members(clock.getClock()));
+	}
+
+	@Test
+	public void valuesOnBothSidesOfALeaveStillCompare() {
+		VectorialClock clock = new VectorialClock(new int[] {0, 1, 1, 1, 2, 1});
+		int[] before = clock.incrementClock(0);
+		clock.removeMember(2);
+		int[] after = clock.incrementClock(1);
+		// Both remaining counters went up, the pruned one counts as zero
+		assertEquals(VectorialClock.CONCURRENT, VectorialClock.compare(before, after));
+		int[] later = clock.incrementClock(0);
+		assertEquals(VectorialClock.BEFORE, VectorialClock.compare(after, later));
+	}
+
+	@Test
+	public void lamportCounterSurvivesLeavesAndMerges() {
+		VectorialClock clock = new VectorialClock();
+		clock.addMember(0);
+		clock.addMember(1);
+		clock.incrementClock(1);
+		clock.incrementClock(1);
+		clock.removeMember(1);
+		int[] value = clock.incrementClock(0);
+		assertArrayEquals(new int[] {VectorialClock.LAMPORT, 3, 0, 1}, value);
+
+		clock.merge(new int[] {VectorialClock.LAMPORT, 10, 0, 1});
+		assertEquals(11, clock.incrementClock(0)[1]);
+	}
+
+	@Test
+	public void textRoundTrip() {
+		int[] clock = {VectorialClock.LAMPORT, 12, 0, 3, 7, 1};
+		assertEquals("[-1:12, 0:3, 7:1]", VectorialClock.toString(clock));
+		assertArrayEquals(clock, VectorialClock.parse(VectorialClock.toString(clock)));
+		assertArrayEquals(new int[0], VectorialClock.parse("[]"));
+	}
+}
@@ -0,0 +1,153 @@
+package distributed.systems.das;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import distributed.systems.das.units.Unit;
+import distributed.systems.das.units.Unit.UnitType;
+
+public class CellLocksTest {
+
+	@Test
+	public void distantCellsHoldDifferentStripes() {
+		CellLocks locks = new CellLocks(25);
+		assertNotEquals(locks.stripeOf(0, 0), locks.stripeOf(12, 12));
+		assertNotEquals(locks.stripeOf(0, 0), locks.stripeOf(8, 0));
+		assertNotEquals(locks.stripeOf(0, 0), locks.stripeOf(0, 8));
+	}
+
+	@Test
+	public void cellsOfABlockShareAStripe() {
+		CellLocks locks = new CellLocks(25);
+		assertEquals(locks.stripeOf(0, 0), locks.stripeOf(CellLocks.BLOCK_SIZE - 1, CellLocks.BLOCK_SIZE - 1));
+	}
+
+	@Test
+	public void everyBlockOfASmallMapHasItsOwnStripe() {
+		CellLocks locks = new CellLocks(25);
+		Set<Integer> stripes = new HashSet<Integer>();
+		for (int y = 0; y < 25; y += CellLocks.BLOCK_SIZE)
+			for (int x = 0; x < 25; x += CellLocks.BLOCK_SIZE)
+				assertTrue(stripes.add(locks.stripeOf(x, y)));
+	}
+
+	@Test
+	public void distantCellIsNotBlockedByAHeldCell() throws InterruptedException {
+		final CellLocks locks = new CellLocks(25);
+		final CountDownLatch locked = new CountDownLatch(1);
+		CellLocks.Held held = locks.lock(0, 0);
+		try {
+			Thread other = new Thread(new Runnable() {
+				public void run() {
+					locks.lock(12, 12).unlock();
+					locked.countDown();
+				}
+			});
+			other.start();
+			assertTrue(locked.await(1, TimeUnit.SECONDS));
+		} finally {
+			held.unlock();
+		}
+	}
+
+	/*
+	 * Every thread fills and empties the cells of a block of its own, all in
+	 * the one chunk of a small map, so the chunk is allocated and written by
+	 * several threads at once. In between, with the map standing still, no
+	 * unit may be missing and the emptied chunk is dropped.
+	 */
+	@Test(timeout = 20000)
+	public void gridStaysConsistentUnderBlockLocks() throws Exception {
+		final int threads = 6, rounds = 1000, side = CellLocks.BLOCK_SIZE;
+		final CellLocks locks = new CellLocks(25);
+		final ChunkedGrid map = new ChunkedGrid(25, 25);
+		final CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int x0 = t * side, y0 = (t % 2) * side;
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Unit[] mine = new Unit[side * side];
+						for (int i = 0; i < mine.length; i++)
+							mine[i] = Unit.replicaOf(UnitType.player, new InetSocketAddress("localhost", 50000 + x0 * 100 + i), null, 10, 10, 1);
+						for (int round = 0; round < rounds; round++) {
+							barrier.await();
+							for (int i = 0; i < mine.length; i++) {
+								int x = x0 + i % side, y = y0 + i / side;
+								CellLocks.Held held = locks.lock(x, y);
+								try {
+									if (map.set(x, y, mine[i]) != null) throw new AssertionError("cell <" + x + ", " + y + "> was not empty");
+								} finally {
+									held.unlock();
+								}
+							}
+							barrier.await();
+							barrier.await();
+							for (int i = 0; i < mine.length; i++) {
+								int x = x0 + i % side, y = y0 + i / side;
+								CellLocks.Held held = locks.lock(x, y);
+								try {
+									if (map.set(x, y, null) != mine[i]) throw new AssertionError("cell <" + x + ", " + y + "> lost its unit");
+								} finally {
+									held.unlock();
+								}
+							}
+							barrier.await();
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+						barrier.reset();
+					}
+				}
+			});
+			workers[t].setDaemon(true);
+			workers[t].start();
+		}
+
+		boolean done = false;
+		try {
+			for (int round = 0; round < rounds && failure.get() == null; round++) {
+				barrier.await();
+				barrier.await();
+				locks.lockAll();
+				try {
+					assertEquals(threads * side * side, map.units().size());
+				} finally {
+					locks.unlockAll();
+				}
+				barrier.await();
+				barrier.await();
+				locks.lockAll();
+				try {
+					map.trim();
+					assertEquals(0, map.units().size());
+				} finally {
+					locks.unlockAll();
+				}
+			}
+			done = true;
+		} catch (BrokenBarrierException e) {
+			// A worker failed, reported below
+		} finally {
+			if (!done) barrier.reset();
+		}
+		for (Thread worker : workers)
+			worker.join(1000);
+		if (failure.get() != null) throw new AssertionError(failure.get());
+	}
+}